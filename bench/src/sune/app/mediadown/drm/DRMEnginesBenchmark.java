@@ -0,0 +1,90 @@
+package sune.app.mediadown.drm;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link DRMEngines#fromURI(URI)} with many registered engines, where
+ * only the last registered engine is compatible with the URI.
+ * @author Sune
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DRMEnginesBenchmark {
+	
+	@Param({ "10", "100", "1000" })
+	public int engines;
+	
+	private final URI compatible = URI.create("https://www.example.com/video/123");
+	private final URI incompatible = URI.create("https://www.example.org/video/123");
+	
+	@Setup(Level.Trial)
+	public void setup() {
+		for(int i = 1; i < engines; ++i) {
+			DRMEngines.add("engine" + i, OtherEngine.class);
+		}
+		
+		DRMEngines.add("example", ExampleEngine.class);
+	}
+	
+	@Benchmark
+	public DRMEngine compatible() {
+		return DRMEngines.fromURI(compatible);
+	}
+	
+	@Benchmark
+	public DRMEngine incompatible() {
+		return DRMEngines.fromURI(incompatible);
+	}
+	
+	private static abstract class HostEngine implements DRMEngine {
+		
+		private final String host;
+		
+		protected HostEngine(String host) {
+			this.host = host;
+		}
+		
+		@Override
+		public boolean isCompatibleURI(URI uri) {
+			// The same check as the engines usually do
+			return host.equalsIgnoreCase(uri.getHost());
+		}
+		
+		@Override
+		public DRMResolver createResolver() {
+			throw new UnsupportedOperationException();
+		}
+	}
+	
+	public static final class OtherEngine extends HostEngine {
+		
+		public OtherEngine() {
+			super("www.example.net");
+		}
+	}
+	
+	public static final class ExampleEngine extends HostEngine {
+		
+		public ExampleEngine() {
+			super("www.example.com");
+		}
+	}
+}
\ No newline at end of file
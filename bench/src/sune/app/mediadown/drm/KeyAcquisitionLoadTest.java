@@ -0,0 +1,156 @@
+package sune.app.mediadown.drm;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import sune.app.mediadown.drm.cenc.SyntheticContent;
+import sune.app.mediadown.drm.util.MediaDecryptionKey;
+import sune.app.mediadown.drm.util.WV;
+import sune.app.mediadown.drm.util.WVStubServer;
+import sune.app.mediadown.drm.util.WVStubServer.Latency;
+import sune.app.mediadown.net.Web.Request;
+
+/**
+ * Load test of the key acquisition, i.e. the WV API requests, the license request
+ * and the retries, of {@link DecryptionKeyObtainer} at the given number of concurrent
+ * obtainers against a local {@link WVStubServer}. Reports the percentiles of the
+ * latency of a whole key acquisition. The arguments are given as {@code name=value} pairs:
+ * <ul>
+ * <li>{@code obtainers} - number of concurrent obtainers,</li>
+ * <li>{@code acquisitions} - number of key acquisitions of every obtainer,</li>
+ * <li>{@code latency} - latency of every response of the server, one of {@code none},
+ * {@code constant:MS}, {@code uniform:MIN:MAX}, {@code exponential:MEAN} and
+ * {@code lognormal:MEDIAN:SIGMA},</li>
+ * <li>{@code errorRate}, {@code emptyKeysRate} and {@code maxConcurrent} - fault
+ * injection of the server, see {@link WVStubServer.Builder},</li>
+ * <li>{@code retries} and {@code waitOnRetryMs} - retry configuration of the obtainers.</li>
+ * </ul>
+ * @author Sune
+ */
+public final class KeyAcquisitionLoadTest {
+	
+	// Forbid anyone to create an instance of this class
+	private KeyAcquisitionLoadTest() {
+	}
+	
+	private static final Latency parseLatency(String value) {
+		String[] parts = value.split(":");
+		
+		switch(parts[0].toLowerCase(Locale.ROOT)) {
+			case "none": return Latency.none();
+			case "constant": return Latency.constant(Long.parseLong(parts[1]));
+			case "uniform": return Latency.uniform(Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+			case "exponential": return Latency.exponential(Double.parseDouble(parts[1]));
+			case "lognormal": return Latency.logNormal(Double.parseDouble(parts[1]), Double.parseDouble(parts[2]));
+			default: throw new IllegalArgumentException("Unknown latency distribution: " + value);
+		}
+	}
+	
+	private static final Map<String, String> parseArgs(String[] args) {
+		Map<String, String> values = new HashMap<>();
+		
+		for(String arg : args) {
+			int index = arg.indexOf('=');
+			
+			if(index <= 0) {
+				throw new IllegalArgumentException("Invalid argument: " + arg);
+			}
+			
+			values.put(arg.substring(0, index), arg.substring(index + 1));
+		}
+		
+		return values;
+	}
+	
+	private static final double percentileMs(long[] sortedNanos, int count, double percentile) {
+		if(count == 0) {
+			return Double.NaN;
+		}
+		
+		int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+		return sortedNanos[Math.max(0, Math.min(count - 1, index))] / 1e6;
+	}
+	
+	public static final void main(String[] args) throws Exception {
+		Map<String, String> values = parseArgs(args);
+		int obtainers = Integer.parseInt(values.getOrDefault("obtainers", "8"));
+		int acquisitions = Integer.parseInt(values.getOrDefault("acquisitions", "20"));
+		int retries = Integer.parseInt(values.getOrDefault("retries", "5"));
+		int waitOnRetryMs = Integer.parseInt(values.getOrDefault("waitOnRetryMs", "100"));
+		SyntheticContent content = new SyntheticContent.Builder().build();
+		
+		try(WVStubServer server = new WVStubServer.Builder()
+				.addKey(content.kid(1), content.key(1))
+				.latency(parseLatency(values.getOrDefault("latency", "lognormal:50:0.5")))
+				.errorRate(Double.parseDouble(values.getOrDefault("errorRate", "0")))
+				.emptyKeysRate(Double.parseDouble(values.getOrDefault("emptyKeysRate", "0")))
+				.maxConcurrentRequests(Integer.parseInt(values.getOrDefault("maxConcurrent", "0")))
+				.build()) {
+			WV.API.baseURI(server.apiURI());
+			DRMResolver resolver = (media, licenseRequest) -> Request.of(server.licenseURI())
+				.POST(new String(licenseRequest, StandardCharsets.UTF_8), "application/octet-stream");
+			
+			int total = obtainers * acquisitions;
+			long[] latencies = new long[total];
+			AtomicInteger completed = new AtomicInteger();
+			AtomicInteger failed = new AtomicInteger();
+			AtomicInteger exhausted = new AtomicInteger();
+			CountDownLatch done = new CountDownLatch(obtainers);
+			ExecutorService executor = Executors.newFixedThreadPool(obtainers);
+			long start = System.nanoTime();
+			
+			for(int i = 0; i < obtainers; ++i) {
+				executor.submit(() -> {
+					try {
+						for(int k = 0; k < acquisitions; ++k) {
+							long begin = System.nanoTime();
+							
+							try {
+								List<MediaDecryptionKey> keys = DecryptionKeyObtainer.decryptionKeys(
+									resolver, null, "AAAAMnBzc2g=", "stub", "video", retries, waitOnRetryMs
+								);
+								
+								if(keys == null) {
+									exhausted.incrementAndGet();
+									continue;
+								}
+								
+								latencies[completed.getAndIncrement()] = System.nanoTime() - begin;
+							} catch(Exception ex) {
+								failed.incrementAndGet();
+							}
+						}
+					} finally {
+						done.countDown();
+					}
+				});
+			}
+			
+			done.await();
+			executor.shutdown();
+			double elapsed = (System.nanoTime() - start) / 1e9;
+			int count = completed.get();
+			Arrays.sort(latencies, 0, count);
+			
+			System.out.printf(Locale.ROOT, "Obtainers: %d, acquisitions: %d, elapsed: %.2f s (%.1f/s)%n",
+				obtainers, total, elapsed, count / elapsed);
+			System.out.printf(Locale.ROOT, "Completed: %d, failed: %d, no keys after retries: %d%n",
+				count, failed.get(), exhausted.get());
+			System.out.printf(Locale.ROOT, "Latency: p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms%n",
+				percentileMs(latencies, count, 50.0), percentileMs(latencies, count, 90.0),
+				percentileMs(latencies, count, 99.0), percentileMs(latencies, count, 100.0));
+			System.out.printf(Locale.ROOT, "Server: %d requests, %d errors, %d throttled, %d empty keys%n",
+				server.requests(), server.errors(), server.throttled(), server.emptyKeys());
+		} finally {
+			WV.API.baseURI(null);
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,100 @@
+package sune.app.mediadown.drm.cenc;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import sune.app.mediadown.drm.util.MediaDecryptionKey;
+
+/**
+ * Compares the whole-file decryption throughput of the in-process decryption and
+ * of the mp4decrypt utility. The path to mp4decrypt is given by the {@code bench.mp4decrypt}
+ * system property, by default it is looked up in {@code PATH}.
+ * @author Sune
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "--add-modules", "jdk.incubator.vector" })
+public class DecryptionBenchmark {
+	
+	@Param({ "67108864", "268435456" })
+	public long size;
+	
+	/** Number of threads of the in-process decryption, zero means all the processors. */
+	@Param({ "1", "0" })
+	public int threads;
+	
+	@Param({ "CENC", "CBCS" })
+	public EncryptionScheme scheme;
+	
+	private Path dir;
+	private Path input;
+	private Path output;
+	private SyntheticContent content;
+	private List<MediaDecryptionKey> keys;
+	
+	@Setup(Level.Trial)
+	public void setup() throws IOException, GeneralSecurityException {
+		dir = Files.createTempDirectory("drm-bench");
+		input = dir.resolve("input.mp4");
+		output = dir.resolve("output.mp4");
+		content = new SyntheticContent.Builder().scheme(scheme).size(size).build();
+		keys = List.of(new MediaDecryptionKey(content.kid(1), content.key(1)));
+		content.writeFile(input, 1);
+	}
+	
+	@Setup(Level.Invocation)
+	public void deleteOutput() throws IOException {
+		// The in-process decryption would otherwise continue from its journal
+		CENCDecryptor.discard(output);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(input);
+		CENCDecryptor.discard(output);
+		Files.deleteIfExists(dir);
+	}
+	
+	@Benchmark
+	public boolean inProcess() throws Exception {
+		return CENCDecryptor.of(input).decrypt(output, keys, threads, () -> true);
+	}
+	
+	@Benchmark
+	public int mp4decrypt() throws Exception {
+		Process process = new ProcessBuilder(
+			System.getProperty("bench.mp4decrypt", "mp4decrypt"),
+			"--key", content.kid(1) + ":" + content.key(1),
+			input.toString(), output.toString()
+		).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+		
+		int exitCode = process.waitFor();
+		
+		if(exitCode != 0) {
+			throw new IllegalStateException("mp4decrypt failed with exit code " + exitCode);
+		}
+		
+		return exitCode;
+	}
+}
\ No newline at end of file
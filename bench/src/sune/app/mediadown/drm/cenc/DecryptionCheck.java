@@ -0,0 +1,168 @@
+package sune.app.mediadown.drm.cenc;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import sune.app.mediadown.drm.util.MediaDecryptionKey;
+
+/**
+ * Offline check of the decryption on synthetic content of any size, see {@link SyntheticContent}.
+ * Every track is generated, decrypted in-process and verified, and, if the path to
+ * mp4decrypt is given, decrypted and verified also by mp4decrypt. The arguments are
+ * given as {@code name=value} pairs:
+ * <ul>
+ * <li>{@code dir} - working directory, the system temporary directory by default,</li>
+ * <li>{@code size} - size of a track, with an optional K, M or G suffix, e.g. {@code 20G},</li>
+ * <li>{@code scheme} - one of {@code cenc}, {@code cens}, {@code cbc1} and {@code cbcs},</li>
+ * <li>{@code fragments}, {@code sampleSize}, {@code tracks}, {@code seed},</li>
+ * <li>{@code subsamples} and {@code clear} - subsample layout of every sample,</li>
+ * <li>{@code trafs} - number of track fragments per fragment, the data of all but the first
+ * one follow the data of the previous one,</li>
+ * <li>{@code baseTime} - decode time, in seconds, of the first fragment,</li>
+ * <li>{@code threads} - threads of the in-process decryption, all processors by default,</li>
+ * <li>{@code start} and {@code end} - clip, in seconds, to decrypt in-process instead
+ * of the whole track, relative to the first fragment, every fragment lasts one second,</li>
+ * <li>{@code mp4decrypt} - path to mp4decrypt,</li>
+ * <li>{@code dash} - if {@code true}, only the DASH segments and manifest are written.</li>
+ * </ul>
+ * @author Sune
+ */
+public final class DecryptionCheck {
+	
+	// Forbid anyone to create an instance of this class
+	private DecryptionCheck() {
+	}
+	
+	private static final long parseSize(String value) {
+		String upper = value.trim().toUpperCase(Locale.ROOT);
+		int shift = upper.endsWith("K") ? 10 : upper.endsWith("M") ? 20 : upper.endsWith("G") ? 30 : 0;
+		
+		if(shift != 0) {
+			upper = upper.substring(0, upper.length() - 1);
+		}
+		
+		return Long.parseLong(upper) << shift;
+	}
+	
+	private static final Map<String, String> parseArgs(String[] args) {
+		Map<String, String> values = new HashMap<>();
+		
+		for(String arg : args) {
+			int index = arg.indexOf('=');
+			
+			if(index <= 0) {
+				throw new IllegalArgumentException("Invalid argument: " + arg);
+			}
+			
+			values.put(arg.substring(0, index), arg.substring(index + 1));
+		}
+		
+		return values;
+	}
+	
+	private static final double throughput(long bytes, long nanos) {
+		return bytes / (nanos / 1e9) / 1e6;
+	}
+	
+	private static final void mp4decrypt(String path, SyntheticContent content, int track, Path input, Path output)
+			throws Exception {
+		Process process = new ProcessBuilder(
+			path, "--key", content.kid(track) + ":" + content.key(track), input.toString(), output.toString()
+		).inheritIO().start();
+		
+		if(process.waitFor() != 0) {
+			throw new IllegalStateException("mp4decrypt failed with exit code " + process.exitValue());
+		}
+	}
+	
+	public static final void main(String[] args) throws Exception {
+		Map<String, String> values = parseArgs(args);
+		Path dir = Path.of(values.getOrDefault("dir", System.getProperty("java.io.tmpdir")));
+		SyntheticContent content = new SyntheticContent.Builder()
+			.scheme(EncryptionScheme.valueOf(values.getOrDefault("scheme", "cenc").toUpperCase(Locale.ROOT)))
+			.size(parseSize(values.getOrDefault("size", "100M")))
+			.fragments(Integer.parseInt(values.getOrDefault("fragments", "0")))
+			.sampleSize((int) parseSize(values.getOrDefault("sampleSize", "16K")))
+			.subsamples(
+				Integer.parseInt(values.getOrDefault("subsamples", "0")),
+				Integer.parseInt(values.getOrDefault("clear", "0"))
+			)
+			.tracks(Integer.parseInt(values.getOrDefault("tracks", "1")))
+			.trackFragments(Integer.parseInt(values.getOrDefault("trafs", "1")))
+			.baseTime(Long.parseLong(values.getOrDefault("baseTime", "0")))
+			.seed(Long.parseLong(values.getOrDefault("seed", "0")))
+			.build();
+		
+		if(Boolean.parseBoolean(values.get("dash"))) {
+			System.out.println("Manifest: " + content.writeDASH(dir));
+			return;
+		}
+		
+		int threads = Integer.parseInt(values.getOrDefault("threads", "0"));
+		boolean isClip = values.containsKey("start") || values.containsKey("end");
+		double clipStart = Double.parseDouble(values.getOrDefault("start", "0"));
+		double clipEnd = values.containsKey("end") ? Double.parseDouble(values.get("end")) : Double.POSITIVE_INFINITY;
+		String mp4decrypt = values.get("mp4decrypt");
+		Files.createDirectories(dir);
+		
+		for(int track = 1; track <= content.tracks(); ++track) {
+			Path input = dir.resolve("synthetic-" + track + ".mp4");
+			Path output = dir.resolve("synthetic-" + track + ".dec.mp4");
+			List<MediaDecryptionKey> keys = List.of(new MediaDecryptionKey(content.kid(track), content.key(track)));
+			
+			try {
+				long start = System.nanoTime();
+				content.writeFile(input, track);
+				System.out.printf(Locale.ROOT, "Track %d: generated %d bytes (%s, %d fragments) in %.1f s%n",
+					track, Files.size(input), content.scheme(), content.fragments(),
+					(System.nanoTime() - start) / 1e9);
+				
+				CENCDecryptor.discard(output);
+				start = System.nanoTime();
+				
+				if(isClip) {
+					CENCDecryptor engine = CENCDecryptor.of(input);
+					List<Fragment> fragments = engine.timeline().covering(clipStart, clipEnd);
+					
+					if(fragments.isEmpty() || !engine.decrypt(output, keys, fragments, () -> true, (n) -> {})) {
+						throw new IllegalStateException("In-process decryption of the clip did not complete");
+					}
+					
+					long elapsed = System.nanoTime() - start;
+					content.verify(output, track, fragments.get(0).index() + 1,
+						fragments.get(fragments.size() - 1).index() + 1);
+					System.out.printf(Locale.ROOT, "Track %d: clip OK, %d of %d fragments, %d bytes, %.1f ms%n",
+						track, fragments.size(), content.fragments(), Files.size(output), elapsed / 1e6);
+					continue;
+				}
+				
+				if(!CENCDecryptor.of(input).decrypt(output, keys, threads, () -> true)) {
+					throw new IllegalStateException("In-process decryption did not complete");
+				}
+				
+				long elapsed = System.nanoTime() - start;
+				content.verify(output, track);
+				System.out.printf(Locale.ROOT, "Track %d: in-process OK, %.1f MB/s%n",
+					track, throughput(Files.size(input), elapsed));
+				
+				if(mp4decrypt != null) {
+					Files.deleteIfExists(output);
+					start = System.nanoTime();
+					mp4decrypt(mp4decrypt, content, track, input, output);
+					elapsed = System.nanoTime() - start;
+					content.verify(output, track);
+					System.out.printf(Locale.ROOT, "Track %d: mp4decrypt OK, %.1f MB/s%n",
+						track, throughput(Files.size(input), elapsed));
+				}
+			} finally {
+				Files.deleteIfExists(input);
+				FragmentIndexFile.delete(input);
+				CENCDecryptor.discard(output);
+			}
+		}
+	}
+}
\ No newline at end of file
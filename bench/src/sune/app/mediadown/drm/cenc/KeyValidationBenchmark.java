@@ -0,0 +1,94 @@
+package sune.app.mediadown.drm.cenc;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the validation of candidate keys in the same way as {@code DecryptionKeyObtainer}
+ * does it, i.e. by running FFmpeg with the {@code -decryption_key} option for each
+ * candidate key on the init segment and the first fragment, until one of them
+ * succeeds. The correct key is always the last candidate. The path to FFmpeg is
+ * given by the {@code bench.ffmpeg} system property, by default it is looked up
+ * in {@code PATH}.
+ * @author Sune
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyValidationBenchmark {
+	
+	@Param({ "1", "4" })
+	public int candidates;
+	
+	private Path dir;
+	private Path input;
+	private Path output;
+	private List<String> keys;
+	
+	@Setup(Level.Trial)
+	public void setup() throws IOException, GeneralSecurityException {
+		dir = Files.createTempDirectory("drm-bench");
+		input = dir.resolve("input.mp4");
+		output = dir.resolve("output.mp4");
+		new SyntheticContent.Builder().size(512L * 1024L).fragments(1).build().writeFile(input, 1);
+		
+		Random random = new Random(0L);
+		keys = new ArrayList<>(candidates);
+		
+		for(int i = 1; i < candidates; ++i) {
+			keys.add(String.format("%016x%016x", random.nextLong(), random.nextLong()));
+		}
+		
+		keys.add(SyntheticContent.KEY);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(input);
+		Files.deleteIfExists(output);
+		Files.deleteIfExists(dir);
+	}
+	
+	private final int validate(String key) throws Exception {
+		return new ProcessBuilder(
+			System.getProperty("bench.ffmpeg", "ffmpeg"),
+			"-y", "-hide_banner", "-xerror",
+			"-decryption_key", key,
+			"-i", input.toString(), output.toString()
+		).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start().waitFor();
+	}
+	
+	@Benchmark
+	public int ffmpeg() throws Exception {
+		for(int i = 0, l = keys.size(); i < l; ++i) {
+			if(validate(keys.get(i)) == 0) {
+				return i;
+			}
+		}
+		
+		return -1;
+	}
+}
\ No newline at end of file
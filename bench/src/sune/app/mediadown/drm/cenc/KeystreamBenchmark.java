@@ -0,0 +1,89 @@
+package sune.app.mediadown.drm.cenc;
+
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the ways of AES-CTR decryption of a single sample: the CTR mode of JCE,
+ * the bulk key stream with the scalar XOR, and the bulk key stream with the XOR
+ * using the Vector API, if available.
+ * @author Sune
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "--add-modules", "jdk.incubator.vector" })
+public class KeystreamBenchmark {
+	
+	@Param({ "1048576", "67108864" })
+	public int size;
+	
+	private byte[] data;
+	private byte[] keystream;
+	private SecretKeySpec key;
+	private IvParameterSpec iv;
+	private Cipher ctr;
+	private CTRKeystream bulk;
+	
+	@Setup(Level.Trial)
+	public void setup() throws GeneralSecurityException {
+		Random random = new Random(0L);
+		data = new byte[size];
+		keystream = new byte[size];
+		random.nextBytes(data);
+		random.nextBytes(keystream);
+		
+		byte[] bytes = new byte[16];
+		random.nextBytes(bytes);
+		key = new SecretKeySpec(bytes, "AES");
+		iv = new IvParameterSpec(new byte[16]);
+		ctr = Cipher.getInstance("AES/CTR/NoPadding");
+		bulk = new CTRKeystream();
+	}
+	
+	@Benchmark
+	public byte[] cipherUpdate() throws GeneralSecurityException {
+		ctr.init(Cipher.DECRYPT_MODE, key, iv);
+		ctr.update(data, 0, size, data, 0);
+		return data;
+	}
+	
+	@Benchmark
+	public byte[] bulkKeystream() throws GeneralSecurityException {
+		bulk.init(key, iv.getIV());
+		bulk.update(data, 0, size);
+		return data;
+	}
+	
+	@Benchmark
+	public byte[] xorScalar() {
+		KeystreamXor.xorScalar(data, 0, keystream, 0, size);
+		return data;
+	}
+	
+	@Benchmark
+	public byte[] xorVectorized() {
+		KeystreamXor.xor(data, 0, keystream, 0, size);
+		return data;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,607 @@
+package sune.app.mediadown.drm.cenc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Generator of fragmented MP4 content protected by the Common Encryption with known
+ * KIDs and keys, so that the decryption can be tested and measured without any real
+ * content and without network access. Each track is a single video track with random
+ * sample data. The content can be written either as a single file per track, or as
+ * init and media segments of all the tracks together with a DASH manifest.
+ * <p>
+ * The content is fully determined by its configuration, including the seed, therefore
+ * a decrypted file can be verified by generating the expected data again, see
+ * {@link #verify(Path, int)}, and no plain data have to be stored.</p>
+ * @author Sune
+ */
+public final class SyntheticContent {
+	
+	/** KID of the first track. */
+	public static final String KID = "abababababababababababababababab";
+	/** Key of the first track. */
+	public static final String KEY = "000102030405060708090a0b0c0d0e0f";
+	
+	private static final int BLOCK_SIZE = 16;
+	private static final int CRYPT_BYTE_BLOCK = 1;
+	private static final int SKIP_BYTE_BLOCK = 9;
+	private static final int TIMESCALE = 1000;
+	private static final byte[] WIDEVINE_SYSTEM_ID = DecryptionKeys.hexToBytes("edef8ba979d64acea3c827dcd51d21ed");
+	private static final byte[] CONSTANT_IV = DecryptionKeys.hexToBytes("101112131415161718191a1b1c1d1e1f");
+	
+	private final EncryptionScheme scheme;
+	private final int tracks;
+	private final int fragments;
+	private final int samplesPerFragment;
+	private final int sampleSize;
+	private final int subsamples;
+	private final int clearBytes;
+	private final int trackFragments;
+	private final long baseTime;
+	private final long seed;
+	
+	private SyntheticContent(EncryptionScheme scheme, int tracks, int fragments, int samplesPerFragment,
+			int sampleSize, int subsamples, int clearBytes, int trackFragments, long baseTime, long seed) {
+		this.scheme = scheme;
+		this.tracks = tracks;
+		this.fragments = fragments;
+		this.samplesPerFragment = samplesPerFragment;
+		this.sampleSize = sampleSize;
+		this.subsamples = subsamples;
+		this.clearBytes = clearBytes;
+		this.trackFragments = trackFragments;
+		this.baseTime = baseTime;
+		this.seed = seed;
+	}
+	
+	private static final byte[] box(String type, byte[]... parts) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int size = 8;
+		
+		for(byte[] part : parts) {
+			size += part.length;
+		}
+		
+		out.writeBytes(ints(size));
+		out.writeBytes(type.getBytes(StandardCharsets.US_ASCII));
+		
+		for(byte[] part : parts) {
+			out.writeBytes(part);
+		}
+		
+		return out.toByteArray();
+	}
+	
+	private static final byte[] fullBox(String type, int version, int flags, byte[]... parts) {
+		byte[][] all = new byte[parts.length + 1][];
+		all[0] = ints((version << 24) | flags);
+		System.arraycopy(parts, 0, all, 1, parts.length);
+		return box(type, all);
+	}
+	
+	private static final byte[] ints(int... values) {
+		ByteBuffer buf = ByteBuffer.allocate(4 * values.length);
+		
+		for(int value : values) {
+			buf.putInt(value);
+		}
+		
+		return buf.array();
+	}
+	
+	private static final String uuid(String hex) {
+		return String.join("-",
+			hex.substring(0, 8), hex.substring(8, 12), hex.substring(12, 16),
+			hex.substring(16, 20), hex.substring(20)
+		);
+	}
+	
+	/**
+	 * Gets the KID of the given track, the tracks are numbered from one.
+	 */
+	public String kid(int track) {
+		byte[] kid = DecryptionKeys.hexToBytes(KID);
+		kid[15] += track - 1;
+		return DecryptionKeys.bytesToHex(kid);
+	}
+	
+	/**
+	 * Gets the key of the given track, the tracks are numbered from one.
+	 */
+	public String key(int track) {
+		byte[] key = DecryptionKeys.hexToBytes(KEY);
+		
+		for(int i = 0; i < key.length; ++i) {
+			key[i] += (track - 1) * key.length;
+		}
+		
+		return DecryptionKeys.bytesToHex(key);
+	}
+	
+	private final int ivSize() {
+		// The cbcs scheme uses a constant IV, the CBC mode needs a whole block
+		return scheme == EncryptionScheme.CBCS ? 0 : scheme.isCBC() ? BLOCK_SIZE : 8;
+	}
+	
+	private final byte[] tenc(int track) {
+		byte[] kid = DecryptionKeys.hexToBytes(kid(track));
+		int pattern = scheme.usesPattern() ? (CRYPT_BYTE_BLOCK << 4) | SKIP_BYTE_BLOCK : 0;
+		byte[] fields = { 0, (byte) pattern, 1, (byte) ivSize() };
+		
+		if(ivSize() != 0) {
+			return fullBox("tenc", scheme.usesPattern() ? 1 : 0, 0, fields, kid);
+		}
+		
+		return fullBox("tenc", 1, 0, fields, kid, new byte[] { BLOCK_SIZE }, CONSTANT_IV);
+	}
+	
+	private final byte[] pssh(int track) {
+		// Widevine PSSH data with just the key_id field
+		byte[] data = new byte[2 + 16];
+		data[0] = 0x12;
+		data[1] = 16;
+		System.arraycopy(DecryptionKeys.hexToBytes(kid(track)), 0, data, 2, 16);
+		return fullBox("pssh", 0, 0, WIDEVINE_SYSTEM_ID, ints(data.length), data);
+	}
+	
+	private final byte[] init(int track) {
+		byte[] sinf = box("sinf",
+			box("frma", "avc1".getBytes(StandardCharsets.US_ASCII)),
+			fullBox("schm", 0, 0, ints(Box.fourcc(scheme.name().toLowerCase(Locale.ROOT)), 0x10000)),
+			box("schi", tenc(track))
+		);
+		byte[] entry = new byte[78];
+		entry[7] = 1; // Data reference index
+		byte[] encv = box("encv", entry, box("avcC", new byte[] { 1, 0x64, 0, 0x1f }), sinf);
+		byte[] stbl = box("stbl", fullBox("stsd", 0, 0, ints(1), encv));
+		byte[] trak = box("trak",
+			fullBox("tkhd", 0, 3, ints(0, 0, 1), new byte[72]),
+			box("mdia", fullBox("mdhd", 0, 0, ints(0, 0, TIMESCALE, 0), new byte[4]), box("minf", stbl))
+		);
+		byte[] mvex = box("mvex", fullBox("trex", 0, 0, ints(1, 1, 0, 0, 0)));
+		byte[] ftyp = box("ftyp", "isom".getBytes(StandardCharsets.US_ASCII), new byte[4]);
+		byte[] moov = box("moov", trak, mvex, pssh(track));
+		byte[] init = new byte[ftyp.length + moov.length];
+		System.arraycopy(ftyp, 0, init, 0, ftyp.length);
+		System.arraycopy(moov, 0, init, ftyp.length, moov.length);
+		return init;
+	}
+	
+	private final Random random(int track, int sequence) {
+		return new Random(seed ^ ((long) track << 40) ^ (sequence * 0x9e3779b97f4a7c15L));
+	}
+	
+	/**
+	 * Generates the plain data of all the samples of a fragment.
+	 */
+	private final byte[] plainData(Random random) {
+		byte[] data = new byte[samplesPerFragment * sampleSize];
+		random.nextBytes(data);
+		return data;
+	}
+	
+	/**
+	 * Gets the subsample entries, pairs of clear and protected byte counts, of a sample.
+	 */
+	private final int[] subsampleEntries() {
+		int[] entries = new int[2 * subsamples];
+		
+		if(subsamples == 0) {
+			return entries;
+		}
+		
+		int size = sampleSize / subsamples;
+		
+		for(int i = 0; i < subsamples; ++i) {
+			int part = i == subsamples - 1 ? sampleSize - i * size : size;
+			entries[2 * i] = Math.min(clearBytes, part);
+			entries[2 * i + 1] = part - entries[2 * i];
+		}
+		
+		return entries;
+	}
+	
+	private final void encryptRange(Cipher cipher, byte[] data, int offset, int length)
+			throws GeneralSecurityException {
+		if(!scheme.usesPattern()) {
+			int count = scheme.isCBC() ? length & -BLOCK_SIZE : length;
+			
+			if(count > 0) {
+				cipher.update(data, offset, count, data, offset);
+			}
+			
+			return;
+		}
+		
+		while(length >= BLOCK_SIZE) {
+			int count = Math.min(CRYPT_BYTE_BLOCK * BLOCK_SIZE, length & -BLOCK_SIZE);
+			cipher.update(data, offset, count, data, offset);
+			offset += count;
+			length -= count;
+			
+			count = Math.min(SKIP_BYTE_BLOCK * BLOCK_SIZE, length);
+			offset += count;
+			length -= count;
+		}
+	}
+	
+	private final void encryptSample(Cipher cipher, SecretKeySpec key, byte[] iv, byte[] data, int offset,
+			int[] entries) throws GeneralSecurityException {
+		IvParameterSpec ivSpec = new IvParameterSpec(iv);
+		cipher.init(Cipher.ENCRYPT_MODE, key, ivSpec);
+		
+		if(entries.length == 0) {
+			encryptRange(cipher, data, offset, sampleSize);
+			return;
+		}
+		
+		for(int i = 0; i < entries.length; i += 2) {
+			offset += entries[i];
+			
+			if(i > 0 && scheme.resetsIVPerSubsample()) {
+				cipher.init(Cipher.ENCRYPT_MODE, key, ivSpec);
+			}
+			
+			encryptRange(cipher, data, offset, entries[i + 1]);
+			offset += entries[i + 1];
+		}
+	}
+	
+	/**
+	 * Creates a track fragment of the given samples of a fragment. Only the first track
+	 * fragment has an explicit data offset, relative to the start of the movie fragment.
+	 * The data of any other track fragment follow the data of the previous one, since
+	 * it has neither a base data offset nor the default-base-is-moof flag.
+	 */
+	private final byte[] traf(int sequence, byte[] ivs, int[] entries, int first, int count, int dataOffset) {
+		boolean isFirst = first == 0;
+		ByteBuffer trun = ByteBuffer.allocate((isFirst ? 8 : 4) + 4 * count);
+		trun.putInt(count);
+		
+		if(isFirst) {
+			trun.putInt(dataOffset);
+		}
+		
+		for(int i = 0; i < count; ++i) {
+			trun.putInt(sampleSize);
+		}
+		
+		int ivSize = ivSize();
+		int entrySize = ivSize + (entries.length > 0 ? 2 + 3 * entries.length : 0);
+		ByteBuffer senc = ByteBuffer.allocate(4 + count * entrySize);
+		senc.putInt(count);
+		
+		for(int i = first; i < first + count; ++i) {
+			senc.put(ivs, i * ivSize, ivSize);
+			
+			if(entries.length > 0) {
+				senc.putShort((short) (entries.length / 2));
+				
+				for(int k = 0; k < entries.length; k += 2) {
+					senc.putShort((short) entries[k]).putInt(entries[k + 1]);
+				}
+			}
+		}
+		
+		return box("traf",
+			fullBox("tfhd", 0, isFirst ? 0x020000 : 0, ints(1)),
+			isFirst
+				? fullBox("tfdt", 1, 0, ByteBuffer.allocate(8).putLong((baseTime + sequence - 1L) * TIMESCALE).array())
+				: new byte[0],
+			fullBox("trun", 0, isFirst ? 0x201 : 0x200, trun.array()),
+			fullBox("senc", 0, entries.length > 0 ? 2 : 0, senc.array())
+		);
+	}
+	
+	private final byte[] moof(int sequence, byte[] ivs, int[] entries, int dataOffset) {
+		byte[][] parts = new byte[1 + trackFragments][];
+		parts[0] = fullBox("mfhd", 0, 0, ints(sequence));
+		
+		for(int t = 0, first = 0; t < trackFragments; ++t) {
+			int count = samplesPerFragment / trackFragments + (t < samplesPerFragment % trackFragments ? 1 : 0);
+			parts[1 + t] = traf(sequence, ivs, entries, first, count, dataOffset);
+			first += count;
+		}
+		
+		return box("moof", parts);
+	}
+	
+	/**
+	 * Writes a single fragment, i.e. a moof box followed by an mdat box, at the given position.
+	 * @return The number of written bytes.
+	 */
+	private final long writeFragment(FileChannel out, long position, int track, int sequence)
+			throws IOException, GeneralSecurityException {
+		Random random = random(track, sequence);
+		byte[] data = plainData(random);
+		int ivSize = ivSize();
+		byte[] ivs = new byte[samplesPerFragment * ivSize];
+		random.nextBytes(ivs);
+		
+		Cipher cipher = Cipher.getInstance(scheme.isCBC() ? "AES/CBC/NoPadding" : "AES/CTR/NoPadding");
+		SecretKeySpec key = new SecretKeySpec(DecryptionKeys.hexToBytes(key(track)), "AES");
+		int[] entries = subsampleEntries();
+		byte[] iv = new byte[BLOCK_SIZE];
+		
+		for(int i = 0; i < samplesPerFragment; ++i) {
+			if(ivSize == 0) {
+				System.arraycopy(CONSTANT_IV, 0, iv, 0, BLOCK_SIZE);
+			} else {
+				System.arraycopy(ivs, i * ivSize, iv, 0, ivSize);
+			}
+			
+			encryptSample(cipher, key, iv, data, i * sampleSize, entries);
+		}
+		
+		int moofSize = moof(sequence, ivs, entries, 0).length;
+		byte[] moof = moof(sequence, ivs, entries, moofSize + 8);
+		ByteBuffer header = ByteBuffer.allocate(8).putInt(8 + data.length)
+			.put("mdat".getBytes(StandardCharsets.US_ASCII)).flip();
+		
+		IO.writeFully(out, ByteBuffer.wrap(moof), position);
+		IO.writeFully(out, header, position + moof.length);
+		IO.writeFully(out, ByteBuffer.wrap(data), position + moof.length + 8);
+		return moof.length + 8L + data.length;
+	}
+	
+	private static final FileChannel create(Path path) throws IOException {
+		return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+			StandardOpenOption.TRUNCATE_EXISTING);
+	}
+	
+	/**
+	 * Writes the given track as a single file, i.e. the init segment followed by all
+	 * the fragments.
+	 */
+	public void writeFile(Path output, int track) throws IOException, GeneralSecurityException {
+		try(FileChannel out = create(output)) {
+			byte[] init = init(track);
+			IO.writeFully(out, ByteBuffer.wrap(init), 0L);
+			long position = init.length;
+			
+			for(int sequence = 1; sequence <= fragments; ++sequence) {
+				position += writeFragment(out, position, track, sequence);
+			}
+		}
+	}
+	
+	/**
+	 * Writes the init and media segments of all the tracks to the given directory,
+	 * together with a DASH manifest named {@code manifest.mpd} that references them.
+	 * @return The path of the manifest.
+	 */
+	public Path writeDASH(Path dir) throws IOException, GeneralSecurityException {
+		Files.createDirectories(dir);
+		
+		for(int track = 1; track <= tracks; ++track) {
+			Files.write(dir.resolve("init-" + track + ".mp4"), init(track));
+			
+			for(int sequence = 1; sequence <= fragments; ++sequence) {
+				try(FileChannel out = create(dir.resolve("segment-" + track + "-" + sequence + ".m4s"))) {
+					writeFragment(out, 0L, track, sequence);
+				}
+			}
+		}
+		
+		Path manifest = dir.resolve("manifest.mpd");
+		Files.writeString(manifest, manifest());
+		return manifest;
+	}
+	
+	private final String manifest() {
+		long bandwidth = (long) samplesPerFragment * sampleSize * 8L;
+		StringBuilder builder = new StringBuilder();
+		builder.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+			.append("<MPD xmlns=\"urn:mpeg:dash:schema:mpd:2011\" xmlns:cenc=\"urn:mpeg:cenc:2013\"")
+			.append(" type=\"static\" profiles=\"urn:mpeg:dash:profile:isoff-live:2011\"")
+			.append(" minBufferTime=\"PT2S\" mediaPresentationDuration=\"PT").append(fragments).append("S\">\n")
+			.append("\t<Period id=\"0\" start=\"PT0S\">\n")
+			.append("\t\t<AdaptationSet contentType=\"video\" mimeType=\"video/mp4\" segmentAlignment=\"true\">\n");
+		
+		for(int track = 1; track <= tracks; ++track) {
+			String pssh = Base64.getEncoder().encodeToString(pssh(track));
+			
+			builder.append("\t\t\t<Representation id=\"").append(track).append("\" codecs=\"avc1.64001f\"")
+				.append(" width=\"1280\" height=\"720\" bandwidth=\"").append(bandwidth * track).append("\">\n")
+				.append("\t\t\t\t<ContentProtection schemeIdUri=\"urn:mpeg:dash:mp4protection:2011\" value=\"")
+				.append(scheme.name().toLowerCase(Locale.ROOT)).append("\" cenc:default_KID=\"")
+				.append(uuid(kid(track))).append("\"/>\n")
+				.append("\t\t\t\t<ContentProtection schemeIdUri=\"urn:uuid:")
+				.append(uuid(DecryptionKeys.bytesToHex(WIDEVINE_SYSTEM_ID))).append("\">\n")
+				.append("\t\t\t\t\t<cenc:pssh>").append(pssh).append("</cenc:pssh>\n")
+				.append("\t\t\t\t</ContentProtection>\n")
+				.append("\t\t\t\t<SegmentTemplate timescale=\"").append(TIMESCALE).append("\" duration=\"")
+				.append(TIMESCALE).append("\" startNumber=\"1\"")
+				.append(" initialization=\"init-$RepresentationID$.mp4\"")
+				.append(" media=\"segment-$RepresentationID$-$Number$.m4s\"/>\n")
+				.append("\t\t\t</Representation>\n");
+		}
+		
+		return builder.append("\t\t</AdaptationSet>\n")
+			.append("\t</Period>\n")
+			.append("</MPD>\n")
+			.toString();
+	}
+	
+	/**
+	 * Verifies that the given file contains the decrypted data of the given track.
+	 * The file is expected to contain one mdat box per fragment, in order, as the files
+	 * produced by both the in-process decryption and mp4decrypt do.
+	 * @throws IllegalStateException If the file does not match.
+	 */
+	public void verify(Path decrypted, int track) throws IOException {
+		verify(decrypted, track, 1, fragments);
+	}
+	
+	/**
+	 * Verifies that the given file contains the decrypted data of just the given
+	 * range of fragments, inclusive, of the given track, e.g. of a clip. Every fragment
+	 * lasts one second, the first one starts at zero.
+	 * @throws IllegalStateException If the file does not match.
+	 */
+	public void verify(Path decrypted, int track, int first, int last) throws IOException {
+		try(FileChannel in = FileChannel.open(decrypted, StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(8);
+			ByteBuffer actual = ByteBuffer.allocate(samplesPerFragment * sampleSize);
+			long position = 0L;
+			long size = in.size();
+			int sequence = first - 1;
+			
+			while(position + 8 <= size) {
+				IO.readFully(in, header.clear(), position);
+				long boxSize = header.getInt(0) & 0xffffffffL;
+				
+				if(boxSize < 8) {
+					throw new IllegalStateException("Unsupported box at " + position);
+				}
+				
+				if(header.getInt(4) == Box.MDAT) {
+					if(++sequence > last || boxSize - 8 != actual.capacity()) {
+						throw new IllegalStateException("Unexpected mdat box at " + position);
+					}
+					
+					IO.readFully(in, actual.clear(), position + 8);
+					byte[] expected = plainData(random(track, sequence));
+					
+					if(!ByteBuffer.wrap(expected).equals(actual)) {
+						throw new IllegalStateException("Data of fragment " + sequence + " do not match");
+					}
+				}
+				
+				position += boxSize;
+			}
+			
+			if(sequence != last) {
+				throw new IllegalStateException("Expected " + (last - first + 1) + " fragments, found "
+					+ (sequence - first + 1));
+			}
+		}
+	}
+	
+	public EncryptionScheme scheme() { return scheme; }
+	public int tracks() { return tracks; }
+	public int fragments() { return fragments; }
+	/** Gets the size of the sample data of a single track, without any boxes. */
+	public long dataSize() { return (long) fragments * samplesPerFragment * sampleSize; }
+	
+	public static final class Builder {
+		
+		private static final long DEFAULT_FRAGMENT_SIZE = 2L * 1024L * 1024L;
+		
+		private EncryptionScheme scheme = EncryptionScheme.CENC;
+		private long size = 64L * 1024L * 1024L;
+		private int fragments;
+		private int sampleSize = 16 * 1024;
+		private int subsamples;
+		private int clearBytes;
+		private int tracks = 1;
+		private int trackFragments = 1;
+		private long baseTime;
+		private long seed;
+		
+		public Builder() {
+		}
+		
+		/** Sets the protection scheme, all the Common Encryption schemes are supported. */
+		public Builder scheme(EncryptionScheme scheme) {
+			this.scheme = scheme;
+			return this;
+		}
+		
+		/** Sets the approximate size of the sample data of a single track. */
+		public Builder size(long size) {
+			this.size = size;
+			return this;
+		}
+		
+		/** Sets the number of fragments, if not set, fragments of 2 MiB are used. */
+		public Builder fragments(int fragments) {
+			this.fragments = fragments;
+			return this;
+		}
+		
+		public Builder sampleSize(int sampleSize) {
+			this.sampleSize = sampleSize;
+			return this;
+		}
+		
+		/**
+		 * Splits every sample into the given number of subsamples of the same size, each
+		 * starting with the given number of clear bytes. If the number of subsamples is
+		 * zero, the samples have no subsample information and are protected as a whole.
+		 */
+		public Builder subsamples(int subsamples, int clearBytes) {
+			this.subsamples = subsamples;
+			this.clearBytes = clearBytes;
+			return this;
+		}
+		
+		public Builder tracks(int tracks) {
+			this.tracks = tracks;
+			return this;
+		}
+		
+		/**
+		 * Splits the samples of every fragment into the given number of track fragments
+		 * of the same track, whose data are located implicitly, one after another.
+		 */
+		public Builder trackFragments(int trackFragments) {
+			this.trackFragments = trackFragments;
+			return this;
+		}
+		
+		/**
+		 * Sets the decode time, in seconds, of the first fragment, e.g. to simulate
+		 * content derived from a live stream.
+		 */
+		public Builder baseTime(long baseTime) {
+			this.baseTime = baseTime;
+			return this;
+		}
+		
+		public Builder seed(long seed) {
+			this.seed = seed;
+			return this;
+		}
+		
+		public SyntheticContent build() {
+			if(scheme == null || size <= 0L || sampleSize <= 0 || tracks <= 0 || fragments < 0
+					|| trackFragments <= 0 || baseTime < 0L) {
+				throw new IllegalArgumentException("Invalid content configuration");
+			}
+			
+			if(subsamples < 0 || subsamples > sampleSize || clearBytes < 0 || clearBytes > 0xffff) {
+				throw new IllegalArgumentException("Invalid subsample layout");
+			}
+			
+			int numOfFragments = fragments > 0
+				? fragments
+				: (int) Math.max(1L, (size + DEFAULT_FRAGMENT_SIZE - 1) / DEFAULT_FRAGMENT_SIZE);
+			long fragmentSize = (size + numOfFragments - 1) / numOfFragments;
+			long samplesPerFragment = Math.max(trackFragments, (fragmentSize + sampleSize - 1) / sampleSize);
+			
+			if(samplesPerFragment * sampleSize > Integer.MAX_VALUE / 2) {
+				throw new IllegalArgumentException("Fragments too large, use more fragments");
+			}
+			
+			return new SyntheticContent(
+				scheme, tracks, numOfFragments, (int) samplesPerFragment, sampleSize, subsamples, clearBytes,
+				trackFragments, baseTime, seed
+			);
+		}
+	}
+}
\ No newline at end of file
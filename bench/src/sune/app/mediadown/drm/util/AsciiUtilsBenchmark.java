@@ -0,0 +1,42 @@
+package sune.app.mediadown.drm.util;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link AsciiUtils#tempPath(Path, String)} for an ASCII-only directory
+ * and for a directory with diacritics, that falls back to the temporary directory.
+ * @author Sune
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AsciiUtilsBenchmark {
+	
+	private final Path asciiDir = Path.of(System.getProperty("java.io.tmpdir"), "Videos", "Series", "Season 1");
+	private final Path nonAsciiDir = Path.of(System.getProperty("java.io.tmpdir"), "Videa", "Seriály", "Řada 1");
+	
+	@Benchmark
+	public Path asciiDir() throws IOException {
+		return AsciiUtils.tempPath(asciiDir, "video.mp4");
+	}
+	
+	@Benchmark
+	public Path nonAsciiDir() throws IOException {
+		return AsciiUtils.tempPath(nonAsciiDir, "video.mp4");
+	}
+}
\ No newline at end of file
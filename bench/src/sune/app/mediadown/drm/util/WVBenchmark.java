@@ -0,0 +1,102 @@
+package sune.app.mediadown.drm.util;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import sune.app.mediadown.drm.util.WV.API.LicenseKey;
+import sune.app.mediadown.drm.util.WV.API.LicenseRequest;
+import sune.app.mediadown.util.JSON;
+
+/**
+ * Measures the encoding of the requests to the WV API and the decoding of its
+ * responses, without any network communication.
+ * @author Sune
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WVBenchmark {
+	
+	/** Number of keys in the response of the extract endpoint. */
+	@Param({ "1", "16" })
+	public int keys;
+	
+	private String pssh;
+	private String licenseId;
+	private byte[] licenseResponse;
+	private byte[] generateResponse;
+	private byte[] extractResponse;
+	
+	private static final String hex(Random random) {
+		return String.format("%016x%016x", random.nextLong(), random.nextLong());
+	}
+	
+	@Setup(Level.Trial)
+	public void setup() {
+		Random random = new Random(0L);
+		Base64.Encoder base64 = Base64.getEncoder();
+		byte[] psshBytes = new byte[96];
+		byte[] requestBytes = new byte[2048];
+		licenseResponse = new byte[4096];
+		random.nextBytes(psshBytes);
+		random.nextBytes(requestBytes);
+		random.nextBytes(licenseResponse);
+		pssh = base64.encodeToString(psshBytes);
+		licenseId = hex(random);
+		
+		generateResponse = String.format(
+			"{\"id\":\"%s\",\"request\":\"%s\"}", licenseId, base64.encodeToString(requestBytes)
+		).getBytes(StandardCharsets.UTF_8);
+		
+		StringBuilder builder = new StringBuilder("{\"keys\":[");
+		
+		for(int i = 0; i < keys; ++i) {
+			if(i > 0) builder.append(',');
+			builder.append(String.format(
+				"{\"type\":\"CONTENT\",\"kid\":\"%s\",\"key\":\"%s\"}", hex(random), hex(random)
+			));
+		}
+		
+		extractResponse = builder.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+	}
+	
+	@Benchmark
+	public String encodeGenerate() {
+		return WV.API.generateBody(pssh).toString(true);
+	}
+	
+	@Benchmark
+	public LicenseRequest decodeGenerate() throws Exception {
+		return WV.API.parseLicenseRequest(JSON.read(new ByteArrayInputStream(generateResponse)));
+	}
+	
+	@Benchmark
+	public String encodeExtract() {
+		return WV.API.extractBody(licenseId, licenseResponse).toString(true);
+	}
+	
+	@Benchmark
+	public List<LicenseKey> decodeExtract() throws Exception {
+		return WV.API.parseLicenseKeys(JSON.read(new ByteArrayInputStream(extractResponse)));
+	}
+}
\ No newline at end of file
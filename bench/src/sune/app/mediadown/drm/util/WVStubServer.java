@@ -0,0 +1,313 @@
+package sune.app.mediadown.drm.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stub of the WV API ({@code /v1/generate} and {@code /v1/extract}) and of
+ * a license server ({@code /license}) that returns the configured keys, so that
+ * the key acquisition can be exercised without any remote service. All endpoints
+ * can be delayed, fail randomly, be throttled, and the extract endpoint can return
+ * no keys, see {@link Builder}.
+ * <p>
+ * The server does not depend on the application, therefore it can also be started
+ * on its own, see {@link #main(String[])}, and the application pointed at it using
+ * the {@code sune.app.mediadown.drm.wv.uri} system property.</p>
+ * @author Sune
+ */
+public final class WVStubServer implements AutoCloseable {
+	
+	private static final Pattern REGEX_STRING = Pattern.compile("\"(\\w+)\"\\s*:\\s*\"([^\"]*)\"");
+	private static final String LICENSE_PREFIX = "license:";
+	
+	private final List<String[]> keys;
+	private final Latency latency;
+	private final double errorRate;
+	private final double emptyKeysRate;
+	private final int maxConcurrentRequests;
+	private final Map<String, String> licenses = new ConcurrentHashMap<>();
+	private final AtomicInteger activeRequests = new AtomicInteger();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong throttled = new AtomicLong();
+	private final AtomicLong emptyKeys = new AtomicLong();
+	private final HttpServer server;
+	private final ExecutorService executor;
+	
+	private WVStubServer(List<String[]> keys, Latency latency, double errorRate, double emptyKeysRate,
+			int maxConcurrentRequests, int port) throws IOException {
+		this.keys = keys;
+		this.latency = latency;
+		this.errorRate = errorRate;
+		this.emptyKeysRate = emptyKeysRate;
+		this.maxConcurrentRequests = maxConcurrentRequests;
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		this.executor = Executors.newCachedThreadPool((r) -> {
+			Thread thread = new Thread(r, "WVStubServer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		
+		server.createContext("/v1/generate", (e) -> handle(e, this::generate));
+		server.createContext("/v1/extract", (e) -> handle(e, this::extract));
+		server.createContext("/license", (e) -> handle(e, this::license));
+		server.setExecutor(executor);
+		server.start();
+	}
+	
+	private static final Map<String, String> strings(byte[] body) {
+		Map<String, String> values = new ConcurrentHashMap<>();
+		Matcher matcher = REGEX_STRING.matcher(new String(body, StandardCharsets.UTF_8));
+		
+		while(matcher.find()) {
+			values.put(matcher.group(1), matcher.group(2));
+		}
+		
+		return values;
+	}
+	
+	private static final void respond(HttpExchange exchange, int status, String contentType, byte[] body)
+			throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+		
+		try(OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+	
+	private static final void respondJSON(HttpExchange exchange, int status, String json) throws IOException {
+		respond(exchange, status, "application/json", json.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	private final void handle(HttpExchange exchange, Handler handler) throws IOException {
+		requests.incrementAndGet();
+		
+		try(exchange) {
+			if(maxConcurrentRequests > 0 && activeRequests.incrementAndGet() > maxConcurrentRequests) {
+				throttled.incrementAndGet();
+				exchange.getResponseHeaders().set("Retry-After", "1");
+				respondJSON(exchange, 429, "{\"error\":\"Too many requests\"}");
+				return;
+			}
+			
+			Thread.sleep(latency.nextMs());
+			
+			if(ThreadLocalRandom.current().nextDouble() < errorRate) {
+				errors.incrementAndGet();
+				respondJSON(exchange, 500, "{\"error\":\"Injected error\"}");
+				return;
+			}
+			
+			handler.handle(exchange, exchange.getRequestBody().readAllBytes());
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} finally {
+			if(maxConcurrentRequests > 0) {
+				activeRequests.decrementAndGet();
+			}
+		}
+	}
+	
+	private final void generate(HttpExchange exchange, byte[] body) throws IOException {
+		String pssh = strings(body).get("pssh");
+		
+		if(pssh == null) {
+			respondJSON(exchange, 400, "{\"error\":\"Missing pssh\"}");
+			return;
+		}
+		
+		String id = UUID.randomUUID().toString().replace("-", "");
+		licenses.put(id, pssh);
+		// The license request just identifies the license, the license server echoes it back
+		String request = Base64.getEncoder().encodeToString((LICENSE_PREFIX + id).getBytes(StandardCharsets.UTF_8));
+		respondJSON(exchange, 200, "{\"id\":\"" + id + "\",\"request\":\"" + request + "\"}");
+	}
+	
+	private final void license(HttpExchange exchange, byte[] body) throws IOException {
+		respond(exchange, 200, "application/octet-stream", body);
+	}
+	
+	private final void extract(HttpExchange exchange, byte[] body) throws IOException {
+		Map<String, String> values = strings(body);
+		String id = values.get("id");
+		
+		if(id == null || licenses.remove(id) == null) {
+			respondJSON(exchange, 400, "{\"error\":\"Unknown license\"}");
+			return;
+		}
+		
+		StringBuilder builder = new StringBuilder("{\"keys\":[");
+		
+		if(ThreadLocalRandom.current().nextDouble() < emptyKeysRate) {
+			emptyKeys.incrementAndGet();
+		} else {
+			for(int i = 0, l = keys.size(); i < l; ++i) {
+				if(i > 0) builder.append(',');
+				builder.append("{\"type\":\"CONTENT\",\"kid\":\"").append(keys.get(i)[0])
+					.append("\",\"key\":\"").append(keys.get(i)[1]).append("\"}");
+			}
+		}
+		
+		respondJSON(exchange, 200, builder.append("]}").toString());
+	}
+	
+	/** Gets the base URI of the server. */
+	public URI uri() {
+		InetSocketAddress address = server.getAddress();
+		return URI.create("http://" + address.getHostString() + ":" + address.getPort() + "/");
+	}
+	
+	/** Gets the base URI of the WV API, see {@link WV.API#baseURI(URI)}. */
+	public URI apiURI() {
+		return uri().resolve("v1/");
+	}
+	
+	/** Gets the URI of the license endpoint. */
+	public URI licenseURI() {
+		return uri().resolve("license");
+	}
+	
+	public long requests() { return requests.get(); }
+	public long errors() { return errors.get(); }
+	public long throttled() { return throttled.get(); }
+	public long emptyKeys() { return emptyKeys.get(); }
+	
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+	
+	/**
+	 * Starts the server on its own. The optional arguments are the port and the keys
+	 * in the {@code kid:key} form.
+	 */
+	public static final void main(String[] args) throws Exception {
+		Builder builder = new Builder().port(args.length > 0 ? Integer.parseInt(args[0]) : 0);
+		
+		for(int i = 1; i < args.length; ++i) {
+			String[] parts = args[i].split(":", 2);
+			builder.addKey(parts[0], parts[1]);
+		}
+		
+		WVStubServer server = builder.build();
+		System.out.println("WV API: " + server.apiURI());
+		System.out.println("License: " + server.licenseURI());
+		Thread.currentThread().join();
+	}
+	
+	@FunctionalInterface
+	private static interface Handler {
+		
+		void handle(HttpExchange exchange, byte[] body) throws IOException;
+	}
+	
+	/**
+	 * Distribution of the latency of the responses.
+	 */
+	@FunctionalInterface
+	public static interface Latency {
+		
+		long nextMs();
+		
+		static Latency none() {
+			return () -> 0L;
+		}
+		
+		static Latency constant(long ms) {
+			return () -> ms;
+		}
+		
+		static Latency uniform(long minMs, long maxMs) {
+			return () -> ThreadLocalRandom.current().nextLong(minMs, maxMs + 1L);
+		}
+		
+		static Latency exponential(double meanMs) {
+			return () -> (long) (-meanMs * Math.log(1.0 - ThreadLocalRandom.current().nextDouble()));
+		}
+		
+		/** Log-normal distribution, i.e. mostly around the median with a long tail. */
+		static Latency logNormal(double medianMs, double sigma) {
+			return () -> (long) (medianMs * Math.exp(sigma * ThreadLocalRandom.current().nextGaussian()));
+		}
+	}
+	
+	public static final class Builder {
+		
+		private final List<String[]> keys = new ArrayList<>();
+		private Latency latency = Latency.none();
+		private double errorRate;
+		private double emptyKeysRate;
+		private int maxConcurrentRequests;
+		private int port;
+		
+		public Builder() {
+		}
+		
+		/** Adds a key returned in every license. */
+		public Builder addKey(String kid, String key) {
+			keys.add(new String[] { Objects.requireNonNull(kid), Objects.requireNonNull(key) });
+			return this;
+		}
+		
+		public Builder latency(Latency latency) {
+			this.latency = Objects.requireNonNull(latency);
+			return this;
+		}
+		
+		/** Sets the probability that a request fails with the status 500. */
+		public Builder errorRate(double errorRate) {
+			this.errorRate = errorRate;
+			return this;
+		}
+		
+		/** Sets the probability that the extract endpoint returns no keys. */
+		public Builder emptyKeysRate(double emptyKeysRate) {
+			this.emptyKeysRate = emptyKeysRate;
+			return this;
+		}
+		
+		/**
+		 * Sets the maximum number of requests handled at once, the other ones are
+		 * rejected with the status 429. If not positive, there is no limit.
+		 */
+		public Builder maxConcurrentRequests(int maxConcurrentRequests) {
+			this.maxConcurrentRequests = maxConcurrentRequests;
+			return this;
+		}
+		
+		/** Sets the port, if zero, a free one is used. */
+		public Builder port(int port) {
+			this.port = port;
+			return this;
+		}
+		
+		public WVStubServer build() throws IOException {
+			return new WVStubServer(
+				List.copyOf(keys), latency, errorRate, emptyKeysRate, maxConcurrentRequests, port
+			);
+		}
+	}
+}
\ No newline at end of file
@@ -1,6 +1,9 @@
 module sune.app.mediadown.drm {
 	// Internal modules
 	requires java.base;
+	requires java.management;
+	requires static jdk.jfr;
+	requires static jdk.httpserver;
 	requires transitive java.desktop;
 	// External modules (Other)
 	requires transitive ssdf2;
@@ -9,7 +12,10 @@ module sune.app.mediadown.drm {
 	requires transitive sune.util.load;
 	// Exports
 	exports sune.app.mediadown.drm;
+	exports sune.app.mediadown.drm.cenc;
 	exports sune.app.mediadown.drm.event;
+	exports sune.app.mediadown.drm.jfr;
+	exports sune.app.mediadown.drm.metrics;
 	exports sune.app.mediadown.drm.tracker;
 	exports sune.app.mediadown.drm.util;
 }
\ No newline at end of file
@@ -18,6 +18,9 @@ import sune.app.mediadown.download.InputStreamFactory;
 import sune.app.mediadown.drm.event.CheckEventContext;
 import sune.app.mediadown.drm.event.DRMBootstrapEvent;
 import sune.app.mediadown.drm.event.DownloadEventContext;
+import sune.app.mediadown.drm.jfr.BootstrapEvent;
+import sune.app.mediadown.drm.jfr.DRMEvents;
+import sune.app.mediadown.drm.metrics.DRMMetrics;
 import sune.app.mediadown.event.CheckEvent;
 import sune.app.mediadown.event.DownloadEvent;
 import sune.app.mediadown.event.Event;
@@ -110,6 +113,14 @@ public final class DRMBootstrap implements EventBindable<EventType> {
 		version.set(verRemote);
 	}
 	
+	private static final void stageDone(BootstrapEvent event, String stage, long start) {
+		DRMMetrics.bootstrap(stage, System.nanoTime() - start);
+		
+		if(event != null) {
+			event.end(null, null, null, stage, 0L);
+		}
+	}
+	
 	private final void doCleanup() throws Exception {
 		Plugin plugin = PluginLoaderContext.getContext().getPlugin().instance();
 		Version previous = MediaDownloader.Versions.get("drm_plugin");
@@ -132,14 +143,20 @@ public final class DRMBootstrap implements EventBindable<EventType> {
 			generateHashList(resFileChecker(versionRes), currentDir.resolve("res.sha1"), false);
 		}
 		
+		BootstrapEvent event = DRMEvents.bootstrap();
+		long start = System.nanoTime();
 		doCleanup();
+		stageDone(event, "cleanup", start);
 		
 		ResourceChecker checker = new ResourceChecker();
 		boolean checkIntegrity = MediaDownloader.configuration().isCheckResourcesIntegrity();
+		BootstrapEvent eventRes = DRMEvents.bootstrap();
+		long startRes = System.nanoTime();
 		Ignore.callVoid(
 			() -> checkRes(checker, currentDir, checkIntegrity),
 			MediaDownloader::errorDebug
 		);
+		stageDone(eventRes, "resources", startRes);
 	}
 	
 	public void error(Exception exception) {
@@ -193,6 +210,7 @@ public final class DRMBootstrap implements EventBindable<EventType> {
 			Objects.requireNonNull(uri);
 			Objects.requireNonNull(destination);
 			
+			BootstrapEvent event = DRMEvents.bootstrap();
 			// To be sure, delete the file first, so a fresh copy is downloaded.
 			NIO.deleteFile(destination);
 			NIO.createDir(destination.getParent());
@@ -224,6 +242,13 @@ public final class DRMBootstrap implements EventBindable<EventType> {
 				downloader.start(request, destination, DownloadConfiguration.ofDefault());
 			}
 			
+			long size = Files.size(destination);
+			DRMMetrics.resourceDownload(size);
+			
+			if(event != null) {
+				event.end(null, null, null, "download " + uri, size);
+			}
+			
 			return destination;
 		}
 		
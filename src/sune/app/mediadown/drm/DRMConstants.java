@@ -5,6 +5,14 @@ public final class DRMConstants {
 	public static final int MS_IN_SEC = 1000;
 	public static final int TIMEOUT   = 8000;
 	
+	/**
+	 * Names of the media metadata with the start and the end of the clip to decrypt,
+	 * either as a number of seconds or in the {@code [[hh:]mm:]ss[.fff]} form. If any
+	 * of them is present, only the fragments covering the clip are decrypted.
+	 */
+	public static final String METADATA_CLIP_START = "clipStart";
+	public static final String METADATA_CLIP_END   = "clipEnd";
+	
 	// Forbid anyone to create an instance of this class
 	private DRMConstants() {
 	}
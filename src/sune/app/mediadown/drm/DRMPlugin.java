@@ -1,9 +1,14 @@
 package sune.app.mediadown.drm;
 
+import static sune.app.mediadown.drm.util.Common.logDebug;
+
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.logging.Level;
 
 import sune.app.mediadown.MediaDownloader;
 import sune.app.mediadown.configuration.Configuration.ConfigurationProperty;
+import sune.app.mediadown.drm.metrics.MetricsExporter;
 import sune.app.mediadown.drm.util.Common;
 import sune.app.mediadown.plugin.Plugin;
 import sune.app.mediadown.plugin.PluginBase;
@@ -26,10 +31,27 @@ public final class DRMPlugin extends PluginBase {
 	// Default values of configuration properties
 	private static final int DEFAULT_KEYS_MAX_RETRY_ATTEMPTS = 5;
 	private static final int DEFAULT_WAIT_ON_RETRY_MS = 250;
+	private static final int DEFAULT_DECRYPTION_THREADS = 0; // Use the number of available processors
+	private static final boolean DEFAULT_FUSE_DECRYPTION = false;
+	private static final int DEFAULT_EVENT_COALESCING_WINDOW_MS = 100;
+	private static final int DEFAULT_MAX_CONCURRENT_DECRYPTIONS = 2;
+	private static final int DEFAULT_MAX_CONCURRENT_VALIDATIONS = 2;
+	private static final int DEFAULT_MAX_DECRYPTION_BANDWIDTH = 0; // Unlimited
+	private static final String DEFAULT_METRICS_FILE = ""; // Do not export to a file
+	private static final int DEFAULT_METRICS_EXPORT_INTERVAL_MS = 10000;
+	private static final int DEFAULT_METRICS_PORT = 0; // Do not start the endpoint
 	private static final boolean DEFAULT_ENABLE_LOGGING = false;
 	
 	private String translatedTitle;
 	private PluginConfiguration.Builder configuration;
+	private MetricsExporter metricsExporter;
+	
+	private final void closeMetricsExporter() throws Exception {
+		if(metricsExporter != null) {
+			metricsExporter.close();
+			metricsExporter = null;
+		}
+	}
 	
 	private final void initConfiguration() {
 		PluginConfiguration.Builder builder
@@ -44,10 +66,46 @@ public final class DRMPlugin extends PluginBase {
 			.inGroup(group)
 			.withDefaultValue(DEFAULT_WAIT_ON_RETRY_MS)
 			.withOrder(80));
+		builder.addProperty(ConfigurationProperty.ofInteger("decryptionThreads")
+			.inGroup(group)
+			.withDefaultValue(DEFAULT_DECRYPTION_THREADS)
+			.withOrder(90));
+		builder.addProperty(ConfigurationProperty.ofBoolean("fuseDecryption")
+			.inGroup(group)
+			.withDefaultValue(DEFAULT_FUSE_DECRYPTION)
+			.withOrder(95));
+		builder.addProperty(ConfigurationProperty.ofInteger("eventCoalescingWindowMs")
+			.inGroup(group)
+			.withDefaultValue(DEFAULT_EVENT_COALESCING_WINDOW_MS)
+			.withOrder(97));
+		builder.addProperty(ConfigurationProperty.ofInteger("maxConcurrentDecryptions")
+			.inGroup(group)
+			.withDefaultValue(DEFAULT_MAX_CONCURRENT_DECRYPTIONS)
+			.withOrder(98));
+		builder.addProperty(ConfigurationProperty.ofInteger("maxConcurrentValidations")
+			.inGroup(group)
+			.withDefaultValue(DEFAULT_MAX_CONCURRENT_VALIDATIONS)
+			.withOrder(99));
+		builder.addProperty(ConfigurationProperty.ofInteger("maxDecryptionBandwidth")
+			.inGroup(group)
+			.withDefaultValue(DEFAULT_MAX_DECRYPTION_BANDWIDTH)
+			.withOrder(100));
+		builder.addProperty(ConfigurationProperty.ofString("metricsFile")
+			.inGroup(group)
+			.withDefaultValue(DEFAULT_METRICS_FILE)
+			.withOrder(102));
+		builder.addProperty(ConfigurationProperty.ofInteger("metricsExportIntervalMs")
+			.inGroup(group)
+			.withDefaultValue(DEFAULT_METRICS_EXPORT_INTERVAL_MS)
+			.withOrder(104));
+		builder.addProperty(ConfigurationProperty.ofInteger("metricsPort")
+			.inGroup(group)
+			.withDefaultValue(DEFAULT_METRICS_PORT)
+			.withOrder(106));
 		builder.addProperty(ConfigurationProperty.ofBoolean("enableLogging")
 			.inGroup(group)
 			.withDefaultValue(DEFAULT_ENABLE_LOGGING)
-			.withOrder(100));
+			.withOrder(110));
 		
 		configuration = builder;
 	}
@@ -61,7 +119,8 @@ public final class DRMPlugin extends PluginBase {
 	
 	@Override
 	public void dispose() throws Exception {
-		// Do nothing
+		closeMetricsExporter();
+		Common.dispose();
 	}
 	
 	@Override
@@ -69,6 +128,25 @@ public final class DRMPlugin extends PluginBase {
 		PluginConfiguration configuration = getContext().getConfiguration();
 		boolean loggingEnabled = configuration.booleanValue("enableLogging");
 		Common.initialize(loggingEnabled ? Level.ALL : Level.OFF);
+		
+		// The configuration may be built again, do not keep the previous exporter running
+		closeMetricsExporter();
+		String metricsFile = configuration.stringValue("metricsFile");
+		int metricsPort = configuration.intValue("metricsPort");
+		
+		if((metricsFile != null && !metricsFile.isBlank()) || metricsPort > 0) {
+			try {
+				metricsExporter = new MetricsExporter.Builder()
+					.file(metricsFile != null && !metricsFile.isBlank() ? Path.of(metricsFile) : null)
+					.intervalMs(Math.max(1000, configuration.intValue("metricsExportIntervalMs")))
+					.port(metricsPort)
+					.build();
+			} catch(IOException ex) {
+				// Not critical, e.g. the port is already in use, just continue without metrics
+				logDebug("Unable to start metrics export: %s", ex.getMessage());
+				metricsExporter = null;
+			}
+		}
 	}
 	
 	@Override
@@ -2,10 +2,13 @@ package sune.app.mediadown.drm;
 
 public final class DRMProgressStates {
 	
-	public static final String EXTRACT_PSSH  = "tr(plugin:drm, states.extract_pssh)";
-	public static final String OBTAIN_KEYS   = "tr(plugin:drm, states.obtain_keys)";
-	public static final String DECRYPT_VIDEO = "tr(plugin:drm, states.decrypt_video)";
-	public static final String DECRYPT_AUDIO = "tr(plugin:drm, states.decrypt_audio)";
+	public static final String EXTRACT_PSSH        = "tr(plugin:drm, states.extract_pssh)";
+	public static final String OBTAIN_KEYS         = "tr(plugin:drm, states.obtain_keys)";
+	public static final String DECRYPT_VIDEO       = "tr(plugin:drm, states.decrypt_video)";
+	public static final String DECRYPT_AUDIO       = "tr(plugin:drm, states.decrypt_audio)";
+	public static final String DECRYPT_VIDEO_AUDIO = "tr(plugin:drm, states.decrypt_video_audio)";
+	public static final String DECRYPT_CONVERT     = "tr(plugin:drm, states.decrypt_convert)";
+	public static final String QUEUED              = "tr(plugin:drm, states.queued)";
 	
 	// Forbid anyone to create an instance of this class
 	private DRMProgressStates() {
@@ -0,0 +1,233 @@
+package sune.app.mediadown.drm;
+
+import static sune.app.mediadown.drm.util.Common.logDebug;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Process-wide scheduler of the DRM work of all pipelines. The number of running
+ * decryptions (CPU-bound work) and validation processes (FFmpeg runs used to find
+ * the correct key) is limited, as well as the total decryption bandwidth. Waiting
+ * pipelines are served in a round-robin manner, so that a pipeline with many tracks
+ * cannot starve the others.
+ * @author Sune
+ */
+public final class DRMScheduler {
+	
+	private static final DRMScheduler INSTANCE = new DRMScheduler();
+	
+	/** Maximum time of a single wait, so that cancellation is noticed in time. */
+	private static final long CHECK_INTERVAL_MS = 100L;
+	
+	private final Limiter decryptions = new Limiter("decryption", 2);
+	private final Limiter validations = new Limiter("validation", 2);
+	private final Bandwidth bandwidth = new Bandwidth();
+	
+	// Forbid anyone to create an instance of this class
+	private DRMScheduler() {
+	}
+	
+	public static final DRMScheduler instance() {
+		return INSTANCE;
+	}
+	
+	/**
+	 * Updates the limits of the scheduler. Non-positive values of the number of
+	 * decryptions and validations mean no limit, as well as a non-positive bandwidth.
+	 */
+	public void configure(int maxDecryptions, int maxValidations, long maxBandwidthBytesPerSecond) {
+		decryptions.permits(maxDecryptions);
+		validations.permits(maxValidations);
+		bandwidth.rate(maxBandwidthBytesPerSecond);
+	}
+	
+	/**
+	 * Waits for a decryption slot of the given pipeline.
+	 * @return The permit to close when the decryption ends, or {@code null}, if cancelled.
+	 */
+	public Permit acquireDecryption(Object pipeline, BooleanSupplier isCancelled) throws InterruptedException {
+		return decryptions.acquire(pipeline, isCancelled);
+	}
+	
+	/**
+	 * Waits for a validation process slot of the given pipeline.
+	 * @return The permit to close when the process ends, or {@code null}, if cancelled.
+	 */
+	public Permit acquireValidation(Object pipeline, BooleanSupplier isCancelled) throws InterruptedException {
+		return validations.acquire(pipeline, isCancelled);
+	}
+	
+	/**
+	 * Blocks the current thread, if necessary, so that the total bandwidth of all
+	 * the decryptions does not exceed the limit.
+	 */
+	public void throttle(long bytes) throws InterruptedException {
+		long waitNs = bandwidth.reserve(bytes);
+		
+		if(waitNs > 0L) {
+			Thread.sleep(waitNs / 1000000L, (int) (waitNs % 1000000L));
+		}
+	}
+	
+	public final class Permit implements AutoCloseable {
+		
+		private final Limiter limiter;
+		private final long waitTime;
+		private boolean closed;
+		
+		private Permit(Limiter limiter, long waitTime) {
+			this.limiter = limiter;
+			this.waitTime = waitTime;
+		}
+		
+		/**
+		 * Gets the time spent waiting in the queue, in nanoseconds.
+		 */
+		public long waitTime() {
+			return waitTime;
+		}
+		
+		@Override
+		public void close() {
+			synchronized(limiter) {
+				if(closed) {
+					return; // Already released
+				}
+				
+				closed = true;
+				limiter.release();
+			}
+		}
+	}
+	
+	private static final class Waiter {
+		
+		boolean granted;
+	}
+	
+	private final class Limiter {
+		
+		private final String name;
+		private final Map<Object, ArrayDeque<Waiter>> queues = new LinkedHashMap<>();
+		private int permits;
+		private int used;
+		
+		Limiter(String name, int permits) {
+			this.name = name;
+			this.permits = permits;
+		}
+		
+		private final boolean isAvailable() {
+			return permits <= 0 || used < permits;
+		}
+		
+		private final void grantNext() {
+			while(isAvailable() && !queues.isEmpty()) {
+				// Take the pipeline that waits the longest and move it to the end,
+				// so that the pipelines take turns.
+				Iterator<Map.Entry<Object, ArrayDeque<Waiter>>> it = queues.entrySet().iterator();
+				Map.Entry<Object, ArrayDeque<Waiter>> entry = it.next();
+				it.remove();
+				
+				ArrayDeque<Waiter> queue = entry.getValue();
+				Waiter waiter = queue.poll();
+				waiter.granted = true;
+				++used;
+				
+				if(!queue.isEmpty()) {
+					queues.put(entry.getKey(), queue);
+				}
+			}
+			
+			notifyAll();
+		}
+		
+		private final void remove(Object pipeline, Waiter waiter) {
+			ArrayDeque<Waiter> queue = queues.get(pipeline);
+			
+			if(queue != null && queue.remove(waiter) && queue.isEmpty()) {
+				queues.remove(pipeline);
+			}
+		}
+		
+		synchronized void permits(int permits) {
+			this.permits = permits;
+			grantNext();
+		}
+		
+		synchronized Permit acquire(Object pipeline, BooleanSupplier isCancelled) throws InterruptedException {
+			long start = System.nanoTime();
+			
+			if(isAvailable() && queues.isEmpty()) {
+				++used;
+				return new Permit(this, 0L);
+			}
+			
+			Waiter waiter = new Waiter();
+			queues.computeIfAbsent(pipeline, (k) -> new ArrayDeque<>()).add(waiter);
+			logDebug("Waiting for a %s slot (used: %d, limit: %d)", name, used, permits);
+			
+			try {
+				while(!waiter.granted) {
+					if(isCancelled.getAsBoolean()) {
+						remove(pipeline, waiter);
+						return null;
+					}
+					
+					wait(CHECK_INTERVAL_MS);
+				}
+			} catch(InterruptedException ex) {
+				if(waiter.granted) {
+					release();
+				} else {
+					remove(pipeline, waiter);
+				}
+				
+				throw ex; // Propagate
+			}
+			
+			long waitTime = System.nanoTime() - start;
+			logDebug("Got a %s slot after %d ms", name, waitTime / 1000000L);
+			return new Permit(this, waitTime);
+		}
+		
+		synchronized void release() {
+			--used;
+			grantNext();
+		}
+	}
+	
+	private static final class Bandwidth {
+		
+		private long rate;
+		private long nextFreeTime;
+		
+		synchronized void rate(long bytesPerSecond) {
+			rate = bytesPerSecond;
+		}
+		
+		/**
+		 * Reserves the given number of bytes and returns the time to wait before
+		 * they can be processed, in nanoseconds.
+		 */
+		synchronized long reserve(long bytes) {
+			if(rate <= 0L) {
+				return 0L;
+			}
+			
+			long now = System.nanoTime();
+			
+			if(nextFreeTime - now < 0L) {
+				nextFreeTime = now;
+			}
+			
+			long waitTime = nextFreeTime - now;
+			nextFreeTime += (long) (bytes * 1e9 / rate);
+			return waitTime;
+		}
+	}
+}
\ No newline at end of file
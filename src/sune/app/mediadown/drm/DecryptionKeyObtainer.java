@@ -3,8 +3,12 @@ package sune.app.mediadown.drm;
 import static sune.app.mediadown.drm.util.Common.logDebug;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.stream.Collectors;
 
@@ -21,11 +25,19 @@ import sune.app.mediadown.download.FileDownloader;
 import sune.app.mediadown.download.segment.FileSegment;
 import sune.app.mediadown.drm.event.DecryptionContext;
 import sune.app.mediadown.drm.event.DecryptionEvent;
+import sune.app.mediadown.drm.jfr.DRMEvents;
+import sune.app.mediadown.drm.jfr.KeyAcquisitionEvent;
+import sune.app.mediadown.drm.jfr.KeyTrialEvent;
+import sune.app.mediadown.drm.jfr.LicenseRequestEvent;
+import sune.app.mediadown.drm.jfr.PSSHExtractionEvent;
+import sune.app.mediadown.drm.jfr.SegmentDownloadEvent;
+import sune.app.mediadown.drm.metrics.DRMMetrics;
 import sune.app.mediadown.drm.tracker.DecryptionProcessState;
 import sune.app.mediadown.drm.tracker.DecryptionProcessTracker;
 import sune.app.mediadown.drm.util.Common;
 import sune.app.mediadown.drm.util.Common.ProcessListener;
 import sune.app.mediadown.drm.util.MediaDecryptionKey;
+import sune.app.mediadown.drm.util.MediaDecryptionKeys;
 import sune.app.mediadown.drm.util.PSSH;
 import sune.app.mediadown.drm.util.WV;
 import sune.app.mediadown.drm.util.WV.API.LicenseKey;
@@ -68,8 +80,10 @@ public final class DecryptionKeyObtainer implements DecryptionContext {
 	
 	private Exception exception;
 	
-	private MediaDecryptionKey keyVideo;
-	private MediaDecryptionKey keyAudio;
+	private MediaDecryptionKeys keys;
+	private DecryptionProcessTracker decryptTracker;
+	private String engineName;
+	private int validationSpawns;
 	
 	public DecryptionKeyObtainer(Media media, Path destination, int keysMaxRetryAttempts, int waitOnRetryMs) {
 		this.media = Objects.requireNonNull(media);
@@ -102,7 +116,7 @@ public final class DecryptionKeyObtainer implements DecryptionContext {
 		);
 	}
 	
-	private static final List<Media> segmentedMedia(Media media) {
+	static final List<Media> segmentedMedia(Media media) {
 		return MediaUtils.filterRecursive(media, conditionIsSegmentedAndNotSubtitles());
 	}
 	
@@ -116,6 +130,10 @@ public final class DecryptionKeyObtainer implements DecryptionContext {
 		return state.is(TaskStates.RUNNING);
 	}
 	
+	private final boolean isCancelled() {
+		return !state.is(TaskStates.RUNNING) && !state.is(TaskStates.PAUSED);
+	}
+	
 	private final MediaProtection extractWidevinePSSH(List<MediaProtection> protections) {
 		return protections.stream()
 					.filter((p) -> p.type() == MediaProtectionType.DRM_WIDEVINE)
@@ -123,10 +141,26 @@ public final class DecryptionKeyObtainer implements DecryptionContext {
 					.findFirst().orElse(null);
 	}
 	
-	private final Media protectedMediaOfType(List<Media> mediaSingles, MediaType type) {
+	private final List<Media> protectedMediaOfType(List<Media> mediaSingles, MediaType type) {
 		return mediaSingles.stream()
 					.filter((m) -> m.type().is(type) && m.metadata().isProtected())
-					.findFirst().orElse(null);
+					.collect(Collectors.toList());
+	}
+	
+	private final ProtectedTrack protectedTrack(Media media, String type, int index) {
+		List<? extends FileSegment> segments = ((SegmentedMedia) media).segments().segments();
+		String name = index == 0 ? type : type + '.' + index;
+		
+		if(segments == null) {
+			throw new IllegalStateException("Media (" + name + ") must be segmented");
+		}
+		
+		Path path = destination.resolveSibling(destination.getFileName() + "." + name + ".seg");
+		return new ProtectedTrack(name, media, path, segments);
+	}
+	
+	private static final String mediaId(Media media) {
+		return media != null ? String.valueOf(media.metadata().sourceURI()) : null;
 	}
 	
 	private final PSSH extractPSSH(Media media) {
@@ -167,8 +201,8 @@ public final class DecryptionKeyObtainer implements DecryptionContext {
 		return FFmpeg.Command.builder((FFmpeg.Command) builder.build());
 	}
 	
-	private final MediaDecryptionKey filterDecryptionKey(Path input, List<MediaDecryptionKey> keys)
-			throws Exception {
+	private final MediaDecryptionKey filterDecryptionKey(Path input, List<MediaDecryptionKey> keys,
+			String trackType) throws Exception {
 		Metadata metadataInput = Metadata.of("noExplicitFormat", true);
 		Path output = NIO.tempFile(input.getFileName().toString(), ".dec");
 		
@@ -179,17 +213,29 @@ public final class DecryptionKeyObtainer implements DecryptionContext {
 			.addOptions(Option.ofShort("xerror")); // Fail immediately
 		
 		try {
-			for(MediaDecryptionKey key : keys) {
+			for(int i = 0, l = keys.size(); i < l; ++i) {
+				MediaDecryptionKey key = keys.get(i);
 				// Use FFmpeg decryption_key flag to check whether a initial segment and the next
 				// segment together can be decrypted using the specific key. If it fails the key
 				// is not the correct one and the FFmpeg will return a non-zero exit code, otherwise
 				// the key is correct and we can return it. Note that this method returns just one
-				// key, so media with multiple decryption keys are not supported.
+				// key, the other keys are kept by the caller for content with multiple KIDs.
 				int retval = -1;
 				
 				logDebug("Trying key: <%s:%s>", key.kid(), key.key());
 				
+				// Limit the number of FFmpeg processes of all the pipelines running at once
+				DRMScheduler.Permit permit = DRMScheduler.instance().acquireValidation(this, this::isCancelled);
+				
+				if(permit == null) {
+					return null; // Cancelled while waiting
+				}
+				
+				decryptTracker.queueWaited(permit.waitTime());
+				KeyTrialEvent event = DRMEvents.keyTrial();
+				
 				try(
+					permit;
 					ProcessListener listener = Common.newProcessListener("ffmpeg");
 					ReadOnlyProcess process = FFmpeg.createAsynchronousProcess(listener)
 				) {
@@ -200,6 +246,7 @@ public final class DecryptionKeyObtainer implements DecryptionContext {
 					String cmd = command.toString();
 					logDebug("ffmpeg %s", cmd);
 					
+					++validationSpawns;
 					process.execute(cmd);
 					retval = process.waitFor();
 				} catch(IOException ex) {
@@ -215,6 +262,10 @@ public final class DecryptionKeyObtainer implements DecryptionContext {
 				
 				logDebug("Exit code: %d", retval);
 				
+				if(event != null) {
+					event.end(mediaId(media), engineName, trackType, i + 1, l, retval == 0);
+				}
+				
 				if(retval == 0) {
 					return key;
 				}
@@ -227,7 +278,8 @@ public final class DecryptionKeyObtainer implements DecryptionContext {
 	}
 	
 	private final MediaDecryptionKey correctDecryptionKey(Path output,
-			List<? extends FileSegment> segments, List<MediaDecryptionKey> keys, String keyId) throws Exception {
+			List<? extends FileSegment> segments, List<MediaDecryptionKey> keys, String keyId, String trackType)
+			throws Exception {
 		if(keys == null || keys.isEmpty()) {
 			// Null indicates failure
 			return null;
@@ -262,8 +314,14 @@ public final class DecryptionKeyObtainer implements DecryptionContext {
 		Path tempOutput = null;
 		
 		try(FileDownloader downloader = new FileDownloader(new TrackerManager())) {
+			SegmentDownloadEvent event = DRMEvents.segmentDownload();
 			tempOutput = downloadTestSegments(downloader, output, segments, numOfSegments);
-			MediaDecryptionKey foundKey = filterDecryptionKey(tempOutput, keys);
+			
+			if(event != null && event.shouldCommit()) {
+				event.end(mediaId(media), engineName, trackType, numOfSegments, Files.size(tempOutput));
+			}
+			
+			MediaDecryptionKey foundKey = filterDecryptionKey(tempOutput, keys, trackType);
 			
 			if(foundKey == null || isKeyIdPresent) {
 				return foundKey;
@@ -278,13 +336,26 @@ public final class DecryptionKeyObtainer implements DecryptionContext {
 		}
 	}
 	
-	private final void waitRetry(int attempt) throws InterruptedException {
+	private static final List<MediaDecryptionKey> trackKeys(MediaDecryptionKey key, List<MediaDecryptionKey> keys) {
+		List<MediaDecryptionKey> trackKeys = new ArrayList<>(keys.size());
+		trackKeys.add(key); // The correct key is always the first one
+		
+		for(MediaDecryptionKey other : keys) {
+			if(!other.kid().equals(key.kid())) {
+				trackKeys.add(other);
+			}
+		}
+		
+		return trackKeys;
+	}
+	
+	private static final void waitRetry(int waitOnRetryMs, int attempt) throws InterruptedException {
 		int waitMs = (int) (waitOnRetryMs * Math.pow(attempt, 4.0 / 3.0));
 		Thread.sleep(waitMs); // Simple wait
 	}
 	
-	private final List<MediaDecryptionKey> obtainDecryptionKeys(DRMResolver resolver, Media media, String pssh)
-			throws Exception {
+	private static final List<MediaDecryptionKey> obtainDecryptionKeys(DRMResolver resolver, Media media,
+			String pssh, String engine, String trackType, int attempt) throws Exception {
 		LicenseRequest licenseRequest = WV.API.generateLicenseRequest(pssh);
 		
 		if(!licenseRequest.isValid()) {
@@ -298,13 +369,22 @@ public final class DecryptionKeyObtainer implements DecryptionContext {
 		}
 		
 		List<LicenseKey> licenseKeys;
+		LicenseRequestEvent event = DRMEvents.licenseRequest();
+		byte[] license = null;
+		long start = System.nanoTime();
+		
 		try(Response.OfStream licenseResponse = Web.requestStream(request)) {
-			licenseKeys = WV.API.extractLicenseKeys(
-				licenseRequest.id(),
-				licenseResponse.stream().readAllBytes()
-			);
+			license = licenseResponse.stream().readAllBytes();
+		} finally {
+			DRMMetrics.licenseRequest(engine, System.nanoTime() - start, license != null);
+		}
+		
+		if(event != null) {
+			event.end(mediaId(media), engine, trackType, attempt, license.length);
 		}
 		
+		licenseKeys = WV.API.extractLicenseKeys(licenseRequest.id(), license);
+		
 		if(licenseKeys == null || licenseKeys.isEmpty()) {
 			// Do not throw an exception here, but allow a retry.
 			return null;
@@ -316,26 +396,44 @@ public final class DecryptionKeyObtainer implements DecryptionContext {
 			.collect(Collectors.toList());
 	}
 	
-	private final List<MediaDecryptionKey> decryptionKeys(DRMResolver resolver, Media media, String pssh)
-			throws Exception {
+	/**
+	 * Obtains the decryption keys from the license of the given PSSH, retrying with
+	 * a growing wait if the license contains no keys.
+	 * @return The keys, or {@code null}, if no keys were obtained in any attempt.
+	 */
+	static final List<MediaDecryptionKey> decryptionKeys(DRMResolver resolver, Media media, String pssh,
+			String engine, String trackType, int keysMaxRetryAttempts, int waitOnRetryMs) throws Exception {
 		int attempt = 0;
 		
 		do {
-			List<MediaDecryptionKey> keys = obtainDecryptionKeys(resolver, media, pssh);
+			KeyAcquisitionEvent event = DRMEvents.keyAcquisition();
+			List<MediaDecryptionKey> keys = null;
+			
+			try {
+				keys = obtainDecryptionKeys(resolver, media, pssh, engine, trackType, attempt + 1);
+			} finally {
+				if(event != null) {
+					event.end(mediaId(media), engine, trackType, attempt + 1, keys != null ? keys.size() : 0);
+				}
+			}
 			
 			if(keys != null && !keys.isEmpty()) {
 				return keys;
 			}
 			
-			waitRetry(attempt + 1); // Wait a little
+			if(attempt < keysMaxRetryAttempts) {
+				DRMMetrics.keyRetry(engine);
+			}
+			
+			waitRetry(waitOnRetryMs, attempt + 1); // Wait a little
 		} while(++attempt <= keysMaxRetryAttempts);
 		
+		DRMMetrics.keyAcquisitionFailed(engine);
 		return null;
 	}
 	
-	private final void setKeys(MediaDecryptionKey keyVideo, MediaDecryptionKey keyAudio) {
-		this.keyVideo = keyVideo;
-		this.keyAudio = keyAudio;
+	private final void setKeys(MediaDecryptionKeys keys) {
+		this.keys = keys;
 	}
 	
 	public void start() throws Exception {
@@ -369,47 +467,47 @@ public final class DecryptionKeyObtainer implements DecryptionContext {
 				throw new IllegalStateException("DRM engine not found");
 			}
 			
-			List<Media> inputMedia = segmentedMedia(media);
-			Media video = null;
-			Media audio = null;
+			engineName = engine.getClass().getSimpleName();
 			
-			video = protectedMediaOfType(inputMedia, MediaType.VIDEO);
+			List<Media> inputMedia = segmentedMedia(media);
+			List<Media> videos = protectedMediaOfType(inputMedia, MediaType.VIDEO);
 			
-			if(video == null) {
+			if(videos.isEmpty()) {
 				throw new IllegalStateException("Video must be present");
 			}
 			
-			List<? extends FileSegment> segmentsVideo = null;
-			List<? extends FileSegment> segmentsAudio = null;
-			Path pathVideo = null;
-			Path pathAudio = null;
-			
-			pathVideo = destination.resolveSibling(destination.getFileName() + ".video.seg");
-			segmentsVideo = ((SegmentedMedia) video).segments().segments();
+			List<Media> audios = protectedMediaOfType(inputMedia, MediaType.AUDIO);
+			List<ProtectedTrack> tracks = new ArrayList<>(videos.size() + audios.size());
 			
-			if(segmentsVideo == null) {
-				throw new IllegalStateException("Video must be segmented");
+			for(int i = 0, l = videos.size(); i < l; ++i) {
+				tracks.add(protectedTrack(videos.get(i), "video", i));
 			}
 			
-			audio = protectedMediaOfType(inputMedia, MediaType.AUDIO);
-			
-			if(audio != null && audio.isPhysical()) {
-				pathAudio = destination.resolveSibling(destination.getFileName() + ".audio.seg");
-				segmentsAudio = ((SegmentedMedia) audio).segments().segments();
+			for(int i = 0, l = audios.size(); i < l; ++i) {
+				Media audio = audios.get(i);
 				
-				if(segmentsAudio == null) {
-					throw new IllegalStateException("Audio must be segmented");
+				if(!audio.isPhysical()) {
+					continue;
 				}
+				
+				tracks.add(protectedTrack(audio, "audio", i));
 			}
 			
 			if(!checkState()) return;
 			
-			DecryptionProcessTracker decryptTracker = new DecryptionProcessTracker();
+			decryptTracker = new DecryptionProcessTracker();
 			trackerManager.tracker(decryptTracker);
 			
 			decryptTracker.state(DecryptionProcessState.EXTRACT_PSSH);
-			PSSH psshVideo = extractPSSH(video);
-			PSSH psshAudio = extractPSSH(audio);
+			
+			for(ProtectedTrack track : tracks) {
+				PSSHExtractionEvent event = DRMEvents.psshExtraction();
+				track.pssh = extractPSSH(track.media);
+				
+				if(event != null) {
+					event.end(mediaId(media), engineName, track.name, track.pssh != null);
+				}
+			}
 			
 			if(!checkState()) return;
 			
@@ -420,60 +518,86 @@ public final class DecryptionKeyObtainer implements DecryptionContext {
 				throw new IllegalStateException("Invalid DRM resolver");
 			}
 			
-			MediaDecryptionKey keyVideo = null;
-			MediaDecryptionKey keyAudio = null;
+			MediaDecryptionKeys.Builder keys = new MediaDecryptionKeys.Builder();
+			// Tracks usually share the PSSH and KID (e.g. all video representations), so cache
+			// both the license keys and the found keys to avoid repeated requests and checks.
+			Map<String, List<MediaDecryptionKey>> licenseKeys = new HashMap<>();
+			Map<String, List<MediaDecryptionKey>> foundKeys = new HashMap<>();
 			
-			if(psshVideo != null) {
-				logDebug("Video has PSSH, get its decryption keys");
+			for(ProtectedTrack track : tracks) {
+				if(track.pssh == null) {
+					continue;
+				}
 				
-				List<MediaDecryptionKey> keys = decryptionKeys(resolver, video, psshVideo.content());
+				String keyId = track.pssh.keyId();
+				boolean isKeyIdPresent = keyId != null && !keyId.isEmpty();
+				List<MediaDecryptionKey> trackKeys = isKeyIdPresent ? foundKeys.get(keyId) : null;
 				
-				logDebug(
-					"Video decryption keys:\n<\n%s\n>",
-					keys.stream().map((k) -> k.kid() + ':' + k.key()).collect(Collectors.joining("\n"))
-				);
+				if(isKeyIdPresent) {
+					DRMMetrics.keyCache("kid", trackKeys != null);
+				}
 				
-				keyVideo = correctDecryptionKey(pathVideo, segmentsVideo, keys, psshVideo.keyId());
+				if(trackKeys != null) {
+					logDebug("Reuse decryption keys of KID %s for %s", keyId, track.name);
+					keys.add(track.media, trackKeys);
+					continue;
+				}
 				
-				if(keyVideo == null) {
-					logDebug("Video decryption key not found");
-					throw new IllegalStateException("Decryption key for video not found");
+				List<MediaDecryptionKey> candidates = licenseKeys.get(track.pssh.content());
+				DRMMetrics.keyCache("license", candidates != null);
+				
+				if(candidates == null) {
+					logDebug("%s has PSSH, get its decryption keys", track.name);
+					candidates = decryptionKeys(
+						resolver, track.media, track.pssh.content(), engineName, track.name,
+						keysMaxRetryAttempts, waitOnRetryMs
+					);
+					
+					if(candidates != null) {
+						licenseKeys.put(track.pssh.content(), candidates);
+						
+						List<MediaDecryptionKey> obtained = candidates;
+						logDebug(() -> String.format(
+							"Decryption keys of %s:\n<\n%s\n>",
+							track.name,
+							obtained.stream().map((k) -> k.kid() + ':' + k.key()).collect(Collectors.joining("\n"))
+						));
+					}
 				}
 				
-				logDebug(
-					"Found video decryption key: <%s:%s>",
-					keyVideo.kid(), keyVideo.key()
+				MediaDecryptionKey key = correctDecryptionKey(
+					track.path, track.segments, candidates, keyId, track.name
 				);
 				
-				if(!checkState()) return;
-			}
-			
-			if(psshAudio != null) {
-				logDebug("Audio has PSSH, get its decryption keys");
+				if(key == null && isCancelled()) {
+					return; // Stopped while validating, not a missing key
+				}
 				
-				List<MediaDecryptionKey> keys = decryptionKeys(resolver, audio, psshAudio.content());
+				if(key == null) {
+					logDebug("Decryption key of %s not found", track.name);
+					throw new IllegalStateException("Decryption key for " + track.name + " not found");
+				}
 				
 				logDebug(
-					"Audio decryption keys: <\n%s\n>",
-					keys.stream().map((k) -> k.kid() + ':' + k.key()).collect(Collectors.joining("\n"))
+					"Found decryption key of %s: <%s:%s>",
+					track.name, key.kid(), key.key()
 				);
 				
-				keyAudio = correctDecryptionKey(pathAudio, segmentsAudio, keys, psshAudio.keyId());
+				// Keep all the other keys from the license as well, so that content with
+				// multiple KIDs (e.g. key rotation) can be decrypted in a single pass.
+				trackKeys = trackKeys(key, candidates);
 				
-				if(keyAudio == null) {
-					logDebug("Audio decryption key not found");
-					throw new IllegalStateException("Decryption key for audio not found");
+				if(isKeyIdPresent) {
+					foundKeys.put(keyId, trackKeys);
 				}
 				
-				logDebug(
-					"Found audio decryption key: <%s:%s>",
-					keyAudio.kid(), keyAudio.key()
-				);
+				keys.add(track.media, trackKeys);
 				
 				if(!checkState()) return;
 			}
 			
-			setKeys(keyVideo, keyAudio);
+			setKeys(keys.build());
+			DRMMetrics.validationSpawns(validationSpawns);
 			state.set(TaskStates.DONE);
 		} catch(Exception ex) {
 			exception = ex;
@@ -572,11 +696,23 @@ public final class DecryptionKeyObtainer implements DecryptionContext {
 		return exception;
 	}
 	
-	public MediaDecryptionKey keyVideo() {
-		return keyVideo;
+	public MediaDecryptionKeys keys() {
+		return keys;
 	}
 	
-	public MediaDecryptionKey keyAudio() {
-		return keyAudio;
+	private static final class ProtectedTrack {
+		
+		final String name;
+		final Media media;
+		final Path path;
+		final List<? extends FileSegment> segments;
+		PSSH pssh;
+		
+		ProtectedTrack(String name, Media media, Path path, List<? extends FileSegment> segments) {
+			this.name = name;
+			this.media = media;
+			this.path = path;
+			this.segments = segments;
+		}
 	}
 }
\ No newline at end of file
@@ -1,16 +1,31 @@
 package sune.app.mediadown.drm;
 
+import static sune.app.mediadown.drm.util.Common.logDebug;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
 import java.util.function.Function;
 
 import sune.app.mediadown.drm.event.DecryptionEvent;
-import sune.app.mediadown.drm.util.MediaDecryptionKey;
+import sune.app.mediadown.drm.util.CoalescingDispatcher;
+import sune.app.mediadown.drm.util.DecryptionCheckpoint;
+import sune.app.mediadown.drm.util.MediaDecryptionKeys;
+import sune.app.mediadown.drm.util.TimeRange;
 import sune.app.mediadown.event.Event;
 import sune.app.mediadown.event.EventBindable;
 import sune.app.mediadown.event.EventRegistry;
 import sune.app.mediadown.event.EventType;
 import sune.app.mediadown.event.tracker.Trackable;
+import sune.app.mediadown.event.tracker.Tracker;
 import sune.app.mediadown.event.tracker.TrackerEvent;
+import sune.app.mediadown.conversion.ConversionMedia;
 import sune.app.mediadown.gui.table.ResolvedMedia;
+import sune.app.mediadown.media.Media;
+import sune.app.mediadown.media.MediaFormat;
+import sune.app.mediadown.media.MediaType;
 import sune.app.mediadown.media.MediaUtils;
 import sune.app.mediadown.pipeline.AbstractPipelineTask;
 import sune.app.mediadown.pipeline.DownloadPipelineResult;
@@ -41,17 +56,143 @@ public final class DecryptionTransformer implements Transformer {
 		return PLUGIN.getContext().getConfiguration();
 	}
 	
+	private static final int eventCoalescingWindowMs() {
+		return Math.max(0, configuration().intValue("eventCoalescingWindowMs"));
+	}
+	
+	private static final void configureScheduler() {
+		PluginConfiguration configuration = configuration();
+		DRMScheduler.instance().configure(
+			configuration.intValue("maxConcurrentDecryptions"),
+			configuration.intValue("maxConcurrentValidations"),
+			configuration.intValue("maxDecryptionBandwidth") * 1000000L // MB/s -> B/s
+		);
+	}
+	
 	private static final <T extends EventType> void bindAllEvents(
 			EventBindable<T> bindable,
 			EventRegistry<EventType> eventRegistry,
 			Event<T, ?>[] events
 	) {
+		// Forward the events on a separate thread, so that the decryption is never blocked
+		// by the listeners. Since all the events are forwarded as an update of the tracker,
+		// frequent updates are merged and only the latest state is delivered.
+		CoalescingDispatcher dispatcher = new CoalescingDispatcher(eventCoalescingWindowMs());
+		
 		for(Event<T, ?> event : events) {
+			boolean isUpdate = event == DecryptionEvent.UPDATE;
+			boolean isLast = event == DecryptionEvent.END || event == DecryptionEvent.ERROR;
+			
 			bindable.addEventListener(
 				event,
-				(o) -> eventRegistry.call(TrackerEvent.UPDATE, ((Trackable) o).trackerManager().tracker())
+				(o) -> {
+					Trackable trackable = (Trackable) o;
+					// The tracker may be replaced later, deliver the one of the event
+					Tracker tracker = trackable.trackerManager().tracker();
+					Runnable action = () -> eventRegistry.call(TrackerEvent.UPDATE, tracker);
+					
+					if(isUpdate) {
+						dispatcher.submit(trackable, action);
+					} else if(isLast) {
+						// Deliver any pending update before the end and none after it
+						dispatcher.submitLast(trackable, action);
+					} else {
+						dispatcher.submitNow(trackable, action);
+					}
+				}
+			);
+		}
+	}
+	
+	private static final String sourceURI(PipelineMedia pipelineMedia) {
+		return Objects.toString(pipelineMedia.media().metadata().sourceURI());
+	}
+	
+	private static final double clipTime(Object value) {
+		return value instanceof Number ? ((Number) value).doubleValue() : TimeRange.parseTime(value.toString());
+	}
+	
+	private static final TimeRange clipRange(PipelineMedia pipelineMedia) {
+		Object start = pipelineMedia.media().metadata().get(DRMConstants.METADATA_CLIP_START);
+		Object end = pipelineMedia.media().metadata().get(DRMConstants.METADATA_CLIP_END);
+		
+		if(start == null && end == null) {
+			return null;
+		}
+		
+		try {
+			return TimeRange.of(
+				start != null ? clipTime(start) : 0.0,
+				end != null ? clipTime(end) : Double.POSITIVE_INFINITY
 			);
+		} catch(IllegalArgumentException ex) {
+			logDebug("Invalid clip ignored: %s", ex.getMessage());
+			return null;
+		}
+	}
+	
+	private static final DecryptionCheckpoint loadCheckpoint(PipelineMedia pipelineMedia) {
+		return DecryptionCheckpoint.load(pipelineMedia.destination(), sourceURI(pipelineMedia));
+	}
+	
+	private static final Media mediaOfType(List<Media> media, MediaType type, int indexOfType) {
+		for(Media m : media) {
+			if(m.type().is(type) && indexOfType-- == 0) {
+				return m;
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Recreates the result of the download from the inputs recorded in the checkpoint,
+	 * so that the download does not have to be run again after a restart.
+	 * @return The result, or {@code null}, if the media have to be downloaded again.
+	 */
+	private static final DownloadPipelineResult downloadedResult(PipelineMedia pipelineMedia,
+			DecryptionCheckpoint checkpoint) {
+		List<DecryptionCheckpoint.Input> inputs = checkpoint.inputs();
+		
+		if(inputs == null) {
+			return null;
+		}
+		
+		List<Media> media = DecryptionKeyObtainer.segmentedMedia(pipelineMedia.media());
+		List<ConversionMedia> conversionMedia = new ArrayList<>(inputs.size());
+		int videoIndex = 0, audioIndex = 0;
+		
+		for(DecryptionCheckpoint.Input input : inputs) {
+			int indexOfType = input.type().is(MediaType.VIDEO) ? videoIndex++ : audioIndex++;
+			Media m = mediaOfType(media, input.type(), indexOfType);
+			
+			if(m == null) {
+				return null; // The media do not match anymore
+			}
+			
+			conversionMedia.add(new ConversionMedia(m, input.path(), input.duration()));
+		}
+		
+		return DownloadPipelineResult.doConversion(
+			pipelineMedia.media(), pipelineMedia.destination(), conversionMedia
+		);
+	}
+	
+	private static final List<DecryptionCheckpoint.Input> checkpointInputs(List<ConversionMedia> inputs)
+			throws IOException {
+		List<DecryptionCheckpoint.Input> checkpointInputs = new ArrayList<>(inputs.size());
+		
+		for(ConversionMedia cm : inputs) {
+			MediaType type = cm.media().type();
+			
+			if(!type.is(MediaType.VIDEO) && !type.is(MediaType.AUDIO)) {
+				return List.of(); // Cannot be recreated, e.g. subtitles, download again
+			}
+			
+			checkpointInputs.add(DecryptionCheckpoint.Input.of(type, cm.path(), cm.duration()));
 		}
+		
+		return checkpointInputs;
 	}
 	
 	@Override
@@ -70,8 +211,27 @@ public final class DecryptionTransformer implements Transformer {
 		@Override
 		public PipelineResult transform(PipelineResult result) {
 			if(result instanceof MediaPipelineResult) {
+				MediaPipelineResult mediaResult = (MediaPipelineResult) result;
+				DecryptionCheckpoint checkpoint = loadCheckpoint(mediaResult.media());
+				
+				if(checkpoint != null) {
+					if(checkpoint.stage() == DecryptionCheckpoint.Stage.DOWNLOADED) {
+						DownloadPipelineResult downloaded = downloadedResult(mediaResult.media(), checkpoint);
+						
+						if(downloaded != null) {
+							// The media were already downloaded, continue with the decryption
+							return new DecryptionNeededPipelineResult(
+								downloaded, DecryptionKeyObtainDonePipelineResult.metadata(mediaResult, checkpoint.keys())
+							);
+						}
+					}
+					
+					// The keys were already obtained before the previous run was interrupted
+					return new DecryptionKeyObtainDonePipelineResult(mediaResult, checkpoint.keys());
+				}
+				
 				// Obtain the decryption keys before downloading anything
-				return new DecryptionKeyObtainNeededPipelineResult((MediaPipelineResult) result);
+				return new DecryptionKeyObtainNeededPipelineResult(mediaResult);
 			}
 			
 			if(result instanceof WrappedPipelineResult) {
@@ -203,31 +363,74 @@ public final class DecryptionTransformer implements Transformer {
 		@Override
 		public PipelineResult doRun(Pipeline pipeline) throws Exception {
 			PipelineMedia pipelineMedia = originalResult.media();
+			configureScheduler();
 			obtainer = new DecryptionKeyObtainer(
 				pipelineMedia.media(), pipelineMedia.destination(), keysMaxRetryAttempts(), waitOnRetryMs()
 			);
 			bindAllEvents(obtainer, pipeline.getEventRegistry(), DecryptionEvent.values());
 			Ignore.Cancellation.callVoid(obtainer::start); // Wait for the decryption to finish
-			MediaDecryptionKey keyVideo = obtainer.keyVideo();
-			MediaDecryptionKey keyAudio = obtainer.keyAudio();
-			return new DecryptionKeyObtainDonePipelineResult(originalResult, keyVideo, keyAudio);
+			
+			if(obtainer.isDone()) {
+				try {
+					DecryptionCheckpoint.create(pipelineMedia.destination(), sourceURI(pipelineMedia), obtainer.keys());
+				} catch(IOException ex) {
+					// Not critical, the keys will just be obtained again after a crash
+					logDebug("Unable to create checkpoint: %s", ex.getMessage());
+				}
+			}
+			
+			return new DecryptionKeyObtainDonePipelineResult(originalResult, obtainer.keys());
 		}
 	}
 	
 	private static final class DecryptionPipelineTask extends AbstractPipelineTask {
 		
 		private final DownloadPipelineResult originalResult;
-		private final MediaDecryptionKey keyVideo;
-		private final MediaDecryptionKey keyAudio;
+		private final MediaDecryptionKeys keys;
+		private final Path destination;
+		private final DecryptionCheckpoint checkpoint;
+		private final TimeRange clip;
 		
 		private Decryptor decryptor;
 		
-		public DecryptionPipelineTask(
-				DownloadPipelineResult originalResult, MediaDecryptionKey keyVideo, MediaDecryptionKey keyAudio
-		) {
+		public DecryptionPipelineTask(DownloadPipelineResult originalResult, MediaDecryptionKeys keys,
+				Path destination, DecryptionCheckpoint checkpoint, TimeRange clip) {
 			this.originalResult = originalResult;
-			this.keyVideo = keyVideo;
-			this.keyAudio = keyAudio;
+			this.keys = keys;
+			this.destination = destination;
+			this.checkpoint = checkpoint;
+			this.clip = clip;
+		}
+		
+		private static final int decryptionThreads() {
+			return configuration().intValue("decryptionThreads");
+		}
+		
+		private static final boolean fuseDecryption() {
+			return configuration().booleanValue("fuseDecryption");
+		}
+		
+		/**
+		 * Checks whether the conversion of the given media to the destination is just
+		 * a remux of the audio and video tracks to an MP4 file. Only then the fused
+		 * decryption, which copies the tracks as they are, produces the same file as
+		 * the conversion, otherwise the conversion settings, e.g. of the output format,
+		 * or the other media, e.g. subtitles, would be ignored.
+		 */
+		private static final boolean isPlainRemux(List<ConversionMedia> inputs, Path destination) {
+			if(MediaFormat.fromPath(destination) != MediaFormat.MP4) {
+				return false;
+			}
+			
+			for(ConversionMedia cm : inputs) {
+				MediaType type = cm.media().type();
+				
+				if(!type.is(MediaType.VIDEO) && !type.is(MediaType.AUDIO)) {
+					return false;
+				}
+			}
+			
+			return true;
 		}
 		
 		@Override
@@ -253,11 +456,27 @@ public final class DecryptionTransformer implements Transformer {
 		
 		@Override
 		public PipelineResult doRun(Pipeline pipeline) throws Exception {
+			// When fused, the decryptor also merges the media to the destination using FFmpeg,
+			// if possible, therefore the separate conversion step can be skipped. This is done
+			// only when the conversion would be a plain remux, so that nothing is lost.
+			List<ConversionMedia> inputs = originalResult.inputs();
+			Path fusedOutput = fuseDecryption() && isPlainRemux(inputs, destination) ? destination : null;
+			configureScheduler();
 			decryptor = new Decryptor(
-				originalResult.inputs(), keyVideo, keyAudio
+				inputs, keys, decryptionThreads(), fusedOutput, checkpoint, clip
 			);
 			bindAllEvents(decryptor, pipeline.getEventRegistry(), DecryptionEvent.values());
 			Ignore.Cancellation.callVoid(decryptor::start); // Wait for the decryption to finish
+			
+			if(decryptor.isDone()) {
+				// Nothing to resume anymore
+				DecryptionCheckpoint.delete(destination);
+			}
+			
+			if(decryptor.isFused()) {
+				return TerminatingPipelineResult.getInstance();
+			}
+			
 			return new DecryptionDonePipelineResult(originalResult);
 		}
 	}
@@ -280,10 +499,28 @@ public final class DecryptionTransformer implements Transformer {
 	
 	private static final class DecryptionKeyObtainDonePipelineResult extends WrappedPipelineResult {
 		
-		public DecryptionKeyObtainDonePipelineResult(
-				MediaPipelineResult originalResult, MediaDecryptionKey keyVideo, MediaDecryptionKey keyAudio
-		) {
-			super(originalResult, Metadata.of("key.video", keyVideo, "key.audio", keyAudio));
+		public DecryptionKeyObtainDonePipelineResult(MediaPipelineResult originalResult, MediaDecryptionKeys keys) {
+			super(originalResult, metadata(originalResult, keys));
+		}
+		
+		private static final Metadata metadata(MediaPipelineResult originalResult, MediaDecryptionKeys keys) {
+			PipelineMedia pipelineMedia = originalResult.media();
+			TimeRange clip = clipRange(pipelineMedia);
+			
+			if(clip == null) {
+				return Metadata.of(
+					"keys", keys,
+					"destination", pipelineMedia.destination(),
+					"sourceURI", sourceURI(pipelineMedia)
+				);
+			}
+			
+			return Metadata.of(
+				"keys", keys,
+				"destination", pipelineMedia.destination(),
+				"sourceURI", sourceURI(pipelineMedia),
+				"clip", clip
+			);
 		}
 	}
 	
@@ -299,9 +536,23 @@ public final class DecryptionTransformer implements Transformer {
 		
 		@Override
 		public DecryptionPipelineTask process(Pipeline pipeline) throws Exception {
-			MediaDecryptionKey keyVideo = metadata.get("key.video");
-			MediaDecryptionKey keyAudio = metadata.get("key.audio");
-			return new DecryptionPipelineTask(originalResult, keyVideo, keyAudio);
+			MediaDecryptionKeys keys = metadata.get("keys");
+			Path destination = metadata.get("destination");
+			String sourceURI = metadata.get("sourceURI");
+			TimeRange clip = metadata.get("clip");
+			DecryptionCheckpoint checkpoint = DecryptionCheckpoint.load(destination, sourceURI);
+			
+			if(checkpoint != null) {
+				try {
+					checkpoint.downloaded(checkpointInputs(originalResult.inputs()));
+				} catch(IOException ex) {
+					// Not critical, just continue without the checkpoint
+					logDebug("Unable to update checkpoint: %s", ex.getMessage());
+					checkpoint = null;
+				}
+			}
+			
+			return new DecryptionPipelineTask(originalResult, keys, destination, checkpoint, clip);
 		}
 		
 		@Override public boolean isTerminating() { return false; }
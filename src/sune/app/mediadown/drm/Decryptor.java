@@ -1,24 +1,55 @@
 package sune.app.mediadown.drm;
 
+import static sune.app.mediadown.drm.util.Common.logDebug;
+
 import java.io.IOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
 
 import sune.api.process.ReadOnlyProcess;
 import sune.app.mediadown.InternalState;
 import sune.app.mediadown.TaskStates;
 import sune.app.mediadown.concurrent.SyncObject;
 import sune.app.mediadown.conversion.ConversionMedia;
+import sune.app.mediadown.drm.cenc.BufferPool;
+import sune.app.mediadown.drm.cenc.CENCDecryptor;
+import sune.app.mediadown.drm.cenc.EncryptionScheme;
+import sune.app.mediadown.drm.cenc.Fragment;
+import sune.app.mediadown.drm.cenc.FragmentIndexFile;
+import sune.app.mediadown.drm.cenc.FragmentTimeline;
 import sune.app.mediadown.drm.event.DecryptionContext;
 import sune.app.mediadown.drm.event.DecryptionEvent;
+import sune.app.mediadown.drm.jfr.DRMEvents;
+import sune.app.mediadown.drm.jfr.SafeMoveEvent;
+import sune.app.mediadown.drm.jfr.TrackDecryptionEvent;
+import sune.app.mediadown.drm.metrics.DRMMetrics;
 import sune.app.mediadown.drm.tracker.DecryptionProcessState;
 import sune.app.mediadown.drm.tracker.DecryptionProcessTracker;
+import sune.app.mediadown.drm.tracker.DecryptionProcessTracker.TrackProgress;
+import sune.app.mediadown.drm.util.AdaptiveConcurrency;
 import sune.app.mediadown.drm.util.AsciiUtils;
 import sune.app.mediadown.drm.util.Common;
 import sune.app.mediadown.drm.util.Common.ProcessListener;
+import sune.app.mediadown.drm.util.DecryptionCheckpoint;
 import sune.app.mediadown.drm.util.MP4Decrypt;
 import sune.app.mediadown.drm.util.MediaDecryptionKey;
+import sune.app.mediadown.drm.util.MediaDecryptionKeys;
+import sune.app.mediadown.drm.util.TimeRange;
 import sune.app.mediadown.event.Event;
 import sune.app.mediadown.event.EventRegistry;
 import sune.app.mediadown.event.EventType;
@@ -26,6 +57,7 @@ import sune.app.mediadown.event.Listener;
 import sune.app.mediadown.event.tracker.TrackerEvent;
 import sune.app.mediadown.event.tracker.TrackerManager;
 import sune.app.mediadown.event.tracker.WaitTracker;
+import sune.app.mediadown.ffmpeg.FFmpeg;
 import sune.app.mediadown.media.MediaType;
 import sune.app.mediadown.util.CheckedConsumer;
 import sune.app.mediadown.util.NIO;
@@ -35,24 +67,77 @@ import sune.app.mediadown.util.Utils.Ignore;
 
 public final class Decryptor implements DecryptionContext {
 	
+	/** Maximum number of tracks decrypted at once, so that the disk is not overloaded. */
+	private static final int MAX_CONCURRENT_TRACKS = 4;
+	
+	/** Interval of polling the size of the output file of mp4decrypt, used for progress reporting. */
+	private static final long OUTPUT_POLL_INTERVAL_MS = 250L;
+	
+	/** Interval of sampling the throughput of the fragment workers of each track. */
+	private static final long SAMPLE_INTERVAL_MS = 1000L;
+	
+	/** Number of worker samples per a sample of the tracks, so that the two do not interfere. */
+	private static final int TRACK_SAMPLE_RATIO = 3;
+	
+	/** Number of attempts to move a file that may still be in use, e.g. on Windows. */
+	private static final int SAFE_MOVE_ATTEMPTS = 5;
+	
+	private static volatile Boolean decryptionKeySupported;
+	
 	private final TrackerManager trackerManager = new TrackerManager();
 	private final EventRegistry<EventType> eventRegistry = new EventRegistry<>();
 	
 	private final List<ConversionMedia> conversionMedia;
-	private final MediaDecryptionKey keyVideo;
-	private final MediaDecryptionKey keyAudio;
+	private final MediaDecryptionKeys keys;
+	private final int parallelism;
+	private final Path fusedOutput;
+	private final DecryptionCheckpoint checkpoint;
+	private final TimeRange clip;
 	
 	private final InternalState state = new InternalState();
 	private final SyncObject lockPause = new SyncObject();
 	
-	private ReadOnlyProcess decryptProcess;
-	private ProcessListener processListener;
+	private final List<ReadOnlyProcess> decryptProcesses = new CopyOnWriteArrayList<>();
+	private final List<ProcessListener> processListeners = new CopyOnWriteArrayList<>();
+	private final Map<AdaptiveConcurrency, TrackProgress> workerConcurrency = new ConcurrentHashMap<>();
 	private Exception exception;
+	private AdaptiveConcurrency trackConcurrency;
+	private int threadsPerTrack;
+	private int maxThreadsPerTrack;
+	private boolean isFused;
+	private Path stagingDir;
+	
+	public Decryptor(List<ConversionMedia> conversionMedia, MediaDecryptionKeys keys, int parallelism) {
+		this(conversionMedia, keys, parallelism, null, null);
+	}
 	
-	public Decryptor(List<ConversionMedia> conversionMedia, MediaDecryptionKey keyVideo, MediaDecryptionKey keyAudio) {
+	/**
+	 * Creates a new decryptor that, if possible, decrypts and merges all the media
+	 * directly to the given output using FFmpeg, instead of decrypting each of them
+	 * separately. If the output is {@code null}, the media are always decrypted
+	 * separately. If the checkpoint is not {@code null}, the tracks already decrypted
+	 * according to it are skipped and the newly decrypted ones are recorded in it.
+	 */
+	public Decryptor(List<ConversionMedia> conversionMedia, MediaDecryptionKeys keys, int parallelism,
+			Path fusedOutput, DecryptionCheckpoint checkpoint) {
+		this(conversionMedia, keys, parallelism, fusedOutput, checkpoint, null);
+	}
+	
+	/**
+	 * Creates a new decryptor in the same way as {@link #Decryptor(List, MediaDecryptionKeys,
+	 * int, Path, DecryptionCheckpoint)} does, but if the clip is not {@code null}, only
+	 * the fragments of each track covering the clip are decrypted and kept, the rest
+	 * is dropped. Since FFmpeg would decrypt the whole media, the decryption is never
+	 * fused in that case.
+	 */
+	public Decryptor(List<ConversionMedia> conversionMedia, MediaDecryptionKeys keys, int parallelism,
+			Path fusedOutput, DecryptionCheckpoint checkpoint, TimeRange clip) {
 		this.conversionMedia = Objects.requireNonNull(conversionMedia);
-		this.keyVideo = keyVideo;
-		this.keyAudio = keyAudio;
+		this.keys = Objects.requireNonNull(keys);
+		this.parallelism = parallelism;
+		this.fusedOutput = clip == null ? fusedOutput : null;
+		this.checkpoint = checkpoint;
+		this.clip = clip;
 	}
 	
 	private final boolean checkState() {
@@ -65,29 +150,90 @@ public final class Decryptor implements DecryptionContext {
 		return state.is(TaskStates.RUNNING);
 	}
 	
-	private final ConversionMedia protectedMediaOfType(MediaType type) {
+	private final boolean isCancelled() {
+		return !state.is(TaskStates.RUNNING) && !state.is(TaskStates.PAUSED);
+	}
+	
+	private final DRMScheduler.Permit acquireDecryption(DecryptionProcessTracker tracker) throws Exception {
+		tracker.begin(DecryptionProcessState.QUEUED);
+		
+		try {
+			DRMScheduler.Permit permit = DRMScheduler.instance().acquireDecryption(this, this::isCancelled);
+			
+			if(permit != null) {
+				tracker.queueWaited(permit.waitTime());
+			}
+			
+			return permit;
+		} finally {
+			tracker.end(DecryptionProcessState.QUEUED);
+		}
+	}
+	
+	private static final void throttled(TrackProgress progress, long bytes) {
+		progress.add(bytes);
+		
+		try {
+			DRMScheduler.instance().throttle(bytes);
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private final List<ConversionMedia> protectedMediaOfType(MediaType type) {
 		return conversionMedia.stream()
 					.filter((m) -> m.media().type().is(type) && m.media().metadata().isProtected())
-					.findFirst().orElse(null);
+					.collect(Collectors.toList());
+	}
+	
+	private final void addTasks(List<Callable<Void>> tasks, DecryptionProcessTracker tracker, MediaType type,
+			DecryptionProcessState trackState) {
+		List<ConversionMedia> media = protectedMediaOfType(type);
+		
+		for(int i = 0, l = media.size(); i < l; ++i) {
+			ConversionMedia cm = media.get(i);
+			List<MediaDecryptionKey> trackKeys = keys.all(cm.media(), i);
+			
+			if(checkpoint != null && checkpoint.isTrackDecrypted(cm.path())) {
+				logDebug("%s already decrypted, skipping", cm.path().getFileName());
+				continue;
+			}
+			
+			if(trackKeys.isEmpty()) {
+				logDebug("No decryption key for %s, skipping", cm.path().getFileName());
+				continue;
+			}
+			
+			tasks.add(decryptTask(tracker, trackState, cm.path(), trackKeys));
+		}
 	}
 	
-	private final Path asciiTempPath(Path dir, String asciiFileName) throws IOException {
-		return AsciiUtils.tempPath(dir.toAbsolutePath(), asciiFileName);
+	private final synchronized Path stagingDir(Path dir) throws IOException {
+		if(stagingDir == null) {
+			// Choose the directory once for the whole job, so that all the tracks share it
+			stagingDir = AsciiUtils.stagingDir(dir.toAbsolutePath(), "md-drm-" + Utils.randomString(16));
+			logDebug("Staging directory: %s", stagingDir);
+		}
+		
+		return stagingDir;
 	}
 	
-	private final String command(Path input, Path output, MediaDecryptionKey key) {
+	private final String command(Path input, Path output, List<MediaDecryptionKey> keys) {
+		// Pass all the keys at once, mp4decrypt selects the correct one for each track
+		// and sample by its KID (or track ID).
+		String keyArgs = keys.stream()
+			.map((k) -> "--key " + k.kid() + ':' + k.key())
+			.collect(Collectors.joining(" "));
+		
 		return Utils.format(
-			"--key %{kid}s:%{key}s \"%{input}s\" \"%{output}s\"",
-			"kid", key.kid(),
-			"key", key.key(),
+			"%{keys}s \"%{input}s\" \"%{output}s\"",
+			"keys", keyArgs,
 			"input", input.toAbsolutePath().toString(),
 			"output", output.toAbsolutePath().toString()
 		);
 	}
 	
-	private final void safeMove(Path src, Path dst) throws IOException {
-		NIO.move(src, dst);
-		
+	private static final void releaseHandles() {
 		// Ugly hack but it is necessary. The reason behind having to do this is that
 		// the Files::move method (that is used by NIO::move) does not properly closes
 		// file handles of the files given by the input paths (src, dst). Since it
@@ -103,18 +249,268 @@ public final class Decryptor implements DecryptionContext {
 		Ignore.callVoid(() -> Thread.sleep(100));
 	}
 	
-	private final void decrypt(Path input, MediaDecryptionKey key) throws Exception {
+	private final void safeMove(Path src, Path dst, String trackType) throws IOException {
+		SafeMoveEvent event = DRMEvents.safeMove();
+		
+		for(int attempt = 1;; ++attempt) {
+			try {
+				NIO.move(src, dst);
+				break;
+			} catch(FileSystemException ex) {
+				if(attempt >= SAFE_MOVE_ATTEMPTS) {
+					throw ex; // Propagate
+				}
+				
+				// The file may still be in use, e.g. by the OS, release the handles and retry
+				releaseHandles();
+			}
+		}
+		
+		releaseHandles();
+		long size = Files.size(dst);
+		DRMMetrics.safeMove(size);
+		
+		if(event != null) {
+			event.end(dst.getFileName().toString(), "mp4decrypt", trackType, size);
+		}
+	}
+	
+	private static final Path decryptedPath(Path input) {
+		return input.resolveSibling(input.getFileName() + ".decrypted");
+	}
+	
+	private final boolean decryptInternal(CENCDecryptor engine, Path input, List<MediaDecryptionKey> keys,
+			int threads, TrackProgress progress) throws Exception {
+		Path output = decryptedPath(input);
+		boolean completed = false;
+		
+		logDebug(
+			"Decrypt %s internally (fragments: %d, keys: %d)",
+			input.getFileName(), engine.index().fragments().size(), keys.size()
+		);
+		
+		// Start all the threads the track may use, but let only some of them work,
+		// the number of which is then adjusted according to the measured throughput.
+		AdaptiveConcurrency workers = new AdaptiveConcurrency(
+			"workers of " + input.getFileName(), 1, Math.max(threads, maxThreadsPerTrack), threads
+		);
+		workerConcurrency.put(workers, progress);
+		
+		try {
+			completed = engine.decrypt(
+				output, keys, workers.max(), this::checkState, (n) -> throttled(progress, n), progress::resume,
+				workers::limit
+			);
+		} catch(Exception ex) {
+			// The failure is most likely not recoverable, do not resume next time
+			CENCDecryptor.discard(output);
+			throw ex; // Propagate
+		} finally {
+			workerConcurrency.remove(workers);
+		}
+		
+		if(!completed) {
+			// Stopped, keep both the encrypted input file and the partially decrypted
+			// output file, so that the decryption can be resumed later.
+			return false;
+		}
+		
+		// Replace the encrypted input file with the new decrypted one. The files are
+		// in the same directory, therefore it is just a rename.
+		NIO.deleteFile(input);
+		NIO.move(output, input);
+		return true;
+	}
+	
+	/**
+	 * Decrypts only the fragments of the input file covering the clip.
+	 * @return {@code true}, if decrypted, {@code false}, if stopped, or {@code null},
+	 * if the times of the fragments are unknown and the whole file must be decrypted.
+	 */
+	private final Boolean decryptClip(CENCDecryptor engine, Path input, List<MediaDecryptionKey> keys,
+			TrackProgress progress) throws Exception {
+		FragmentTimeline timeline = engine.timeline();
+		
+		if(timeline == null) {
+			logDebug("Unknown times of the fragments of %s, decrypt all of it", input.getFileName());
+			return null;
+		}
+		
+		List<Fragment> fragments = timeline.covering(clip.start(), clip.end());
+		
+		if(fragments.isEmpty()) {
+			// Do not replace the track with just its init segment
+			throw new IllegalStateException("Clip " + clip + " is outside of " + input.getFileName());
+		}
+		
+		Path output = decryptedPath(input);
+		
+		logDebug(
+			"Decrypt clip %s of %s internally (fragments: %d of %d, keys: %d)",
+			clip, input.getFileName(), fragments.size(), engine.index().fragments().size(), keys.size()
+		);
+		
+		boolean completed = false;
+		
+		try {
+			// Not resumable, the output of any previous attempt must not be continued
+			CENCDecryptor.discard(output);
+			completed = engine.decrypt(output, keys, fragments, this::checkState, (n) -> throttled(progress, n));
+		} finally {
+			if(!completed) {
+				NIO.deleteFile(output);
+			}
+		}
+		
+		if(!completed) {
+			return false;
+		}
+		
+		NIO.deleteFile(input);
+		NIO.move(output, input);
+		return true;
+	}
+	
+	private final boolean decrypt(Path input, List<MediaDecryptionKey> keys, int threads, TrackProgress progress,
+			String trackType) throws Exception {
+		Path output = decryptedPath(input);
+		
+		if(!NIO.exists(input) && NIO.exists(output)) {
+			// Stopped after the input file was already replaced, just finish it
+			NIO.move(output, input);
+			FragmentIndexFile.delete(input);
+			return true;
+		}
+		
+		CENCDecryptor engine = CENCDecryptor.of(input);
+		boolean isInternal = engine.isSupported();
+		TrackDecryptionEvent event = DRMEvents.trackDecryption();
+		boolean completed = false;
+		long start = System.nanoTime();
+		
+		try {
+			Boolean clipped = isInternal && clip != null ? decryptClip(engine, input, keys, progress) : null;
+			
+			if(clipped != null) {
+				completed = clipped;
+			} else if(isInternal) {
+				completed = decryptInternal(engine, input, keys, threads, progress);
+			} else {
+				if(clip != null) {
+					logDebug("Clip not supported by mp4decrypt, decrypt all of %s", input.getFileName());
+				}
+				
+				logDebug("Decrypt %s using mp4decrypt", input.getFileName());
+				decryptExternal(input, keys, progress, trackType);
+				completed = true;
+			}
+			
+			if(completed) {
+				// The index of the fragments belongs to the encrypted file
+				FragmentIndexFile.delete(input);
+			}
+			
+			return completed;
+		} finally {
+			String engineName = isInternal ? "in-process" : "mp4decrypt";
+			
+			if(completed) {
+				DRMMetrics.decryption(engineName, progress.total(), System.nanoTime() - start);
+			}
+			
+			if(event != null) {
+				event.end(input.getFileName().toString(), engineName, trackType, progress.total(), completed);
+			}
+		}
+	}
+	
+	private final void decryptExternal(Path input, List<MediaDecryptionKey> keys, TrackProgress progress,
+			String trackType) throws Exception {
+		Path absInput = input.toAbsolutePath();
+		
+		if(AsciiUtils.isOnlyAscii(absInput)) {
+			// No need to move anything, just write the output next to the input
+			Path output = absInput.resolveSibling(absInput.getFileName() + ".decrypted");
+			
+			try {
+				runMP4Decrypt(absInput, output, keys, progress);
+			} catch(Exception ex) {
+				NIO.deleteFile(output);
+				throw ex; // Propagate
+			}
+			
+			// Replace the input file in the same way as when the files are moved, since
+			// the handles of both files may still be held after mp4decrypt ends.
+			releaseHandles();
+			NIO.deleteFile(absInput);
+			safeMove(output, absInput, trackType);
+			return;
+		}
+		
 		// Since mp4decrypt has some problems with non-ascii characters in paths,
-		// move files so that we work with only ascii characters temporarily.
-		Path tempInput = asciiTempPath(input.getParent(), Utils.randomString(32));
+		// move files so that we work with only ascii characters temporarily. The staging
+		// directory is on the same file system, if possible, so the moves are just renames.
+		Path tempInput = stagingDir(absInput.getParent()).resolve(Utils.randomString(32));
 		Path tempOutput = tempInput.resolveSibling(tempInput.getFileName() + ".decrypted");
-		safeMove(input, tempInput);
+		safeMove(input, tempInput, trackType);
+		
+		try {
+			runMP4Decrypt(tempInput, tempOutput, keys, progress);
+		} catch(Exception ex) {
+			// Return the encrypted input file back where it was
+			NIO.deleteFile(tempOutput);
+			safeMove(tempInput, input, trackType);
+			throw ex; // Propagate
+		}
+		
+		// Clean up the temporary files and replace the encrypted input file with
+		// the new decrypted one.
+		safeMove(tempOutput, input, trackType);
+		NIO.delete(tempInput);
+	}
+	
+	private final Thread outputSizePoller(Path output, TrackProgress progress) {
+		Thread thread = new Thread(() -> {
+			// mp4decrypt does not report its progress, but the output file has
+			// approximately the same size as the input file.
+			try {
+				while(!Thread.currentThread().isInterrupted()) {
+					if(NIO.exists(output)) {
+						progress.set(Files.size(output));
+					}
+					
+					Thread.sleep(OUTPUT_POLL_INTERVAL_MS);
+				}
+			} catch(IOException | InterruptedException ex) {
+				// Stop polling
+			}
+		}, "mp4decrypt-progress");
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+	
+	private static final String outputTail(ProcessListener listener) {
+		if(listener == null) {
+			return "";
+		}
 		
+		List<String> tail = listener.tail();
+		return tail.isEmpty() ? "" : ":\n" + String.join("\n", tail);
+	}
+	
+	private final void runMP4Decrypt(Path input, Path output, List<MediaDecryptionKey> keys, TrackProgress progress)
+			throws Exception {
 		int retval = -1;
+		ProcessListener processListener = null;
+		ReadOnlyProcess decryptProcess = null;
+		Thread poller = outputSizePoller(output, progress);
 		try {
 			processListener = Common.newProcessListener("mp4decrypt");
+			processListeners.add(processListener);
 			decryptProcess = MP4Decrypt.createAsynchronousProcess(processListener);
-			decryptProcess.execute(command(tempInput, tempOutput, key));
+			decryptProcesses.add(decryptProcess);
+			decryptProcess.execute(command(input, output, keys));
 			retval = decryptProcess.waitFor();
 		} catch(IOException ex) {
 			// Temporary fix: Ignore the IOException that is thrown when the reader
@@ -128,30 +524,373 @@ public final class Decryptor implements DecryptionContext {
 		} finally {
 			if(processListener != null) {
 				processListener.close();
+				processListeners.remove(processListener);
+			}
+			
+			if(decryptProcess != null) {
+				decryptProcesses.remove(decryptProcess);
 			}
+			
+			poller.interrupt();
 		}
 		
 		if(retval != 0) {
-			throw new IllegalStateException("Decryption eneded unsucessfully");
+			throw new IllegalStateException(
+				"Decryption ended unsuccessfully (exit code " + retval + ")" + outputTail(processListener)
+			);
 		}
+	}
+	
+	private final Callable<Void> decryptTask(DecryptionProcessTracker tracker, DecryptionProcessState trackState,
+			Path path, List<MediaDecryptionKey> keys) {
+		return () -> {
+			if(!trackConcurrency.acquire(this::isCancelled)) {
+				return null; // Cancelled while waiting
+			}
+			
+			try {
+				decryptTrack(tracker, trackState, path, keys);
+			} finally {
+				trackConcurrency.release();
+			}
+			
+			return null;
+		};
+	}
+	
+	private final void decryptTrack(DecryptionProcessTracker tracker, DecryptionProcessState trackState,
+			Path path, List<MediaDecryptionKey> keys) throws Exception {
+		DRMScheduler.Permit permit = acquireDecryption(tracker);
 		
-		// Clean up the temporary files and replace the encrypted input file with
-		// the new decrypted one.
-		safeMove(tempOutput, input);
-		NIO.delete(tempInput);
-		AsciiUtils.maybeDeleteTempDirectories();
+		if(permit == null) {
+			return; // Cancelled while waiting
+		}
+		
+		tracker.begin(trackState);
+		long size = NIO.exists(path) ? Files.size(path) : 0L;
+		TrackProgress progress = tracker.track(path.getFileName().toString(), size);
+		String trackType = trackState == DecryptionProcessState.DECRYPT_AUDIO ? "audio" : "video";
+		
+		try {
+			if(decrypt(path, keys, threadsPerTrack, progress, trackType) && checkpoint != null) {
+				checkpoint.trackDecrypted(path);
+			}
+		} finally {
+			permit.close();
+			progress.done();
+			tracker.end(trackState);
+			
+			BufferPool buffers = BufferPool.instance();
+			logDebug(
+				"Decryption of %s ended (%d/%d bytes, average speed: %.2f MB/s, buffer pool hits: %d, misses: %d,"
+					+ " high-water mark: %d bytes)",
+				progress.name(), progress.processed(), progress.total(), progress.averageSpeed() / 1e6,
+				buffers.hits(), buffers.misses(), buffers.highWaterMark()
+			);
+		}
+	}
+	
+	private final Thread concurrencyController(DecryptionProcessTracker tracker) {
+		Thread thread = new Thread(() -> {
+			// Workers are sampled more often than tracks, so that the worker limits settle
+			// before the number of tracks is changed.
+			try {
+				for(long i = 1L; !Thread.currentThread().isInterrupted(); ++i) {
+					Thread.sleep(SAMPLE_INTERVAL_MS);
+					
+					for(Map.Entry<AdaptiveConcurrency, TrackProgress> entry : workerConcurrency.entrySet()) {
+						entry.getKey().sample(entry.getValue().processedInRun());
+					}
+					
+					if(i % TRACK_SAMPLE_RATIO == 0L) {
+						trackConcurrency.sample(tracker.bytesProcessedInRun());
+					}
+				}
+			} catch(InterruptedException ex) {
+				// Stop sampling
+			}
+		}, "drm-concurrency-controller");
+		thread.setDaemon(true);
+		return thread;
+	}
+	
+	private final void decryptConcurrently(List<Callable<Void>> tasks, DecryptionProcessTracker tracker)
+			throws Exception {
+		if(tasks.isEmpty()) {
+			return; // Nothing to do
+		}
+		
+		// Split the available threads between the tracks decrypted at once. The number
+		// of tracks is bounded both by the threads, since each track needs at least one,
+		// and by the disk, since each track is read and written at the same time. Both
+		// numbers are only the starting point, they are adjusted according to the measured
+		// throughput, since the best values depend on whether the host is CPU or I/O bound.
+		int threads = parallelism <= 0 ? Runtime.getRuntime().availableProcessors() : parallelism;
+		int maxTracks = Math.max(1, Math.min(Math.min(tasks.size(), threads), MAX_CONCURRENT_TRACKS));
+		trackConcurrency = new AdaptiveConcurrency("tracks", 1, maxTracks, (maxTracks + 1) / 2);
+		threadsPerTrack = Math.max(1, threads / trackConcurrency.limit());
+		maxThreadsPerTrack = threads;
+		
+		logDebug(
+			"Decrypt %d track(s), %d (at most %d) at once using %d thread(s) each",
+			tasks.size(), trackConcurrency.limit(), maxTracks, threadsPerTrack
+		);
+		
+		ExecutorService executor = Executors.newFixedThreadPool(maxTracks);
+		Thread controller = concurrencyController(tracker);
+		controller.start();
+		
+		try {
+			ExecutorCompletionService<Void> completion = new ExecutorCompletionService<>(executor);
+			
+			for(Callable<Void> task : tasks) {
+				completion.submit(task);
+			}
+			
+			Exception failure = null;
+			
+			for(int i = 0, l = tasks.size(); i < l; ++i) {
+				try {
+					completion.take().get();
+				} catch(ExecutionException ex) {
+					if(failure != null) {
+						continue; // Keep only the first failure
+					}
+					
+					Throwable cause = ex.getCause();
+					failure = cause instanceof Exception ? (Exception) cause : ex;
+					
+					// Do not wait for the other tracks to finish, since the result is
+					// unusable anyway.
+					terminate();
+				}
+			}
+			
+			if(failure != null) {
+				throw failure;
+			}
+		} finally {
+			controller.interrupt();
+			executor.shutdownNow();
+			AsciiUtils.maybeDeleteTempDirectories();
+		}
+	}
+	
+	private static final boolean isDecryptionKeySupported() throws Exception {
+		Boolean supported;
+		if((supported = decryptionKeySupported) != null) {
+			return supported;
+		}
+		
+		synchronized(Decryptor.class) {
+			if((supported = decryptionKeySupported) != null) {
+				return supported;
+			}
+			
+			// Older or custom FFmpeg builds may not have the decryption_key option
+			// of the MP4 demuxer, check whether it is present in its help.
+			AtomicBoolean found = new AtomicBoolean();
+			
+			try(ReadOnlyProcess process = FFmpeg.createAsynchronousProcess((line) -> {
+					if(line.contains("decryption_key")) {
+						found.set(true);
+					}
+				})) {
+				process.execute("-hide_banner -h demuxer=mov");
+				process.waitFor();
+			}
+			
+			logDebug("FFmpeg decryption_key option supported: %s", found.get());
+			return decryptionKeySupported = found.get();
+		}
+	}
+	
+	/**
+	 * Gets the key for each of the media, {@code null} for clear media, that can be
+	 * passed to FFmpeg's MP4 demuxer. Since the demuxer accepts only a single key per
+	 * input and decrypts only the {@code cenc} scheme, {@code null} is returned if any
+	 * of the protected media uses a different scheme or more than one KID.
+	 */
+	private final List<String> fusedKeys() throws Exception {
+		List<String> fusedKeys = new ArrayList<>(conversionMedia.size());
+		int videoIndex = 0, audioIndex = 0;
+		
+		for(ConversionMedia cm : conversionMedia) {
+			if(!cm.media().metadata().isProtected()) {
+				fusedKeys.add(null);
+				continue;
+			}
+			
+			int indexOfType = cm.media().type().is(MediaType.VIDEO) ? videoIndex++ : audioIndex++;
+			List<MediaDecryptionKey> trackKeys = keys.all(cm.media(), indexOfType);
+			
+			if(trackKeys.isEmpty()) {
+				return null;
+			}
+			
+			CENCDecryptor engine = CENCDecryptor.of(cm.path());
+			Set<String> keyIds = engine.keyIds();
+			
+			if(!engine.isSupported()
+					|| !engine.schemes().equals(Set.of(EncryptionScheme.CENC))
+					|| keyIds.size() != 1) {
+				logDebug("Cannot fuse decryption of %s", cm.path().getFileName());
+				return null;
+			}
+			
+			String keyId = keyIds.iterator().next();
+			MediaDecryptionKey key = trackKeys.stream()
+				.filter((k) -> k.kid().replace("-", "").equalsIgnoreCase(keyId))
+				.findFirst().orElse(trackKeys.get(0));
+			
+			fusedKeys.add(key.key());
+		}
+		
+		return fusedKeys;
+	}
+	
+	private final String fusedCommand(List<String> fusedKeys, Path output) {
+		StringBuilder command = new StringBuilder("-y -hide_banner -xerror");
+		
+		for(int i = 0, l = conversionMedia.size(); i < l; ++i) {
+			String key = fusedKeys.get(i);
+			
+			if(key != null) {
+				// Applies only to the following input
+				command.append(" -decryption_key ").append(key);
+			}
+			
+			command.append(" -i \"").append(conversionMedia.get(i).path().toAbsolutePath()).append('"');
+		}
+		
+		for(int i = 0, l = conversionMedia.size(); i < l; ++i) {
+			command.append(" -map ").append(i);
+		}
+		
+		command.append(" -c copy \"").append(output.toAbsolutePath()).append('"');
+		return command.toString();
+	}
+	
+	private final boolean decryptFused(List<String> fusedKeys) throws Exception {
+		int retval = -1;
+		ProcessListener processListener = null;
+		ReadOnlyProcess decryptProcess = null;
+		try {
+			processListener = Common.newProcessListener("ffmpeg");
+			processListeners.add(processListener);
+			decryptProcess = FFmpeg.createAsynchronousProcess(processListener);
+			decryptProcesses.add(decryptProcess);
+			
+			String command = fusedCommand(fusedKeys, fusedOutput);
+			logDebug("ffmpeg %s", command.replaceAll("(-decryption_key) \\S+", "$1 <key>"));
+			
+			decryptProcess.execute(command);
+			retval = decryptProcess.waitFor();
+		} catch(IOException ex) {
+			// Temporary fix: Ignore the IOException that is thrown when the reader
+			// of the process is forcibly closed.
+			String message = ex.getMessage();
+			
+			if(message == null
+					|| !message.equals("Stream closed")) {
+				throw ex; // Propagate
+			}
+		} finally {
+			if(processListener != null) {
+				processListener.close();
+				processListeners.remove(processListener);
+			}
+			
+			if(decryptProcess != null) {
+				decryptProcesses.remove(decryptProcess);
+			}
+		}
+		
+		if(retval != 0) {
+			logDebug("Fused decryption exited with code %d%s", retval, outputTail(processListener));
+			NIO.deleteFile(fusedOutput);
+			return false;
+		}
+		
+		// The inputs are no longer needed, since the output is already converted
+		for(ConversionMedia cm : conversionMedia) {
+			NIO.deleteFile(cm.path());
+			FragmentIndexFile.delete(cm.path());
+		}
+		
+		return true;
+	}
+	
+	private final boolean maybeDecryptFused(DecryptionProcessTracker tracker) throws Exception {
+		if(fusedOutput == null || !isDecryptionKeySupported()) {
+			return false;
+		}
+		
+		List<String> fusedKeys = fusedKeys();
+		
+		if(fusedKeys == null) {
+			return false;
+		}
+		
+		DRMScheduler.Permit permit = acquireDecryption(tracker);
+		
+		if(permit == null) {
+			return false; // Cancelled while waiting
+		}
+		
+		tracker.state(DecryptionProcessState.DECRYPT_CONVERT);
+		TrackDecryptionEvent event = DRMEvents.trackDecryption();
+		boolean completed = false;
+		long start = System.nanoTime();
+		
+		try {
+			if(decryptFused(fusedKeys)) {
+				completed = true;
+				return true;
+			}
+		} finally {
+			permit.close();
+			
+			long size = NIO.exists(fusedOutput) ? Files.size(fusedOutput) : 0L;
+			
+			if(completed) {
+				DRMMetrics.decryption("ffmpeg", size, System.nanoTime() - start);
+			}
+			
+			if(event != null) {
+				event.end(fusedOutput.getFileName().toString(), "ffmpeg", "all", size, completed);
+			}
+		}
+		
+		logDebug("Fused decryption failed, decrypt separately");
+		return false;
 	}
 	
 	private final void processAction(CheckedConsumer<Process> action) throws Exception {
-		Process process;
+		for(ReadOnlyProcess decryptProcess : decryptProcesses) {
+			Process process;
+			
+			// Check the chain of values to avoid NPE
+			if((process = decryptProcess.process()) == null) {
+				continue;
+			}
+			
+			action.accept(process);
+		}
+	}
+	
+	private final void terminate() throws Exception {
+		state.unset(TaskStates.RUNNING);
+		state.unset(TaskStates.PAUSED);
+		lockPause.unlock();
 		
-		// Check the chain of values to avoid NPE
-		if(decryptProcess == null
-				|| (process = decryptProcess.process()) == null) {
-			return;
+		for(ProcessListener processListener : processListeners) {
+			processListener.close();
 		}
 		
-		action.accept(process);
+		for(ReadOnlyProcess decryptProcess : decryptProcesses) {
+			decryptProcess.close();
+		}
 	}
 	
 	public void start() throws Exception {
@@ -174,30 +913,30 @@ public final class Decryptor implements DecryptionContext {
 			DecryptionProcessTracker decryptTracker = new DecryptionProcessTracker();
 			trackerManager.tracker(decryptTracker);
 			
-			ConversionMedia video = protectedMediaOfType(MediaType.VIDEO);
-			ConversionMedia audio = protectedMediaOfType(MediaType.AUDIO);
-			
-			if(video == null || audio == null) {
-				throw new IllegalStateException("Both video and audio must be present");
+			if(maybeDecryptFused(decryptTracker)) {
+				isFused = true;
+				state.set(TaskStates.DONE);
+				return;
 			}
 			
-			Path pathVideo = video.path();
-			Path pathAudio = audio.path();
+			if(!checkState()) return;
 			
-			if(keyVideo != null) {
-				decryptTracker.state(DecryptionProcessState.DECRYPT_VIDEO);
-				decrypt(pathVideo, keyVideo);
-				
-				if(!checkState()) return;
-			}
+			// Decrypt the tracks concurrently, so that the smaller ones (usually audio)
+			// do not prolong the whole decryption process.
+			List<Callable<Void>> tasks = new ArrayList<>();
+			addTasks(tasks, decryptTracker, MediaType.VIDEO, DecryptionProcessState.DECRYPT_VIDEO);
+			addTasks(tasks, decryptTracker, MediaType.AUDIO, DecryptionProcessState.DECRYPT_AUDIO);
 			
-			if(keyAudio != null) {
-				decryptTracker.state(DecryptionProcessState.DECRYPT_AUDIO);
-				decrypt(pathAudio, keyAudio);
-				
-				if(!checkState()) return;
+			if(tasks.isEmpty()
+					&& protectedMediaOfType(MediaType.VIDEO).isEmpty()
+					&& protectedMediaOfType(MediaType.AUDIO).isEmpty()) {
+				throw new IllegalStateException("No protected media to decrypt");
 			}
 			
+			decryptConcurrently(tasks, decryptTracker);
+			
+			if(!checkState()) return;
+			
 			state.set(TaskStates.DONE);
 		} catch(Exception ex) {
 			exception = ex;
@@ -214,17 +953,7 @@ public final class Decryptor implements DecryptionContext {
 			return; // Nothing to do
 		}
 		
-		state.unset(TaskStates.RUNNING);
-		state.unset(TaskStates.PAUSED);
-		lockPause.unlock();
-		
-		if(processListener != null) {
-			processListener.close();
-		}
-		
-		if(decryptProcess != null) {
-			decryptProcess.close();
-		}
+		terminate();
 		
 		if(!state.is(TaskStates.DONE)) {
 			state.set(TaskStates.STOPPED);
@@ -258,6 +987,13 @@ public final class Decryptor implements DecryptionContext {
 		eventRegistry.call(DecryptionEvent.RESUME, this);
 	}
 	
+	/**
+	 * Gets whether the media were decrypted and merged directly to the fused output.
+	 */
+	public boolean isFused() {
+		return isFused;
+	}
+	
 	@Override
 	public boolean isRunning() {
 		return state.is(TaskStates.RUNNING);
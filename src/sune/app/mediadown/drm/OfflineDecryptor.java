@@ -0,0 +1,379 @@
+package sune.app.mediadown.drm;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import sune.app.mediadown.drm.cenc.CENCDecryptor;
+import sune.app.mediadown.drm.cenc.Fragment;
+import sune.app.mediadown.drm.cenc.FragmentIndexFile;
+import sune.app.mediadown.drm.cenc.FragmentTimeline;
+import sune.app.mediadown.drm.util.MediaDecryptionKey;
+import sune.app.mediadown.drm.util.TimeRange;
+
+/**
+ * Headless decryption of already downloaded, but still encrypted, files, e.g. the
+ * {@code .video.seg} and {@code .audio.seg} files left after a crash or when the keys
+ * were obtained on another host. All the matching files in a directory are decrypted
+ * in place, in parallel, using the in-process decryption, or mp4decrypt, if given, for
+ * the content the in-process decryption does not support. Files without any protected
+ * sample entries are skipped, since they are already decrypted. Stopped decryptions
+ * are resumed. The arguments are given as {@code name=value} pairs:
+ * <ul>
+ * <li>{@code dir} - directory with the encrypted files, required,</li>
+ * <li>{@code keys} - file with the keys, one {@code KID:key} pair (in hexadecimal)
+ * per line, empty lines and lines starting with {@code #} are ignored, required,</li>
+ * <li>{@code glob} - glob of the names of the files, {@code *.seg} by default,</li>
+ * <li>{@code recursive} - whether to include subdirectories, {@code false} by default,</li>
+ * <li>{@code files} - number of files decrypted at once, {@code 2} by default,</li>
+ * <li>{@code threads} - threads of every file, if not positive, the available processors
+ * are divided among the files,</li>
+ * <li>{@code start} and {@code end} - clip to keep, in seconds or in the
+ * {@code [[hh:]mm:]ss[.fff]} form, only the fragments covering it are decrypted,
+ * the rest is dropped, the whole files are decrypted by default,</li>
+ * <li>{@code mp4decrypt} - path to mp4decrypt.</li>
+ * </ul>
+ * The process exits with a non-zero code, if any file could not be decrypted.
+ * @author Sune
+ */
+public final class OfflineDecryptor {
+	
+	private static final String SUFFIX_DECRYPTED = ".decrypted";
+	
+	private final List<MediaDecryptionKey> keys;
+	private final int threads;
+	private final String mp4decrypt;
+	private final TimeRange clip;
+	
+	private OfflineDecryptor(List<MediaDecryptionKey> keys, int threads, String mp4decrypt, TimeRange clip) {
+		this.keys = keys;
+		this.threads = threads;
+		this.mp4decrypt = mp4decrypt;
+		this.clip = clip;
+	}
+	
+	private static final Map<String, String> parseArgs(String[] args) {
+		Map<String, String> values = new HashMap<>();
+		
+		for(String arg : args) {
+			int index = arg.indexOf('=');
+			
+			if(index <= 0) {
+				throw new IllegalArgumentException("Invalid argument: " + arg);
+			}
+			
+			values.put(arg.substring(0, index), arg.substring(index + 1));
+		}
+		
+		return values;
+	}
+	
+	private static final String required(Map<String, String> values, String name) {
+		String value = values.get(name);
+		
+		if(value == null || value.isBlank()) {
+			throw new IllegalArgumentException("Missing argument: " + name);
+		}
+		
+		return value;
+	}
+	
+	private static final List<MediaDecryptionKey> readKeys(Path path) throws IOException {
+		List<MediaDecryptionKey> keys = new ArrayList<>();
+		
+		for(String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+			line = line.strip();
+			
+			if(line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			
+			int index = line.indexOf(':');
+			
+			if(index <= 0 || index == line.length() - 1) {
+				throw new IllegalArgumentException("Invalid key: " + line);
+			}
+			
+			keys.add(new MediaDecryptionKey(
+				line.substring(0, index).strip().replace("-", "").toLowerCase(Locale.ROOT),
+				line.substring(index + 1).strip().toLowerCase(Locale.ROOT)
+			));
+		}
+		
+		if(keys.isEmpty()) {
+			throw new IllegalArgumentException("No keys in " + path);
+		}
+		
+		return keys;
+	}
+	
+	private static final List<Path> files(Path dir, String glob, boolean recursive) throws IOException {
+		PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+		PathMatcher matcherDecrypted = FileSystems.getDefault().getPathMatcher("glob:" + glob + SUFFIX_DECRYPTED);
+		
+		try(Stream<Path> stream = recursive ? Files.walk(dir) : Files.list(dir)) {
+			return stream
+				.filter(Files::isRegularFile)
+				.map((file) -> {
+					Path name = file.getFileName();
+					
+					if(matcher.matches(name)) {
+						return file;
+					}
+					
+					// Stopped after the input file was already replaced, include it to finish it
+					if(matcherDecrypted.matches(name)) {
+						Path input = inputPath(file);
+						return Files.exists(input) ? null : input;
+					}
+					
+					return null;
+				})
+				.filter((file) -> file != null)
+				.sorted()
+				.collect(Collectors.toList());
+		}
+	}
+	
+	private static final Path decryptedPath(Path input) {
+		return input.resolveSibling(input.getFileName() + SUFFIX_DECRYPTED);
+	}
+	
+	private static final Path inputPath(Path output) {
+		String name = output.getFileName().toString();
+		return output.resolveSibling(name.substring(0, name.length() - SUFFIX_DECRYPTED.length()));
+	}
+	
+	private static final void replace(Path input, Path output) throws IOException {
+		Files.move(output, input, StandardCopyOption.REPLACE_EXISTING);
+		FragmentIndexFile.delete(input);
+	}
+	
+	private final void runMP4Decrypt(Path input, Path output) throws Exception {
+		List<String> command = new ArrayList<>();
+		command.add(mp4decrypt);
+		
+		for(MediaDecryptionKey key : keys) {
+			command.add("--key");
+			command.add(key.kid() + ':' + key.key());
+		}
+		
+		command.add(input.toAbsolutePath().toString());
+		command.add(output.toAbsolutePath().toString());
+		
+		Process process = new ProcessBuilder(command)
+			.redirectErrorStream(true)
+			.redirectOutput(ProcessBuilder.Redirect.DISCARD)
+			.start();
+		
+		int retval = process.waitFor();
+		
+		if(retval != 0) {
+			Files.deleteIfExists(output);
+			throw new IllegalStateException("mp4decrypt ended unsuccessfully (exit code " + retval + ")");
+		}
+	}
+	
+	private final Result decrypt(Path input) throws Exception {
+		Path output = decryptedPath(input);
+		
+		if(!Files.exists(input) && Files.exists(output)) {
+			replace(input, output);
+			return Result.decrypted(input, 0L, 0L, "finished");
+		}
+		
+		long size = Files.size(input);
+		CENCDecryptor engine = CENCDecryptor.of(input);
+		
+		if(!engine.isProtected()) {
+			return Result.skipped(input, "already decrypted");
+		}
+		
+		long start = System.nanoTime();
+		
+		if(engine.isSupported()) {
+			Set<String> missing = engine.keyIds().stream()
+				.filter((kid) -> keys.stream().noneMatch((k) -> k.kid().equals(kid)))
+				.collect(Collectors.toSet());
+			
+			if(!missing.isEmpty()) {
+				return Result.failed(input, "no key for KID " + String.join(", ", missing));
+			}
+			
+			FragmentTimeline timeline = clip != null ? engine.timeline() : null;
+			
+			if(timeline != null) {
+				List<Fragment> fragments = timeline.covering(clip.start(), clip.end());
+				
+				if(fragments.isEmpty()) {
+					return Result.failed(input, "clip " + clip + " outside of the file");
+				}
+				
+				CENCDecryptor.discard(output);
+				
+				if(!engine.decrypt(output, keys, fragments, () -> true, (n) -> {})) {
+					return Result.failed(input, "not completed");
+				}
+				
+				replace(input, output);
+				return Result.decrypted(input, size, System.nanoTime() - start,
+					"clip " + clip + ", " + fragments.size() + " of " + engine.index().fragments().size()
+						+ " fragments");
+			}
+			
+			if(!engine.decrypt(output, keys, threads, () -> true)) {
+				return Result.failed(input, "not completed");
+			}
+			
+			replace(input, output);
+			return Result.decrypted(input, size, System.nanoTime() - start,
+				clip != null ? "in-process, unknown times, whole file" : "in-process");
+		}
+		
+		if(mp4decrypt == null) {
+			return Result.failed(input, "not supported in-process, mp4decrypt not given");
+		}
+		
+		runMP4Decrypt(input, output);
+		replace(input, output);
+		return Result.decrypted(input, size, System.nanoTime() - start, "mp4decrypt");
+	}
+	
+	private static final double throughput(long bytes, long nanos) {
+		return nanos > 0L ? bytes / (nanos / 1e9) / 1e6 : 0.0;
+	}
+	
+	public static final void main(String[] args) throws Exception {
+		Map<String, String> values = parseArgs(args);
+		Path dir = Path.of(required(values, "dir"));
+		List<MediaDecryptionKey> keys = readKeys(Path.of(required(values, "keys")));
+		List<Path> files = files(
+			dir, values.getOrDefault("glob", "*.seg"), Boolean.parseBoolean(values.get("recursive"))
+		);
+		
+		int processors = Runtime.getRuntime().availableProcessors();
+		int concurrentFiles = Math.max(1, Integer.parseInt(values.getOrDefault("files", "2")));
+		int threads = Integer.parseInt(values.getOrDefault("threads", "0"));
+		
+		if(threads <= 0) {
+			threads = Math.max(1, processors / Math.min(concurrentFiles, Math.max(1, files.size())));
+		}
+		
+		TimeRange clip = null;
+		
+		if(values.containsKey("start") || values.containsKey("end")) {
+			clip = TimeRange.of(
+				TimeRange.parseTime(values.getOrDefault("start", "0")),
+				values.containsKey("end") ? TimeRange.parseTime(values.get("end")) : Double.POSITIVE_INFINITY
+			);
+		}
+		
+		OfflineDecryptor decryptor = new OfflineDecryptor(keys, threads, values.get("mp4decrypt"), clip);
+		System.out.printf(Locale.ROOT, "Decrypt %d file(s), %d at once using %d thread(s) each%n",
+			files.size(), concurrentFiles, threads);
+		
+		ExecutorService executor = Executors.newFixedThreadPool(concurrentFiles);
+		List<Future<Result>> futures = new ArrayList<>(files.size());
+		long start = System.nanoTime();
+		
+		for(Path file : files) {
+			futures.add(executor.submit(() -> {
+				Result result;
+				
+				try {
+					result = decryptor.decrypt(file);
+				} catch(Exception ex) {
+					result = Result.failed(file, String.valueOf(ex.getMessage()));
+				}
+				
+				System.out.println(result);
+				return result;
+			}));
+		}
+		
+		int decrypted = 0, skipped = 0, failed = 0;
+		long bytes = 0L;
+		
+		try {
+			for(Future<Result> future : futures) {
+				Result result = future.get();
+				
+				switch(result.status) {
+					case DECRYPTED: ++decrypted; bytes += result.bytes; break;
+					case SKIPPED: ++skipped; break;
+					case FAILED: ++failed; break;
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		
+		long elapsed = System.nanoTime() - start;
+		System.out.printf(Locale.ROOT,
+			"Decrypted: %d, skipped: %d, failed: %d, %d bytes in %.2f s (%.1f MB/s)%n",
+			decrypted, skipped, failed, bytes, elapsed / 1e9, throughput(bytes, elapsed));
+		
+		if(failed > 0) {
+			System.exit(1);
+		}
+	}
+	
+	private static enum Status {
+		
+		DECRYPTED, SKIPPED, FAILED;
+	}
+	
+	private static final class Result {
+		
+		private final Path file;
+		private final Status status;
+		private final long bytes;
+		private final long nanos;
+		private final String detail;
+		
+		private Result(Path file, Status status, long bytes, long nanos, String detail) {
+			this.file = file;
+			this.status = status;
+			this.bytes = bytes;
+			this.nanos = nanos;
+			this.detail = detail;
+		}
+		
+		public static final Result decrypted(Path file, long bytes, long nanos, String engine) {
+			return new Result(file, Status.DECRYPTED, bytes, nanos, engine);
+		}
+		
+		public static final Result skipped(Path file, String reason) {
+			return new Result(file, Status.SKIPPED, 0L, 0L, reason);
+		}
+		
+		public static final Result failed(Path file, String reason) {
+			return new Result(file, Status.FAILED, 0L, 0L, reason);
+		}
+		
+		@Override
+		public String toString() {
+			if(status != Status.DECRYPTED || nanos == 0L) {
+				return String.format(Locale.ROOT, "%s: %s (%s)", file, status.name().toLowerCase(Locale.ROOT), detail);
+			}
+			
+			return String.format(Locale.ROOT, "%s: decrypted (%s, %d bytes, %.1f MB/s)",
+				file, detail, bytes, throughput(bytes, nanos));
+		}
+	}
+}
\ No newline at end of file
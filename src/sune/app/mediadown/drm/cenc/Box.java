@@ -0,0 +1,132 @@
+package sune.app.mediadown.drm.cenc;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Header of a single ISO BMFF box located in a buffer.
+ * @author Sune
+ */
+final class Box {
+	
+	static final int FTYP = fourcc("ftyp");
+	static final int MOOV = fourcc("moov");
+	static final int MOOF = fourcc("moof");
+	static final int SIDX = fourcc("sidx");
+	static final int MDAT = fourcc("mdat");
+	static final int TRAK = fourcc("trak");
+	static final int TKHD = fourcc("tkhd");
+	static final int MDIA = fourcc("mdia");
+	static final int MDHD = fourcc("mdhd");
+	static final int MINF = fourcc("minf");
+	static final int STBL = fourcc("stbl");
+	static final int STSD = fourcc("stsd");
+	static final int MVEX = fourcc("mvex");
+	static final int TREX = fourcc("trex");
+	static final int ENCV = fourcc("encv");
+	static final int ENCA = fourcc("enca");
+	static final int SINF = fourcc("sinf");
+	static final int FRMA = fourcc("frma");
+	static final int SCHM = fourcc("schm");
+	static final int SCHI = fourcc("schi");
+	static final int TENC = fourcc("tenc");
+	static final int TRAF = fourcc("traf");
+	static final int TFHD = fourcc("tfhd");
+	static final int TFDT = fourcc("tfdt");
+	static final int TRUN = fourcc("trun");
+	static final int SENC = fourcc("senc");
+	static final int SAIZ = fourcc("saiz");
+	static final int SAIO = fourcc("saio");
+	static final int SBGP = fourcc("sbgp");
+	static final int SGPD = fourcc("sgpd");
+	static final int SEIG = fourcc("seig");
+	static final int FREE = fourcc("free");
+	static final int UUID = fourcc("uuid");
+	
+	final int type;
+	final int offset;
+	final int headerSize;
+	final int size;
+	
+	private Box(int type, int offset, int headerSize, int size) {
+		this.type = type;
+		this.offset = offset;
+		this.headerSize = headerSize;
+		this.size = size;
+	}
+	
+	static final int fourcc(String name) {
+		byte[] bytes = name.getBytes(StandardCharsets.US_ASCII);
+		return (bytes[0] & 0xff) << 24 | (bytes[1] & 0xff) << 16 | (bytes[2] & 0xff) << 8 | (bytes[3] & 0xff);
+	}
+	
+	static final String name(int type) {
+		return new String(new byte[] {
+			(byte) (type >>> 24), (byte) (type >>> 16), (byte) (type >>> 8), (byte) type
+		}, StandardCharsets.US_ASCII);
+	}
+	
+	static final Box read(ByteBuffer buf, int offset, int limit) {
+		if(limit - offset < 8) {
+			throw new IllegalStateException("Truncated box header at " + offset);
+		}
+		
+		long size = buf.getInt(offset) & 0xffffffffL;
+		int type = buf.getInt(offset + 4);
+		int headerSize = 8;
+		
+		if(size == 1L) {
+			if(limit - offset < 16) {
+				throw new IllegalStateException("Truncated box header at " + offset);
+			}
+			
+			size = buf.getLong(offset + 8);
+			headerSize = 16;
+		} else if(size == 0L) {
+			// The box extends to the end of its container
+			size = limit - offset;
+		}
+		
+		if(type == UUID) {
+			headerSize += 16;
+		}
+		
+		if(size < headerSize || size > limit - offset) {
+			throw new IllegalStateException("Invalid size of box '" + name(type) + "' at " + offset);
+		}
+		
+		return new Box(type, offset, headerSize, (int) size);
+	}
+	
+	static final Box first(ByteBuffer buf, int start, int end, int type) {
+		for(int pos = start; pos < end;) {
+			Box box = read(buf, pos, end);
+			
+			if(box.type == type) {
+				return box;
+			}
+			
+			pos = box.end();
+		}
+		
+		return null;
+	}
+	
+	static final void get(ByteBuffer buf, int pos, byte[] dst) {
+		for(int i = 0, l = dst.length; i < l; ++i) {
+			dst[i] = buf.get(pos + i);
+		}
+	}
+	
+	int content() {
+		return offset + headerSize;
+	}
+	
+	int end() {
+		return offset + size;
+	}
+	
+	void rename(ByteBuffer buf, int newType) {
+		buf.putInt(offset + 4, newType);
+	}
+}
\ No newline at end of file
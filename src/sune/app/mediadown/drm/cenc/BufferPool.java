@@ -0,0 +1,243 @@
+package sune.app.mediadown.drm.cenc;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of buffers used by the decryption, so that the decryption of a file
+ * in the steady state allocates almost nothing and does not cause garbage collection
+ * pauses in the rest of the application. The capacities of the buffers are rounded
+ * up to a power of two. A buffer released by a thread is kept for the same thread
+ * first, other buffers are shared by all the threads. Both the kept and the shared
+ * buffers count to the maximum total size, the buffer of a thread that ended without
+ * releasing it, see {@link #releaseLocal()}, stops counting once it is collected.
+ * <p>
+ * The buffers are heap buffers, since the decryption works with their arrays.</p>
+ * @author Sune
+ */
+public final class BufferPool {
+	
+	private static final BufferPool INSTANCE = new BufferPool();
+	
+	/** Capacity of the smallest buffer, smaller requests get a buffer of this capacity. */
+	private static final int MIN_CAPACITY = 64 * 1024;
+	/** Number of size classes, i.e. the largest pooled buffer has 2^(N-1) times the minimum capacity. */
+	private static final int NUM_OF_CLASSES = 12;
+	/** Maximum total capacity of the pooled buffers, other buffers are left to GC. */
+	private static final long MAX_POOLED_BYTES = 256L * 1024L * 1024L;
+	
+	private static final Cleaner cleaner = Cleaner.create();
+	
+	private final List<Deque<ByteBuffer>> shared = new ArrayList<>(NUM_OF_CLASSES);
+	private final ThreadLocal<LocalBuffer> local = ThreadLocal.withInitial(this::newLocalBuffer);
+	/** Total capacity of the pooled buffers, both shared and kept for threads. */
+	private final AtomicLong pooledBytes = new AtomicLong();
+	
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong inUseBytes = new AtomicLong();
+	private final AtomicLong highWaterMark = new AtomicLong();
+	
+	// Forbid anyone to create an instance of this class
+	private BufferPool() {
+		for(int i = 0; i < NUM_OF_CLASSES; ++i) {
+			shared.add(new ConcurrentLinkedDeque<>());
+		}
+	}
+	
+	public static final BufferPool instance() {
+		return INSTANCE;
+	}
+	
+	private static final int sizeClass(int capacity) {
+		if(capacity <= MIN_CAPACITY) {
+			return 0;
+		}
+		
+		return 32 - Integer.numberOfLeadingZeros((capacity - 1) / MIN_CAPACITY);
+	}
+	
+	private static final int capacity(int sizeClass) {
+		return MIN_CAPACITY << sizeClass;
+	}
+	
+	private final LocalBuffer newLocalBuffer() {
+		AtomicLong bytes = new AtomicLong();
+		LocalBuffer buffer = new LocalBuffer(bytes);
+		// The buffer of an ended thread is collected with the thread, do not count it anymore
+		cleaner.register(buffer, () -> pooledBytes.addAndGet(-bytes.getAndSet(0L)));
+		return buffer;
+	}
+	
+	private final boolean reserve(int capacity) {
+		if(pooledBytes.addAndGet(capacity) > MAX_POOLED_BYTES) {
+			pooledBytes.addAndGet(-capacity);
+			return false;
+		}
+		
+		return true;
+	}
+	
+	private final ByteBuffer take(ByteBuffer buf, int size) {
+		long inUse = inUseBytes.addAndGet(buf.capacity());
+		highWaterMark.accumulateAndGet(inUse, Math::max);
+		return buf.clear().limit(size);
+	}
+	
+	/**
+	 * Gets a buffer with the capacity of at least the given size and the limit set
+	 * to the size. The buffer should be released once it is no longer needed.
+	 */
+	public ByteBuffer acquire(int size) {
+		if(size < 0) {
+			throw new IllegalArgumentException("Size must be non-negative");
+		}
+		
+		LocalBuffer localBuffer = local.get();
+		ByteBuffer buf = localBuffer.buf;
+		
+		if(buf != null && buf.capacity() >= size) {
+			localBuffer.take();
+			hits.incrementAndGet();
+			return take(buf, size);
+		}
+		
+		int sizeClass = sizeClass(size);
+		
+		if(sizeClass < NUM_OF_CLASSES) {
+			// Try also the larger classes, a slightly larger buffer is better than a new one
+			for(int i = sizeClass, l = Math.min(sizeClass + 2, NUM_OF_CLASSES); i < l; ++i) {
+				if((buf = shared.get(i).pollFirst()) != null) {
+					pooledBytes.addAndGet(-buf.capacity());
+					hits.incrementAndGet();
+					return take(buf, size);
+				}
+			}
+		}
+		
+		misses.incrementAndGet();
+		int capacity = sizeClass < NUM_OF_CLASSES ? capacity(sizeClass) : size;
+		return take(ByteBuffer.allocate(capacity), size);
+	}
+	
+	/**
+	 * Returns the buffer to the pool. The buffer must not be used afterwards.
+	 */
+	public void release(ByteBuffer buf) {
+		if(buf == null) {
+			return; // Nothing to do
+		}
+		
+		inUseBytes.addAndGet(-buf.capacity());
+		LocalBuffer localBuffer = local.get();
+		ByteBuffer current = localBuffer.buf;
+		
+		if(current == null || current.capacity() < buf.capacity()) {
+			// Keep the larger buffer for this thread, share the other one
+			localBuffer.take();
+			
+			if(!localBuffer.keep(buf)) {
+				// Pool is full, keep the previous buffer and leave this one to GC
+				localBuffer.keep(current);
+				return;
+			}
+			
+			buf = current;
+		}
+		
+		share(buf);
+	}
+	
+	private final void share(ByteBuffer buf) {
+		if(buf == null) {
+			return; // Nothing to do
+		}
+		
+		int sizeClass = sizeClass(buf.capacity());
+		
+		if(sizeClass >= NUM_OF_CLASSES || buf.capacity() != capacity(sizeClass)) {
+			return; // Not pooled
+		}
+		
+		if(!reserve(buf.capacity())) {
+			return; // Pool is full, leave the buffer to GC
+		}
+		
+		shared.get(sizeClass).offerFirst(buf);
+	}
+	
+	/**
+	 * Moves the buffer kept for the current thread to the shared buffers. Should be
+	 * called by threads that are about to end, so that their buffer is not lost.
+	 */
+	public void releaseLocal() {
+		share(local.get().take());
+	}
+	
+	/** Gets the number of requests served by a pooled buffer. */
+	public long hits() {
+		return hits.get();
+	}
+	
+	/** Gets the number of requests that had to allocate a new buffer. */
+	public long misses() {
+		return misses.get();
+	}
+	
+	/** Gets the total capacity of the buffers currently acquired. */
+	public long inUseBytes() {
+		return inUseBytes.get();
+	}
+	
+	/** Gets the maximum total capacity of the buffers acquired at the same time. */
+	public long highWaterMark() {
+		return highWaterMark.get();
+	}
+	
+	/** Gets the total capacity of the buffers ready to be reused, shared and kept for threads. */
+	public long pooledBytes() {
+		return pooledBytes.get();
+	}
+	
+	/**
+	 * Buffer kept for a single thread. Its capacity is held also separately, so that
+	 * it can be uncounted once the buffer is collected together with its thread.
+	 */
+	private final class LocalBuffer {
+		
+		private final AtomicLong bytes;
+		private ByteBuffer buf;
+		
+		LocalBuffer(AtomicLong bytes) {
+			this.bytes = bytes;
+		}
+		
+		/** Removes the kept buffer, if any. */
+		ByteBuffer take() {
+			ByteBuffer taken = buf;
+			buf = null;
+			pooledBytes.addAndGet(-bytes.getAndSet(0L));
+			return taken;
+		}
+		
+		/** Keeps the given buffer, if the pool is not full. There must be no kept buffer. */
+		boolean keep(ByteBuffer buf) {
+			if(buf == null) {
+				return true; // Nothing to do
+			}
+			
+			if(!reserve(buf.capacity())) {
+				return false;
+			}
+			
+			this.buf = buf;
+			bytes.set(buf.capacity());
+			return true;
+		}
+	}
+}
\ No newline at end of file
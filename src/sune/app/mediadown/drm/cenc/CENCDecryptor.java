@@ -0,0 +1,535 @@
+package sune.app.mediadown.drm.cenc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntSupplier;
+import java.util.function.LongConsumer;
+
+import sune.app.mediadown.drm.util.MediaDecryptionKey;
+
+/**
+ * In-process decryption of fragmented MP4 files protected using the Common
+ * Encryption. The fragments are independent of each other, therefore they are
+ * decrypted concurrently and written directly to their position in the output file.
+ * The amount of used memory is bounded by the number of threads and the size of
+ * the largest fragment.
+ * @author Sune
+ */
+public final class CENCDecryptor {
+	
+	/** Interval of checking whether an idle worker may continue. */
+	private static final long IDLE_WAIT_MS = 50L;
+	/** Size of the header of a box with a 64-bit size. */
+	private static final int MAX_BOX_HEADER_SIZE = 16;
+	
+	private final Path input;
+	private final FragmentIndex index;
+	private final InitSegment init;
+	private final FragmentIndexFile indexFile;
+	
+	private CENCDecryptor(Path input, FragmentIndex index, InitSegment init, FragmentIndexFile indexFile) {
+		this.input = input;
+		this.index = index;
+		this.init = init;
+		this.indexFile = indexFile;
+	}
+	
+	/**
+	 * Reads the init segment to a pooled buffer, which must be released afterwards.
+	 */
+	private static final ByteBuffer readInit(FileChannel channel, FragmentIndex index) throws IOException {
+		if(index.initSize() > Integer.MAX_VALUE) {
+			throw new IOException("Init segment too large");
+		}
+		
+		ByteBuffer buf = BufferPool.instance().acquire((int) index.initSize());
+		
+		try {
+			IO.readFully(channel, buf, 0L);
+		} catch(IOException ex) {
+			BufferPool.instance().release(buf);
+			throw ex; // Propagate
+		}
+		
+		return buf;
+	}
+	
+	/**
+	 * Gets a pooled buffer for the given fragment, which must be released afterwards.
+	 */
+	private static final ByteBuffer fragmentBuffer(Fragment fragment) throws IOException {
+		if(fragment.size() > Integer.MAX_VALUE) {
+			throw new IOException("Fragment too large");
+		}
+		
+		return BufferPool.instance().acquire((int) fragment.size());
+	}
+	
+	private static final int parallelism(int requested, int numOfFragments) {
+		int parallelism = requested > 0 ? requested : Runtime.getRuntime().availableProcessors();
+		return Math.max(1, Math.min(parallelism, numOfFragments));
+	}
+	
+	/**
+	 * Waits while the worker of the given ID is not allowed to run by the number
+	 * of active workers.
+	 * @return {@code true}, if the worker may continue, or {@code false}, if there
+	 * is nothing to do anymore.
+	 */
+	private static final boolean awaitActive(int id, IntSupplier activeWorkers, AtomicInteger next, int numOfFragments,
+			AtomicBoolean abort) throws InterruptedException {
+		while(id >= activeWorkers.getAsInt()) {
+			if(abort.get() || next.get() >= numOfFragments) {
+				return false;
+			}
+			
+			Thread.sleep(IDLE_WAIT_MS);
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Scans the fragments of a supported and protected file and writes the sidecar
+	 * with the results, so that the next time the file is opened, it is not scanned
+	 * again.
+	 */
+	private static final FragmentIndexFile indexFile(Path input, FileChannel channel, FragmentIndex index,
+			ByteBuffer initBuf, InitSegment init) throws IOException {
+		if(init == null || !init.isSupported() || !init.isProtected()) {
+			return null;
+		}
+		
+		FragmentIndexFile indexFile = FragmentIndexFile.scan(input, channel, index, initBuf, init);
+		
+		try {
+			indexFile.write(input);
+		} catch(IOException ex) {
+			// Not critical, the file will just be scanned again next time
+		}
+		
+		return indexFile;
+	}
+	
+	/**
+	 * Opens the given file. If the file has a valid sidecar with the index of its
+	 * fragments, see {@link FragmentIndexFile}, the index is read from it, otherwise
+	 * the file is scanned and, if it is protected, the sidecar is written.
+	 */
+	public static final CENCDecryptor of(Path input) throws IOException {
+		try(FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+			FragmentIndexFile indexFile = FragmentIndexFile.load(input);
+			FragmentIndex index = indexFile != null ? indexFile.index() : FragmentIndex.build(channel);
+			InitSegment init = null;
+			
+			if(index.isFragmented()) {
+				ByteBuffer buf = readInit(channel, index);
+				
+				try {
+					init = InitSegment.parse(buf, 0, buf.limit());
+					
+					if(indexFile == null) {
+						indexFile = indexFile(input, channel, index, buf, init);
+					}
+				} catch(IllegalStateException | IndexOutOfBoundsException ex) {
+					// Malformed or unexpected init segment, leave it to other tools
+				} finally {
+					BufferPool.instance().release(buf);
+				}
+			}
+			
+			return new CENCDecryptor(input, index, init, indexFile);
+		}
+	}
+	
+	/**
+	 * Reads the size of the box at the given offset.
+	 * @return The size, or {@code -1}, if it cannot be determined this way.
+	 */
+	static final long boxSize(FileChannel in, long offset, long limit, ByteBuffer header)
+			throws IOException {
+		header.clear().limit((int) Math.min(MAX_BOX_HEADER_SIZE, limit - offset));
+		IO.readFully(in, header, offset);
+		long size = header.limit() >= 8 ? header.getInt(0) & 0xffffffffL : -1L;
+		
+		if(size == 1L) {
+			size = header.limit() >= 16 ? header.getLong(8) : -1L;
+		}
+		
+		return size >= 8L && size <= limit - offset ? size : -1L;
+	}
+	
+	private static final void transferFully(FileChannel in, long position, long count, FileChannel out)
+			throws IOException {
+		out.position(position);
+		
+		for(long end = position + count; position < end;) {
+			long transferred = in.transferTo(position, end - position, out);
+			
+			if(transferred <= 0L) {
+				throw new IOException("Unexpected end of file");
+			}
+			
+			position += transferred;
+		}
+	}
+	
+	/**
+	 * Copies the fragment without decrypting it, if it contains no protected samples.
+	 * Only the {@code moof} box is read and written using the buffer, the sample data
+	 * are transferred directly between the files, without copying them to the memory
+	 * of this process, if supported by the system.
+	 * @param buf The buffer with the capacity of at least the size of the fragment.
+	 * @return {@code true}, if the fragment was copied, otherwise {@code false}.
+	 */
+	private final boolean copyIfClear(FileChannel in, FileChannel out, FileChannel target, Fragment fragment,
+			ByteBuffer buf) throws IOException {
+		long moofSize = boxSize(in, fragment.offset(), fragment.end(), buf);
+		
+		if(moofSize < 0L) {
+			return false; // Leave unusual fragments to the decryption
+		}
+		
+		buf.clear().limit((int) moofSize);
+		IO.readFully(in, buf, fragment.offset());
+		
+		if(!FragmentDecryptor.clearIfUnprotected(buf, init)) {
+			return false;
+		}
+		
+		IO.writeFully(out, buf, fragment.offset());
+		transferFully(in, fragment.offset() + moofSize, fragment.size() - moofSize, target);
+		return true;
+	}
+	
+	private final long doneSize(DecryptionJournal journal) {
+		long size = 0L;
+		
+		for(Fragment fragment : index.fragments()) {
+			if(journal.isDone(fragment.index())) {
+				size += fragment.size();
+			}
+		}
+		
+		return size;
+	}
+	
+	private final boolean decryptFragments(FileChannel in, FileChannel out, Path output, DecryptionKeys keys,
+			int parallelism, IntSupplier activeWorkers, DecryptionJournal journal, BooleanSupplier checkState,
+			LongConsumer progress) throws Exception {
+		List<Fragment> fragments = index.fragments();
+		AtomicInteger next = new AtomicInteger();
+		AtomicBoolean abort = new AtomicBoolean();
+		List<Callable<Void>> workers = new ArrayList<>(parallelism);
+		
+		for(int i = 0; i < parallelism; ++i) {
+			int id = i;
+			workers.add(() -> {
+				SampleDecryptor decryptor = new SampleDecryptor();
+				
+				// Clear fragments are transferred to the output through a separate channel,
+				// since the transfer uses the position of the channel, which is not shared.
+				try(FileChannel target = FileChannel.open(output, StandardOpenOption.WRITE)) {
+					for(int f; awaitActive(id, activeWorkers, next, fragments.size(), abort)
+							&& (f = next.getAndIncrement()) < fragments.size();) {
+						if(abort.get() || !checkState.getAsBoolean()) {
+							abort.set(true);
+							break;
+						}
+						
+						if(journal.isDone(f)) {
+							continue; // Already decrypted before
+						}
+						
+						Fragment fragment = fragments.get(f);
+						ByteBuffer buf = fragmentBuffer(fragment);
+						
+						try {
+							if(!copyIfClear(in, out, target, fragment, buf)) {
+								buf.clear().limit((int) fragment.size());
+								IO.readFully(in, buf, fragment.offset());
+								FragmentDecryptor.decrypt(buf, fragment.offset(), init, keys, decryptor);
+								buf.rewind();
+								IO.writeFully(out, buf, fragment.offset());
+							}
+						} finally {
+							BufferPool.instance().release(buf);
+						}
+						
+						journal.complete(f, out);
+						progress.accept(fragment.size());
+					}
+				} catch(Exception ex) {
+					abort.set(true);
+					throw ex; // Propagate
+				} finally {
+					// The thread of the worker ends with the decryption, keep its buffers
+					decryptor.release();
+					BufferPool.instance().releaseLocal();
+				}
+				
+				return null;
+			});
+		}
+		
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		
+		try {
+			for(Future<Void> future : pool.invokeAll(workers)) {
+				try {
+					future.get();
+				} catch(ExecutionException ex) {
+					Throwable cause = ex.getCause();
+					throw cause instanceof Exception ? (Exception) cause : ex;
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		
+		return !abort.get();
+	}
+	
+	/**
+	 * Decrypts the input file to the given output file using the given keys.
+	 * The check state function is called before every fragment is processed
+	 * and may block, e.g. when paused. If it returns {@code false}, the decryption
+	 * is stopped and this method returns {@code false}.
+	 * <p>
+	 * The progress is recorded in a journal next to the output file. If the decryption
+	 * does not complete, e.g. it is stopped or the application crashes, the next call
+	 * with the same input and output files continues from the last committed fragment.
+	 * The journal is deleted once the whole file is decrypted.</p>
+	 * @param parallelism Number of threads to use, if not positive, the number
+	 * of available processors is used.
+	 * @return {@code true}, if the whole file was decrypted, otherwise {@code false}.
+	 */
+	public boolean decrypt(Path output, Collection<MediaDecryptionKey> keys, int parallelism,
+			BooleanSupplier checkState) throws Exception {
+		return decrypt(output, keys, parallelism, checkState, (n) -> {});
+	}
+	
+	/**
+	 * Decrypts the input file in the same way as {@link #decrypt(Path, Collection, int, BooleanSupplier)}
+	 * does and reports the number of processed bytes of the input file to the given
+	 * progress consumer. The progress is reported in increments, possibly from multiple
+	 * threads at once, and its total is the size of the input file.
+	 */
+	public boolean decrypt(Path output, Collection<MediaDecryptionKey> keys, int parallelism,
+			BooleanSupplier checkState, LongConsumer progress) throws Exception {
+		return decrypt(output, keys, parallelism, checkState, progress, progress, () -> Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Decrypts the input file in the same way as {@link #decrypt(Path, Collection, int,
+	 * BooleanSupplier, LongConsumer)} does, but only the given number of active workers,
+	 * out of all the threads, process fragments at once. The number is checked before
+	 * every fragment, therefore it can be changed during the decryption, e.g. by
+	 * an adaptive controller. At least one worker is always active.
+	 * <p>
+	 * The bytes of the fragments decrypted already in a previous run, if resumed, are
+	 * reported just once, and separately, to the given resumed consumer, so that they
+	 * are not mistaken for bytes processed in this run.</p>
+	 */
+	public boolean decrypt(Path output, Collection<MediaDecryptionKey> keys, int parallelism,
+			BooleanSupplier checkState, LongConsumer progress, LongConsumer resumed, IntSupplier activeWorkers)
+			throws Exception {
+		if(!isSupported()) {
+			throw new IllegalStateException("Unsupported content");
+		}
+		
+		DecryptionKeys decryptionKeys = DecryptionKeys.of(keys);
+		boolean completed = false;
+		
+		try(DecryptionJournal journal = DecryptionJournal.open(output, index, Files.exists(output));
+			FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+			FileChannel out = journal.completed() > 0
+				? FileChannel.open(output, StandardOpenOption.WRITE)
+				: FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				                   StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buf = readInit(in, index);
+			
+			try {
+				init.makeClear(buf);
+				IO.writeFully(out, buf, 0L);
+			} finally {
+				BufferPool.instance().release(buf);
+			}
+			
+			// The init segment is written in every run, the completed fragments are not
+			progress.accept(index.initSize());
+			resumed.accept(doneSize(journal));
+			
+			int numOfThreads = parallelism(parallelism, index.fragments().size() - journal.completed());
+			
+			try {
+				completed = decryptFragments(
+					in, out, output, decryptionKeys, numOfThreads, () -> Math.max(1, activeWorkers.getAsInt()),
+					journal, checkState, progress
+				);
+			} finally {
+				// Keep the fragments decrypted so far, even on failure, so they are not lost
+				journal.commit(out);
+			}
+		}
+		
+		if(completed) {
+			DecryptionJournal.delete(output);
+		}
+		
+		return completed;
+	}
+	
+	/**
+	 * Decrypts only the given fragments of the input file to the given output file,
+	 * e.g. the fragments covering a time range, see {@link #timeline()}. The output
+	 * file contains the init segment followed by the given fragments, one after another,
+	 * their explicit data offsets are adjusted accordingly. Any segment index of the init
+	 * segment is turned into a {@code free} box, since it would not match the output file.
+	 * <p>
+	 * Since the selection is meant to be small, the fragments are decrypted sequentially
+	 * and the progress is not recorded in a journal, i.e. if the decryption does not
+	 * complete, it starts from the beginning next time.</p>
+	 * @param fragments The fragments of this file, in the order of the file.
+	 * @param progress The consumer of the number of processed bytes of the input file.
+	 * @return {@code true}, if all the fragments were decrypted, otherwise {@code false}.
+	 */
+	public boolean decrypt(Path output, Collection<MediaDecryptionKey> keys, List<Fragment> fragments,
+			BooleanSupplier checkState, LongConsumer progress) throws Exception {
+		if(!isSupported()) {
+			throw new IllegalStateException("Unsupported content");
+		}
+		
+		DecryptionKeys decryptionKeys = DecryptionKeys.of(keys);
+		SampleDecryptor decryptor = new SampleDecryptor();
+		
+		try(FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+			FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+			                                   StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buf = readInit(in, index);
+			
+			try {
+				init.makeClear(buf);
+				
+				for(int pos = 0, end = buf.limit(); pos < end;) {
+					Box box = Box.read(buf, pos, end);
+					pos = box.end();
+					
+					if(box.type == Box.SIDX) {
+						box.rename(buf, Box.FREE);
+					}
+				}
+				
+				IO.writeFully(out, buf, 0L);
+			} finally {
+				BufferPool.instance().release(buf);
+			}
+			
+			long position = index.initSize();
+			progress.accept(position);
+			
+			for(Fragment fragment : fragments) {
+				if(!checkState.getAsBoolean()) {
+					return false;
+				}
+				
+				buf = fragmentBuffer(fragment);
+				
+				try {
+					buf.clear().limit((int) fragment.size());
+					IO.readFully(in, buf, fragment.offset());
+					FragmentDecryptor.decrypt(buf, fragment.offset(), init, decryptionKeys, decryptor);
+					FragmentDecryptor.relocate(buf, position - fragment.offset());
+					buf.rewind();
+					IO.writeFully(out, buf, position);
+				} finally {
+					BufferPool.instance().release(buf);
+				}
+				
+				position += fragment.size();
+				progress.accept(fragment.size());
+			}
+		} finally {
+			decryptor.release();
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Deletes the output file and its journal, if present, so that the next decryption
+	 * starts from the beginning.
+	 */
+	public static final void discard(Path output) throws IOException {
+		Files.deleteIfExists(output);
+		DecryptionJournal.delete(output);
+	}
+	
+	public boolean isSupported() {
+		return init != null && init.isSupported();
+	}
+	
+	/**
+	 * Checks whether the init segment has any protected sample entries, i.e. {@code encv}
+	 * or {@code enca}. A decrypted file has none, since they are renamed back to their
+	 * original format. If the file is not fragmented or its init segment cannot be parsed,
+	 * this cannot be determined and {@code true} is returned.
+	 */
+	public boolean isProtected() {
+		return init == null || init.isProtected();
+	}
+	
+	/**
+	 * Gets the encryption schemes used by the init segment. Note that fragments
+	 * are not inspected, therefore this is valid only for supported content.
+	 */
+	public Set<EncryptionScheme> schemes() {
+		return init != null ? init.schemes() : Set.of();
+	}
+	
+	/**
+	 * Gets the KIDs (in hexadecimal) of all the protected tracks and sample groups
+	 * defined in the init segment. Content with key rotation may use more KIDs in
+	 * the sample groups of its fragments.
+	 */
+	public Set<String> keyIds() {
+		return init != null ? init.keyIds() : Set.of();
+	}
+	
+	public FragmentIndex index() {
+		return index;
+	}
+	
+	/**
+	 * Gets the index of the fragments of a supported and protected input file,
+	 * with their times, numbers of samples and whether they are protected.
+	 * @return The index, or {@code null}, if the file is not supported or not protected.
+	 */
+	public FragmentIndexFile indexFile() {
+		return indexFile;
+	}
+	
+	/**
+	 * Gets the presentation times of all the fragments of the input file.
+	 * @return The timeline, or {@code null}, if the file is not supported or the times
+	 * cannot be determined.
+	 */
+	public FragmentTimeline timeline() {
+		return indexFile != null ? indexFile.timeline() : null;
+	}
+}
\ No newline at end of file
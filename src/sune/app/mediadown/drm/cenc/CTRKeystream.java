@@ -0,0 +1,90 @@
+package sune.app.mediadown.drm.cenc;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES-CTR decryption that generates the key stream in bulk, by encrypting a run
+ * of counter blocks at once in the ECB mode, and then XORs it with the data, see
+ * {@link KeystreamXor}. The key stream continues across calls, including partial
+ * blocks, in the same way as {@code Cipher.update} of the CTR mode does. An instance
+ * of this class must not be shared between threads.
+ * @author Sune
+ */
+final class CTRKeystream {
+	
+	private static final int BLOCK_SIZE = 16;
+	/** Number of bytes of the key stream generated at once. */
+	private static final int CHUNK_SIZE = 64 * 1024;
+	
+	private final Cipher ecb;
+	private final byte[] counter = new byte[BLOCK_SIZE];
+	private final ByteBuffer countersBuffer = BufferPool.instance().acquire(CHUNK_SIZE);
+	private final ByteBuffer keystreamBuffer = BufferPool.instance().acquire(CHUNK_SIZE);
+	private final byte[] counters = countersBuffer.array();
+	private final byte[] keystream = keystreamBuffer.array();
+	private SecretKeySpec key;
+	private int available;
+	private int position;
+	
+	CTRKeystream() throws GeneralSecurityException {
+		ecb = Cipher.getInstance("AES/ECB/NoPadding");
+	}
+	
+	private static final void increment(byte[] counter) {
+		// The whole block is a single big-endian number, as in the CTR mode of JCE
+		for(int i = BLOCK_SIZE - 1; i >= 0 && ++counter[i] == 0; --i);
+	}
+	
+	private final void generate(int length) throws GeneralSecurityException {
+		int size = Math.min(CHUNK_SIZE, (length + BLOCK_SIZE - 1) & -BLOCK_SIZE);
+		
+		for(int pos = 0; pos < size; pos += BLOCK_SIZE) {
+			System.arraycopy(counter, 0, counters, pos, BLOCK_SIZE);
+			increment(counter);
+		}
+		
+		ecb.doFinal(counters, 0, size, keystream, 0);
+		available = size;
+		position = 0;
+	}
+	
+	/**
+	 * Returns the buffers to the pool. This instance must not be used afterwards.
+	 */
+	void release() {
+		BufferPool.instance().release(countersBuffer);
+		BufferPool.instance().release(keystreamBuffer);
+	}
+	
+	void init(SecretKeySpec key, byte[] iv) throws GeneralSecurityException {
+		if(!key.equals(this.key)) {
+			ecb.init(Cipher.ENCRYPT_MODE, key);
+			this.key = key;
+		}
+		
+		System.arraycopy(iv, 0, counter, 0, BLOCK_SIZE);
+		available = 0;
+		position = 0;
+	}
+	
+	/**
+	 * Decrypts, or encrypts, the given range of data in place.
+	 */
+	void update(byte[] data, int offset, int length) throws GeneralSecurityException {
+		while(length > 0) {
+			if(position == available) {
+				generate(length);
+			}
+			
+			int count = Math.min(length, available - position);
+			KeystreamXor.xor(data, offset, keystream, position, count);
+			position += count;
+			offset += count;
+			length -= count;
+		}
+	}
+}
\ No newline at end of file
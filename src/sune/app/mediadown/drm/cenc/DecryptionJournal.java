@@ -0,0 +1,170 @@
+package sune.app.mediadown.drm.cenc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Journal of fragments that were already decrypted and written to the output file.
+ * The fragments are committed in batches, i.e. the output file is flushed to disk
+ * first and only then the indices of the fragments are appended to the journal.
+ * Therefore all the fragments in the journal are guaranteed to be in the output
+ * file and the decryption can continue from where it stopped, even after a crash.
+ * @author Sune
+ */
+final class DecryptionJournal implements AutoCloseable {
+	
+	private static final int MAGIC = 0x4d444a31; // MDJ1
+	private static final int HEADER_SIZE = 24;
+	private static final long COMMIT_INTERVAL_MS = 1000L;
+	
+	private final FileChannel channel;
+	private final BitSet done;
+	private final List<Integer> pending = new ArrayList<>();
+	private long lastCommitTime;
+	
+	private DecryptionJournal(FileChannel channel, BitSet done) {
+		this.channel = channel;
+		this.done = done;
+		this.lastCommitTime = System.nanoTime();
+	}
+	
+	private static final ByteBuffer header(FragmentIndex index) {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC);
+		header.putInt(index.fragments().size());
+		header.putLong(index.size());
+		header.putLong(index.initSize());
+		return header.flip();
+	}
+	
+	private static final BitSet read(FileChannel channel, FragmentIndex index) throws IOException {
+		long size = channel.size();
+		
+		if(size < HEADER_SIZE || size > HEADER_SIZE + 4L * index.fragments().size()) {
+			return null;
+		}
+		
+		ByteBuffer buf = ByteBuffer.allocate((int) size);
+		IO.readFully(channel, buf, 0L);
+		
+		if(!buf.slice().limit(HEADER_SIZE).equals(header(index))) {
+			return null; // Journal of a different file
+		}
+		
+		BitSet done = new BitSet(index.fragments().size());
+		
+		// A partially written entry at the end is ignored, it is not committed
+		for(int pos = HEADER_SIZE; pos + 4 <= size; pos += 4) {
+			int fragment = buf.getInt(pos);
+			
+			if(fragment < 0 || fragment >= index.fragments().size()) {
+				return null;
+			}
+			
+			done.set(fragment);
+		}
+		
+		return done;
+	}
+	
+	/**
+	 * Opens the journal of the given output file. If the journal does not exist
+	 * or does not belong to the given input file, a new, empty, one is created.
+	 * @param isOutputPresent Whether the output file exists, if not, the journal
+	 * is not valid anymore.
+	 */
+	static final DecryptionJournal open(Path output, FragmentIndex index, boolean isOutputPresent)
+			throws IOException {
+		FileChannel channel = FileChannel.open(
+			pathOf(output), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE
+		);
+		
+		try {
+			BitSet done = isOutputPresent ? read(channel, index) : null;
+			
+			if(done == null) {
+				done = new BitSet(index.fragments().size());
+				channel.truncate(0L);
+				IO.writeFully(channel, header(index), 0L);
+				channel.force(false);
+			} else {
+				// Drop a possible partially written entry
+				long size = channel.size();
+				channel.truncate(size - (size - HEADER_SIZE) % 4L);
+			}
+			
+			return new DecryptionJournal(channel, done);
+		} catch(IOException | RuntimeException ex) {
+			channel.close();
+			throw ex; // Propagate
+		}
+	}
+	
+	static final Path pathOf(Path output) {
+		return output.resolveSibling(output.getFileName() + ".journal");
+	}
+	
+	static final void delete(Path output) throws IOException {
+		Files.deleteIfExists(pathOf(output));
+	}
+	
+	private final void commitPending(FileChannel output) throws IOException {
+		if(pending.isEmpty()) {
+			return; // Nothing to do
+		}
+		
+		// The fragments must be on disk before they are marked as done
+		output.force(false);
+		
+		ByteBuffer buf = ByteBuffer.allocate(4 * pending.size());
+		
+		for(int fragment : pending) {
+			buf.putInt(fragment);
+		}
+		
+		IO.writeFully(channel, buf.flip(), channel.size());
+		channel.force(false);
+		pending.clear();
+		lastCommitTime = System.nanoTime();
+	}
+	
+	synchronized boolean isDone(int fragment) {
+		return done.get(fragment);
+	}
+	
+	synchronized int completed() {
+		return done.cardinality();
+	}
+	
+	/**
+	 * Marks the given fragment as done. The fragment is committed later, together
+	 * with other fragments, to avoid flushing the output file too often.
+	 */
+	synchronized void complete(int fragment, FileChannel output) throws IOException {
+		done.set(fragment);
+		pending.add(fragment);
+		
+		if(System.nanoTime() - lastCommitTime >= COMMIT_INTERVAL_MS * 1000000L) {
+			commitPending(output);
+		}
+	}
+	
+	/**
+	 * Commits all the completed fragments that were not committed yet.
+	 */
+	synchronized void commit(FileChannel output) throws IOException {
+		commitPending(output);
+	}
+	
+	@Override
+	public synchronized void close() throws IOException {
+		channel.close();
+	}
+}
\ No newline at end of file
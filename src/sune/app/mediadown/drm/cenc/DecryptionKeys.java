@@ -0,0 +1,93 @@
+package sune.app.mediadown.drm.cenc;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import sune.app.mediadown.drm.util.MediaDecryptionKey;
+
+/**
+ * Lookup of decryption keys in the same manner as mp4decrypt does it, i.e. a key
+ * is identified either by its KID or by the ID of the track it belongs to.
+ * @author Sune
+ */
+public final class DecryptionKeys {
+	
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	
+	private final Map<String, SecretKeySpec> byKid;
+	private final Map<Integer, SecretKeySpec> byTrackId;
+	
+	private DecryptionKeys(Map<String, SecretKeySpec> byKid, Map<Integer, SecretKeySpec> byTrackId) {
+		this.byKid = byKid;
+		this.byTrackId = byTrackId;
+	}
+	
+	public static final DecryptionKeys of(Collection<MediaDecryptionKey> keys) {
+		Map<String, SecretKeySpec> byKid = new HashMap<>();
+		Map<Integer, SecretKeySpec> byTrackId = new HashMap<>();
+		
+		for(MediaDecryptionKey key : keys) {
+			String kid = normalize(key.kid());
+			SecretKeySpec spec = new SecretKeySpec(hexToBytes(normalize(key.key())), "AES");
+			
+			if(kid.length() == 32) {
+				byKid.put(kid, spec);
+			} else {
+				byTrackId.put(Integer.parseInt(kid), spec);
+			}
+		}
+		
+		return new DecryptionKeys(byKid, byTrackId);
+	}
+	
+	private static final String normalize(String hex) {
+		return hex.replace("-", "").toLowerCase(Locale.ROOT);
+	}
+	
+	public static final byte[] hexToBytes(String hex) {
+		int length = hex.length();
+		
+		if((length & 1) != 0) {
+			throw new IllegalArgumentException("Invalid hexadecimal string");
+		}
+		
+		byte[] bytes = new byte[length / 2];
+		
+		for(int i = 0; i < length; i += 2) {
+			bytes[i / 2] = (byte) (Character.digit(hex.charAt(i), 16) << 4 | Character.digit(hex.charAt(i + 1), 16));
+		}
+		
+		return bytes;
+	}
+	
+	public static final String bytesToHex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		
+		for(int i = 0, l = bytes.length; i < l; ++i) {
+			chars[i * 2] = HEX[(bytes[i] >>> 4) & 0x0f];
+			chars[i * 2 + 1] = HEX[bytes[i] & 0x0f];
+		}
+		
+		return new String(chars);
+	}
+	
+	SecretKeySpec key(int trackId, byte[] kid) {
+		SecretKeySpec key = byKid.get(bytesToHex(kid));
+		
+		if(key == null && (key = byTrackId.get(trackId)) == null) {
+			throw new IllegalStateException(
+				"Decryption key not found for KID " + bytesToHex(kid) + " of track " + trackId
+			);
+		}
+		
+		return key;
+	}
+	
+	public boolean isEmpty() {
+		return byKid.isEmpty() && byTrackId.isEmpty();
+	}
+}
\ No newline at end of file
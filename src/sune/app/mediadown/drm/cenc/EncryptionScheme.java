@@ -0,0 +1,50 @@
+package sune.app.mediadown.drm.cenc;
+
+/**
+ * Protection schemes defined by the Common Encryption standard (ISO/IEC 23001-7).
+ * @author Sune
+ */
+public enum EncryptionScheme {
+	
+	CENC("cenc", false, false),
+	CENS("cens", false, true),
+	CBC1("cbc1", true, false),
+	CBCS("cbcs", true, true);
+	
+	private final int type;
+	private final boolean isCBC;
+	private final boolean usesPattern;
+	
+	private EncryptionScheme(String type, boolean isCBC, boolean usesPattern) {
+		this.type = Box.fourcc(type);
+		this.isCBC = isCBC;
+		this.usesPattern = usesPattern;
+	}
+	
+	public static final EncryptionScheme of(int type) {
+		for(EncryptionScheme scheme : values()) {
+			if(scheme.type == type) {
+				return scheme;
+			}
+		}
+		
+		return null;
+	}
+	
+	public boolean isCBC() {
+		return isCBC;
+	}
+	
+	public boolean usesPattern() {
+		return usesPattern;
+	}
+	
+	/**
+	 * Whether the IV is reset at the beginning of every subsample. This is true only
+	 * for the {@code cbcs} scheme, other schemes continue the cipher state across all
+	 * the subsamples of a sample.
+	 */
+	public boolean resetsIVPerSubsample() {
+		return this == CBCS;
+	}
+}
\ No newline at end of file
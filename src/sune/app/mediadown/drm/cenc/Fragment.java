@@ -0,0 +1,35 @@
+package sune.app.mediadown.drm.cenc;
+
+/**
+ * A region of a fragmented MP4 file that starts with a {@code moof} box and spans
+ * all the boxes up to the next {@code moof} box or the end of the file.
+ * @author Sune
+ */
+public final class Fragment {
+	
+	private final int index;
+	private final long offset;
+	private final long size;
+	
+	Fragment(int index, long offset, long size) {
+		this.index = index;
+		this.offset = offset;
+		this.size = size;
+	}
+	
+	public int index() {
+		return index;
+	}
+	
+	public long offset() {
+		return offset;
+	}
+	
+	public long size() {
+		return size;
+	}
+	
+	public long end() {
+		return offset + size;
+	}
+}
\ No newline at end of file
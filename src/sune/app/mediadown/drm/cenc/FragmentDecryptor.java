@@ -0,0 +1,519 @@
+package sune.app.mediadown.drm.cenc;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import sune.app.mediadown.drm.cenc.InitSegment.Track;
+
+/**
+ * Decrypts all samples of a single movie fragment in place. The boxes carrying
+ * the sample encryption information are turned into {@code free} boxes, so that
+ * the size and therefore the position of all the data stays the same.
+ * @author Sune
+ */
+final class FragmentDecryptor {
+	
+	static final int TFHD_BASE_DATA_OFFSET                 = 0x000001;
+	static final int TFHD_SAMPLE_DESCRIPTION_INDEX         = 0x000002;
+	static final int TFHD_DEFAULT_SAMPLE_DURATION          = 0x000008;
+	private static final int TFHD_DEFAULT_SAMPLE_SIZE      = 0x000010;
+	private static final int TFHD_DEFAULT_BASE_IS_MOOF     = 0x020000;
+	static final int TRUN_DATA_OFFSET                      = 0x000001;
+	static final int TRUN_FIRST_SAMPLE_FLAGS               = 0x000004;
+	static final int TRUN_SAMPLE_DURATION                  = 0x000100;
+	private static final int TRUN_SAMPLE_SIZE              = 0x000200;
+	static final int TRUN_SAMPLE_FIELDS                    = 0x000f00;
+	private static final int SENC_USE_SUBSAMPLES           = 0x000002;
+	private static final int AUX_INFO_TYPE_PRESENT         = 0x000001;
+	
+	// Forbid anyone to create an instance of this class
+	private FragmentDecryptor() {
+	}
+	
+	private static final int flags(ByteBuffer buf, Box box) {
+		return buf.getInt(box.content()) & 0xffffff;
+	}
+	
+	private static final boolean isEncryptionAuxInfo(ByteBuffer buf, Box box) {
+		return (flags(buf, box) & AUX_INFO_TYPE_PRESENT) == 0
+					|| EncryptionScheme.of(buf.getInt(box.content() + 4)) != null;
+	}
+	
+	private static final int position(long offset, long regionOffset, ByteBuffer buf) {
+		long pos = offset - regionOffset;
+		
+		if(pos < 0L || pos > buf.limit()) {
+			throw new IllegalStateException("Data offset outside of the fragment");
+		}
+		
+		return (int) pos;
+	}
+	
+	private static final void checkBounds(ByteBuffer buf, int offset, int size) {
+		if(offset < 0 || size < 0 || offset + size > buf.limit()) {
+			throw new IllegalStateException("Sample data outside of the fragment");
+		}
+	}
+	
+	/**
+	 * Gets the end of the sample data of all the given track runs, whose data start
+	 * at the given base data offset.
+	 */
+	private static final int dataEnd(ByteBuffer buf, List<Box> truns, int base, int defaultSampleSize) {
+		int dataOffset = base;
+		
+		for(Box trun : truns) {
+			int rpos = trun.content();
+			int rflags = buf.getInt(rpos) & 0xffffff;
+			int count = buf.getInt(rpos + 4);
+			int entrySize = 4 * Integer.bitCount(rflags & TRUN_SAMPLE_FIELDS);
+			rpos += 8;
+			
+			if((rflags & TRUN_DATA_OFFSET) != 0) {
+				dataOffset = base + buf.getInt(rpos);
+				rpos += 4;
+			}
+			
+			if((rflags & TRUN_FIRST_SAMPLE_FLAGS) != 0) {
+				rpos += 4;
+			}
+			
+			if((rflags & TRUN_SAMPLE_SIZE) == 0) {
+				dataOffset += count * defaultSampleSize;
+				continue;
+			}
+			
+			rpos += (rflags & TRUN_SAMPLE_DURATION) != 0 ? 4 : 0;
+			
+			for(int i = 0; i < count; ++i, rpos += entrySize) {
+				dataOffset += buf.getInt(rpos);
+			}
+		}
+		
+		return dataOffset;
+	}
+	
+	/**
+	 * Decrypts the samples of a single track fragment.
+	 * @param previousEnd The end of the sample data of the previous track fragment
+	 * of the movie fragment, or its start, if this is the first one.
+	 * @return The end of the sample data of this track fragment.
+	 */
+	private static final int decryptTrack(ByteBuffer buf, long regionOffset, Box moof, Box traf, int previousEnd,
+			InitSegment init, DecryptionKeys keys, SampleDecryptor decryptor) throws GeneralSecurityException {
+		Box tfhd = null, senc = null, saiz = null, saio = null, sbgp = null;
+		List<Box> truns = new ArrayList<>();
+		List<Box> sgpds = new ArrayList<>();
+		
+		for(int pos = traf.content(); pos < traf.end();) {
+			Box box = Box.read(buf, pos, traf.end());
+			pos = box.end();
+			
+			if(box.type == Box.TFHD) {
+				tfhd = box;
+			} else if(box.type == Box.TRUN) {
+				truns.add(box);
+			} else if(box.type == Box.SENC) {
+				senc = box;
+			} else if(box.type == Box.SAIZ && isEncryptionAuxInfo(buf, box)) {
+				saiz = box;
+			} else if(box.type == Box.SAIO && isEncryptionAuxInfo(buf, box)) {
+				saio = box;
+			} else if(box.type == Box.SGPD) {
+				sgpds.add(box);
+			} else if(box.type == Box.SBGP && SampleGroups.Cursor.isEncryptionGroup(buf, box)) {
+				sbgp = box;
+			}
+		}
+		
+		if(tfhd == null) {
+			throw new IllegalStateException("Track fragment header not found");
+		}
+		
+		int pos = tfhd.content();
+		int flags = buf.getInt(pos) & 0xffffff;
+		Track track = init.track(buf.getInt(pos + 4));
+		int sampleDescriptionIndex = track != null ? track.defaultSampleDescriptionIndex : 1;
+		int defaultSampleSize = track != null ? track.defaultSampleSize : 0;
+		// Without an explicit base, the data follow the data of the previous track fragment,
+		// unless the base is the movie fragment itself.
+		int base = (flags & TFHD_DEFAULT_BASE_IS_MOOF) != 0 ? moof.offset : previousEnd;
+		pos += 8;
+		
+		if((flags & TFHD_BASE_DATA_OFFSET) != 0) {
+			base = position(buf.getLong(pos), regionOffset, buf);
+			pos += 8;
+		}
+		
+		if((flags & TFHD_SAMPLE_DESCRIPTION_INDEX) != 0) {
+			sampleDescriptionIndex = buf.getInt(pos);
+			pos += 4;
+		}
+		
+		if((flags & TFHD_DEFAULT_SAMPLE_DURATION) != 0) {
+			pos += 4;
+		}
+		
+		if((flags & TFHD_DEFAULT_SAMPLE_SIZE) != 0) {
+			defaultSampleSize = buf.getInt(pos);
+		}
+		
+		if(track == null) {
+			// Unknown track, nothing to decrypt
+			return dataEnd(buf, truns, base, defaultSampleSize);
+		}
+		
+		TrackEncryption defaultEncryption = track.encryption(sampleDescriptionIndex);
+		
+		if(defaultEncryption == null) {
+			// Clear samples
+			return dataEnd(buf, truns, base, defaultSampleSize);
+		}
+		
+		List<TrackEncryption> groups = new ArrayList<>();
+		
+		for(Box sgpd : sgpds) {
+			SampleGroups.readDescriptions(buf, sgpd, defaultEncryption.scheme, groups);
+		}
+		
+		AuxInfo aux = AuxInfo.of(buf, base, senc, saiz, saio);
+		SampleGroups.Cursor groupCursor = SampleGroups.Cursor.of(buf, sbgp);
+		byte[] data = buf.array();
+		int dataOffset = base;
+		TrackEncryption lastEncryption = null;
+		SecretKeySpec key = null;
+		
+		for(Box trun : truns) {
+			int rpos = trun.content();
+			int rflags = buf.getInt(rpos) & 0xffffff;
+			int count = buf.getInt(rpos + 4);
+			int entrySize = 4 * Integer.bitCount(rflags & TRUN_SAMPLE_FIELDS);
+			rpos += 8;
+			
+			if((rflags & TRUN_DATA_OFFSET) != 0) {
+				dataOffset = base + buf.getInt(rpos);
+				rpos += 4;
+			}
+			
+			if((rflags & TRUN_FIRST_SAMPLE_FLAGS) != 0) {
+				rpos += 4;
+			}
+			
+			for(int i = 0; i < count; ++i, rpos += entrySize) {
+				int size = defaultSampleSize;
+				
+				if((rflags & TRUN_SAMPLE_SIZE) != 0) {
+					size = buf.getInt(rpos + ((rflags & TRUN_SAMPLE_DURATION) != 0 ? 4 : 0));
+				}
+				
+				TrackEncryption encryption = SampleGroups.resolve(groupCursor.next(), groups, track.groups);
+				
+				if(encryption == null) {
+					encryption = defaultEncryption;
+				}
+				
+				aux.next(encryption.perSampleIVSize);
+				
+				if(encryption.isProtected) {
+					checkBounds(buf, dataOffset, size);
+					
+					if(encryption != lastEncryption) {
+						key = keys.key(track.id, encryption.kid);
+						lastEncryption = encryption;
+					}
+					
+					if(encryption.perSampleIVSize > 0) {
+						decryptor.iv(buf, aux.ivOffset, encryption.perSampleIVSize);
+					} else {
+						decryptor.iv(encryption.constantIV);
+					}
+					
+					decryptor.decrypt(
+						data, dataOffset, size, encryption, key,
+						buf, aux.subsamplesOffset, aux.subsampleCount
+					);
+				}
+				
+				dataOffset += size;
+			}
+		}
+		
+		// Hide the encryption information, the samples are not encrypted anymore
+		for(Box box : new Box[] { senc, saiz, saio }) {
+			if(box != null) {
+				box.rename(buf, Box.FREE);
+			}
+		}
+		
+		return dataOffset;
+	}
+	
+	/**
+	 * Checks whether the track fragment contains any protected sample. Only the boxes
+	 * of the track fragment are read, the sample data are not needed.
+	 */
+	private static final boolean hasProtectedSamples(ByteBuffer buf, Box traf, InitSegment init) {
+		Box tfhd = null, sbgp = null;
+		List<Box> sgpds = new ArrayList<>();
+		int count = 0;
+		
+		for(int pos = traf.content(); pos < traf.end();) {
+			Box box = Box.read(buf, pos, traf.end());
+			pos = box.end();
+			
+			if(box.type == Box.TFHD) {
+				tfhd = box;
+			} else if(box.type == Box.TRUN) {
+				count += buf.getInt(box.content() + 4);
+			} else if(box.type == Box.SGPD) {
+				sgpds.add(box);
+			} else if(box.type == Box.SBGP && SampleGroups.Cursor.isEncryptionGroup(buf, box)) {
+				sbgp = box;
+			}
+		}
+		
+		if(tfhd == null) {
+			throw new IllegalStateException("Track fragment header not found");
+		}
+		
+		int pos = tfhd.content();
+		int flags = buf.getInt(pos) & 0xffffff;
+		Track track = init.track(buf.getInt(pos + 4));
+		
+		if(track == null) {
+			return false; // Unknown track, nothing to decrypt
+		}
+		
+		int sampleDescriptionIndex = track.defaultSampleDescriptionIndex;
+		
+		if((flags & TFHD_SAMPLE_DESCRIPTION_INDEX) != 0) {
+			sampleDescriptionIndex = buf.getInt(pos + 8 + ((flags & TFHD_BASE_DATA_OFFSET) != 0 ? 8 : 0));
+		}
+		
+		TrackEncryption defaultEncryption = track.encryption(sampleDescriptionIndex);
+		
+		if(defaultEncryption == null) {
+			return false; // Clear samples
+		}
+		
+		List<TrackEncryption> groups = new ArrayList<>();
+		
+		for(Box sgpd : sgpds) {
+			SampleGroups.readDescriptions(buf, sgpd, defaultEncryption.scheme, groups);
+		}
+		
+		SampleGroups.Cursor groupCursor = SampleGroups.Cursor.of(buf, sbgp);
+		
+		for(int i = 0; i < count; ++i) {
+			TrackEncryption encryption = SampleGroups.resolve(groupCursor.next(), groups, track.groups);
+			
+			if((encryption != null ? encryption : defaultEncryption).isProtected) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	private static final void hideEncryptionInfo(ByteBuffer buf, Box traf) {
+		for(int pos = traf.content(); pos < traf.end();) {
+			Box box = Box.read(buf, pos, traf.end());
+			pos = box.end();
+			
+			if(box.type == Box.SENC
+					|| ((box.type == Box.SAIZ || box.type == Box.SAIO) && isEncryptionAuxInfo(buf, box))) {
+				box.rename(buf, Box.FREE);
+			}
+		}
+	}
+	
+	/**
+	 * Checks whether the movie fragment in the buffer contains only clear samples,
+	 * e.g. in the clear lead of a stream. The buffer may contain just the {@code moof}
+	 * box. If the fragment is clear, the encryption information is hidden in the same
+	 * way as when the fragment is decrypted, so that the buffer can be written as is
+	 * and the sample data can be copied without any change.
+	 * @return {@code true}, if the fragment is clear, otherwise {@code false}.
+	 */
+	static final boolean clearIfUnprotected(ByteBuffer buf, InitSegment init) {
+		Box moof = Box.read(buf, 0, buf.limit());
+		
+		if(moof.type != Box.MOOF) {
+			return false;
+		}
+		
+		List<Box> trafs = new ArrayList<>();
+		
+		for(int pos = moof.content(); pos < moof.end();) {
+			Box box = Box.read(buf, pos, moof.end());
+			pos = box.end();
+			
+			if(box.type != Box.TRAF) {
+				continue;
+			}
+			
+			if(hasProtectedSamples(buf, box, init)) {
+				return false;
+			}
+			
+			trafs.add(box);
+		}
+		
+		for(Box traf : trafs) {
+			hideEncryptionInfo(buf, traf);
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Decrypts all movie fragments present in the buffer. The buffer must be backed
+	 * by an accessible array and must start at the given offset of the file.
+	 */
+	static final void decrypt(ByteBuffer buf, long regionOffset, InitSegment init, DecryptionKeys keys,
+			SampleDecryptor decryptor) throws GeneralSecurityException {
+		for(int pos = 0, end = buf.limit(); pos < end;) {
+			Box moof = Box.read(buf, pos, end);
+			pos = moof.end();
+			
+			if(moof.type != Box.MOOF) {
+				continue;
+			}
+			
+			int dataEnd = moof.offset;
+			
+			for(int tpos = moof.content(); tpos < moof.end();) {
+				Box traf = Box.read(buf, tpos, moof.end());
+				tpos = traf.end();
+				
+				if(traf.type != Box.TRAF) {
+					continue;
+				}
+				
+				dataEnd = decryptTrack(buf, regionOffset, moof, traf, dataEnd, init, keys, decryptor);
+			}
+		}
+	}
+	
+	/**
+	 * Shifts the explicit base data offsets of all the track fragments of all movie
+	 * fragments in the buffer by the given delta, so that the fragments can be written
+	 * to a different position of a file than they were read from. Offsets relative
+	 * to the {@code moof} box need no change.
+	 */
+	static final void relocate(ByteBuffer buf, long delta) {
+		for(int pos = 0, end = buf.limit(); pos < end;) {
+			Box moof = Box.read(buf, pos, end);
+			pos = moof.end();
+			
+			if(moof.type != Box.MOOF) {
+				continue;
+			}
+			
+			for(int tpos = moof.content(); tpos < moof.end();) {
+				Box traf = Box.read(buf, tpos, moof.end());
+				tpos = traf.end();
+				
+				if(traf.type != Box.TRAF) {
+					continue;
+				}
+				
+				Box tfhd = Box.first(buf, traf.content(), traf.end(), Box.TFHD);
+				
+				if(tfhd != null && (flags(buf, tfhd) & TFHD_BASE_DATA_OFFSET) != 0) {
+					int offset = tfhd.content() + 8;
+					buf.putLong(offset, buf.getLong(offset) + delta);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Sequential reader of the per-sample auxiliary information, i.e. the IVs and
+	 * subsample entries, either from a {@code senc} box or from the location given
+	 * by the {@code saiz} and {@code saio} boxes.
+	 */
+	private static final class AuxInfo {
+		
+		private final ByteBuffer buf;
+		private final boolean hasSubsamples;
+		private final Box saiz;
+		private int pos;
+		private int index;
+		
+		int ivOffset;
+		int subsamplesOffset;
+		int subsampleCount;
+		
+		private AuxInfo(ByteBuffer buf, int pos, boolean hasSubsamples, Box saiz) {
+			this.buf = buf;
+			this.pos = pos;
+			this.hasSubsamples = hasSubsamples;
+			this.saiz = saiz;
+		}
+		
+		static final AuxInfo of(ByteBuffer buf, int base, Box senc, Box saiz, Box saio) {
+			if(senc != null) {
+				boolean hasSubsamples = (flags(buf, senc) & SENC_USE_SUBSAMPLES) != 0;
+				// Skip the full box header and the sample count
+				return new AuxInfo(buf, senc.content() + 8, hasSubsamples, null);
+			}
+			
+			if(saiz != null && saio != null) {
+				int pos = saio.content();
+				int version = buf.get(pos) & 0xff;
+				pos += (flags(buf, saio) & AUX_INFO_TYPE_PRESENT) != 0 ? 12 : 4;
+				
+				if(buf.getInt(pos) != 1) {
+					throw new IllegalStateException("Unsupported number of auxiliary information offsets");
+				}
+				
+				long offset = version == 0 ? buf.getInt(pos + 4) & 0xffffffffL : buf.getLong(pos + 4);
+				return new AuxInfo(buf, (int) (base + offset), false, saiz);
+			}
+			
+			// No auxiliary information, e.g. constant IVs without any subsamples
+			return new AuxInfo(buf, -1, false, null);
+		}
+		
+		private final int sampleInfoSize() {
+			int pos = saiz.content();
+			pos += (flags(buf, saiz) & AUX_INFO_TYPE_PRESENT) != 0 ? 12 : 4;
+			int defaultSize = buf.get(pos) & 0xff;
+			return defaultSize != 0 ? defaultSize : buf.get(pos + 5 + index) & 0xff;
+		}
+		
+		void next(int ivSize) {
+			subsampleCount = 0;
+			
+			if(pos < 0) {
+				if(ivSize > 0) {
+					throw new IllegalStateException("Sample encryption information not found");
+				}
+				
+				return;
+			}
+			
+			int start = pos;
+			int infoSize = saiz != null ? sampleInfoSize() : -1;
+			ivOffset = pos;
+			pos += ivSize;
+			
+			if(hasSubsamples || infoSize > ivSize) {
+				subsampleCount = buf.getShort(pos) & 0xffff;
+				subsamplesOffset = pos + 2;
+				pos += 2 + 6 * subsampleCount;
+			}
+			
+			if(infoSize >= 0) {
+				pos = start + infoSize;
+			}
+			
+			++index;
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,90 @@
+package sune.app.mediadown.drm.cenc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Boundaries of the init segment and all the fragments of a fragmented MP4 file.
+ * Only the top-level box headers are read, the rest of the file is skipped.
+ * @author Sune
+ */
+public final class FragmentIndex {
+	
+	private final long initSize;
+	private final long size;
+	private final List<Fragment> fragments;
+	
+	FragmentIndex(long initSize, long size, List<Fragment> fragments) {
+		this.initSize = initSize;
+		this.size = size;
+		this.fragments = Collections.unmodifiableList(fragments);
+	}
+	
+	public static final FragmentIndex build(FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(16);
+		List<Fragment> fragments = new ArrayList<>();
+		long size = channel.size();
+		long initSize = size;
+		long fragmentStart = -1L;
+		
+		for(long pos = 0L; pos < size;) {
+			header.clear().limit((int) Math.min(16L, size - pos));
+			IO.readFully(channel, header, pos);
+			
+			if(header.limit() < 8) {
+				throw new IOException("Truncated box header at position " + pos);
+			}
+			
+			long boxSize = header.getInt(0) & 0xffffffffL;
+			int type = header.getInt(4);
+			
+			if(boxSize == 1L && header.limit() == 16) {
+				boxSize = header.getLong(8);
+			} else if(boxSize == 0L) {
+				boxSize = size - pos;
+			}
+			
+			if(boxSize < 8L || boxSize > size - pos) {
+				throw new IOException("Invalid box at position " + pos);
+			}
+			
+			if(type == Box.MOOF) {
+				if(fragmentStart < 0L) {
+					initSize = pos;
+				} else {
+					fragments.add(new Fragment(fragments.size(), fragmentStart, pos - fragmentStart));
+				}
+				
+				fragmentStart = pos;
+			}
+			
+			pos += boxSize;
+		}
+		
+		if(fragmentStart >= 0L) {
+			fragments.add(new Fragment(fragments.size(), fragmentStart, size - fragmentStart));
+		}
+		
+		return new FragmentIndex(initSize, size, fragments);
+	}
+	
+	public boolean isFragmented() {
+		return !fragments.isEmpty();
+	}
+	
+	public long initSize() {
+		return initSize;
+	}
+	
+	public long size() {
+		return size;
+	}
+	
+	public List<Fragment> fragments() {
+		return fragments;
+	}
+}
\ No newline at end of file
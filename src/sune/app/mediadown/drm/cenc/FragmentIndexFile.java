@@ -0,0 +1,291 @@
+package sune.app.mediadown.drm.cenc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Index of all the fragments of a fragmented MP4 file, i.e. their offsets, sizes,
+ * presentation times, numbers of samples and whether they are protected, stored
+ * in a compact binary sidecar file next to the file. The file is scanned just once,
+ * reading only the top-level box headers and the {@code moof} boxes, and all the later
+ * stages, e.g. a resumed decryption or a clip extraction, then read the sidecar instead.
+ * <p>
+ * The sidecar consists of a header followed by fixed-size records, one per fragment,
+ * so that any record can be read directly, e.g. from a memory-mapped file. The sidecar
+ * is valid only as long as the size and the modification time of the file match.</p>
+ * @author Sune
+ */
+public final class FragmentIndexFile {
+	
+	private static final String SUFFIX = ".fidx";
+	private static final int MAGIC = 0x46494431; // FID1
+	private static final int HEADER_SIZE = 40;
+	private static final int RECORD_SIZE = 48;
+	
+	// Header: magic, count, file size, file modification time, init size, flags
+	private static final int HEADER_COUNT     = 4;
+	private static final int HEADER_FILE_SIZE = 8;
+	private static final int HEADER_MODIFIED  = 16;
+	private static final int HEADER_INIT_SIZE = 24;
+	private static final int HEADER_FLAGS     = 32;
+	// Record: offset, size, start, end, moof size, samples, flags, reserved
+	private static final int RECORD_OFFSET    = 0;
+	private static final int RECORD_LENGTH    = 8;
+	private static final int RECORD_START     = 16;
+	private static final int RECORD_END       = 24;
+	private static final int RECORD_MOOF_SIZE = 32;
+	private static final int RECORD_SAMPLES   = 36;
+	private static final int RECORD_FLAGS     = 40;
+	
+	/** The start of all the fragments is known. */
+	private static final int FLAG_TIMED = 0x1;
+	
+	private final ByteBuffer buf;
+	private final int count;
+	
+	private FragmentIndexFile(ByteBuffer buf) {
+		this.buf = buf;
+		this.count = buf.getInt(HEADER_COUNT);
+	}
+	
+	private static final long modifiedTime(Path file) throws IOException {
+		return Files.getLastModifiedTime(file).toMillis();
+	}
+	
+	private static final int record(int index) {
+		return HEADER_SIZE + index * RECORD_SIZE;
+	}
+	
+	/**
+	 * Scans all the fragments of the given file.
+	 * @param initBuf The buffer with the init segment.
+	 */
+	static final FragmentIndexFile scan(Path file, FileChannel channel, FragmentIndex index, ByteBuffer initBuf,
+			InitSegment init) throws IOException {
+		List<Fragment> fragments = index.fragments();
+		int count = fragments.size();
+		long[][] summaries = new long[count][FragmentScanner.SUMMARY_SIZE];
+		int[] moofSizes = new int[count];
+		ByteBuffer header = ByteBuffer.allocate(16);
+		
+		for(int i = 0; i < count; ++i) {
+			Fragment fragment = fragments.get(i);
+			long moofSize = CENCDecryptor.boxSize(channel, fragment.offset(), fragment.end(), header);
+			summaries[i][FragmentScanner.BASE_TIME] = -1L;
+			
+			if(moofSize < 0L || moofSize > Integer.MAX_VALUE) {
+				continue; // Unusual fragment, nothing is known about it
+			}
+			
+			ByteBuffer buf = BufferPool.instance().acquire((int) moofSize);
+			
+			try {
+				IO.readFully(channel, buf, fragment.offset());
+				FragmentScanner.scan(buf, init, summaries[i]);
+				moofSizes[i] = (int) moofSize;
+			} catch(IllegalStateException | IndexOutOfBoundsException ex) {
+				// Malformed fragment, nothing is known about it
+				summaries[i][FragmentScanner.BASE_TIME] = -1L;
+				summaries[i][FragmentScanner.DURATION] = 0L;
+			} finally {
+				BufferPool.instance().release(buf);
+			}
+		}
+		
+		double[] starts = new double[count];
+		double[] ends = new double[count];
+		double[][] references = null;
+		
+		try {
+			references = FragmentScanner.segmentIndex(initBuf);
+		} catch(IllegalStateException | IndexOutOfBoundsException ex) {
+			// Malformed segment index, just do not use it
+		}
+		
+		boolean isTimed = FragmentTimeline.resolve(summaries, references, starts, ends);
+		ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + count * RECORD_SIZE);
+		buf.putInt(0, MAGIC)
+		   .putInt(HEADER_COUNT, count)
+		   .putLong(HEADER_FILE_SIZE, index.size())
+		   .putLong(HEADER_MODIFIED, modifiedTime(file))
+		   .putLong(HEADER_INIT_SIZE, index.initSize())
+		   .putInt(HEADER_FLAGS, isTimed ? FLAG_TIMED : 0);
+		
+		for(int i = 0; i < count; ++i) {
+			Fragment fragment = fragments.get(i);
+			int pos = record(i);
+			buf.putLong(pos + RECORD_OFFSET, fragment.offset())
+			   .putLong(pos + RECORD_LENGTH, fragment.size())
+			   .putDouble(pos + RECORD_START, isTimed ? starts[i] : Double.NaN)
+			   .putDouble(pos + RECORD_END, isTimed ? ends[i] : Double.NaN)
+			   .putInt(pos + RECORD_MOOF_SIZE, moofSizes[i])
+			   .putInt(pos + RECORD_SAMPLES, (int) summaries[i][FragmentScanner.SAMPLES])
+			   .putInt(pos + RECORD_FLAGS, (int) summaries[i][FragmentScanner.FLAGS]);
+		}
+		
+		return new FragmentIndexFile(buf);
+	}
+	
+	/**
+	 * Gets the path of the sidecar of the given file.
+	 */
+	public static final Path path(Path file) {
+		return file.resolveSibling(file.getFileName() + SUFFIX);
+	}
+	
+	/**
+	 * Reads the sidecar of the given file.
+	 * @return The index, or {@code null}, if there is no sidecar or it does not match
+	 * the file anymore.
+	 */
+	public static final FragmentIndexFile load(Path file) throws IOException {
+		Path path = path(file);
+		
+		if(!Files.isRegularFile(path)) {
+			return null;
+		}
+		
+		// The sidecar is small, it is read to the memory rather than mapped, since
+		// a mapped file cannot be deleted on some systems until it is unmapped.
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			
+			if(size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+				return null;
+			}
+			
+			ByteBuffer buf = ByteBuffer.allocate((int) size);
+			IO.readFully(channel, buf, 0L);
+			
+			if(buf.getInt(0) != MAGIC
+					|| buf.getInt(HEADER_COUNT) < 0
+					|| size != HEADER_SIZE + (long) buf.getInt(HEADER_COUNT) * RECORD_SIZE
+					|| buf.getLong(HEADER_FILE_SIZE) != Files.size(file)
+					|| buf.getLong(HEADER_MODIFIED) != modifiedTime(file)) {
+				return null; // Sidecar of a different or changed file
+			}
+			
+			return new FragmentIndexFile(buf);
+		}
+	}
+	
+	/**
+	 * Deletes the sidecar of the given file, if present.
+	 */
+	public static final void delete(Path file) throws IOException {
+		Files.deleteIfExists(path(file));
+	}
+	
+	/**
+	 * Writes the sidecar of the given file. The sidecar is first written to a temporary
+	 * file and then moved, so that a partially written sidecar is never read.
+	 */
+	void write(Path file) throws IOException {
+		Path path = path(file);
+		Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+		
+		try(FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+		                                           StandardOpenOption.TRUNCATE_EXISTING)) {
+			IO.writeFully(channel, buf.duplicate().clear(), 0L);
+		}
+		
+		try {
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch(IOException ex) {
+			Files.deleteIfExists(temp);
+			throw ex; // Propagate
+		}
+	}
+	
+	/**
+	 * Gets the boundaries of the fragments, in the same form as they are produced by
+	 * scanning the file, see {@link FragmentIndex#build(FileChannel)}.
+	 */
+	public FragmentIndex index() {
+		List<Fragment> fragments = new ArrayList<>(count);
+		
+		for(int i = 0; i < count; ++i) {
+			fragments.add(new Fragment(i, offset(i), size(i)));
+		}
+		
+		return new FragmentIndex(initSize(), buf.getLong(HEADER_FILE_SIZE), fragments);
+	}
+	
+	/**
+	 * Gets the presentation times of the fragments.
+	 * @return The timeline, or {@code null}, if the start of some fragment is not known.
+	 */
+	public FragmentTimeline timeline() {
+		if((buf.getInt(HEADER_FLAGS) & FLAG_TIMED) == 0) {
+			return null;
+		}
+		
+		double[] starts = new double[count];
+		double[] ends = new double[count];
+		
+		for(int i = 0; i < count; ++i) {
+			starts[i] = start(i);
+			ends[i] = end(i);
+		}
+		
+		return new FragmentTimeline(index().fragments(), starts, ends);
+	}
+	
+	public int count() {
+		return count;
+	}
+	
+	public long initSize() {
+		return buf.getLong(HEADER_INIT_SIZE);
+	}
+	
+	public long offset(int index) {
+		return buf.getLong(record(index) + RECORD_OFFSET);
+	}
+	
+	public long size(int index) {
+		return buf.getLong(record(index) + RECORD_LENGTH);
+	}
+	
+	/** Gets the start, in seconds, of the fragment, or {@code NaN}, if not known. */
+	public double start(int index) {
+		return buf.getDouble(record(index) + RECORD_START);
+	}
+	
+	/** Gets the end, in seconds, of the fragment, or {@code NaN}, if not known. */
+	public double end(int index) {
+		return buf.getDouble(record(index) + RECORD_END);
+	}
+	
+	/** Gets the size of the {@code moof} box of the fragment, or zero, if not known. */
+	public int moofSize(int index) {
+		return buf.getInt(record(index) + RECORD_MOOF_SIZE);
+	}
+	
+	public int sampleCount(int index) {
+		return buf.getInt(record(index) + RECORD_SAMPLES);
+	}
+	
+	/** Checks whether the fragment may contain protected samples. */
+	public boolean isProtected(int index) {
+		return (buf.getInt(record(index) + RECORD_FLAGS) & FragmentScanner.FLAG_PROTECTED) != 0;
+	}
+	
+	/** Gets the total number of samples of all the fragments. */
+	public long sampleCount() {
+		long samples = 0L;
+		
+		for(int i = 0; i < count; ++i) {
+			samples += sampleCount(i);
+		}
+		
+		return samples;
+	}
+}
\ No newline at end of file
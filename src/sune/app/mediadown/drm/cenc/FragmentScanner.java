@@ -0,0 +1,236 @@
+package sune.app.mediadown.drm.cenc;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import sune.app.mediadown.drm.cenc.InitSegment.Track;
+
+/**
+ * Visitor of the boxes of a single movie fragment that reads just the fields needed
+ * to place the fragment in time and to tell whether it is protected. Unlike {@link Box},
+ * the boxes are walked using plain offsets and no objects are created, so that all
+ * the fragments of a large file can be scanned cheaply.
+ * @author Sune
+ */
+final class FragmentScanner {
+	
+	/** Base media decode time of the first timed track, or {@code -1}, if not present. */
+	static final int BASE_TIME = 0;
+	/** Duration of the first timed track, or zero, if unknown. */
+	static final int DURATION = 1;
+	/** Timescale of the first timed track, or zero, if there is no such track. */
+	static final int TIMESCALE = 2;
+	/** Number of samples of all the tracks. */
+	static final int SAMPLES = 3;
+	static final int FLAGS = 4;
+	static final int SUMMARY_SIZE = 5;
+	
+	/** The fragment may contain protected samples. */
+	static final int FLAG_PROTECTED = 0x1;
+	
+	// Forbid anyone to create an instance of this class
+	private FragmentScanner() {
+	}
+	
+	private static final long uint(int value) {
+		return value & 0xffffffffL;
+	}
+	
+	private static final int headerSize(ByteBuffer buf, int pos) {
+		int size = buf.getInt(pos) == 1 ? 16 : 8;
+		return buf.getInt(pos + 4) == Box.UUID ? size + 16 : size;
+	}
+	
+	private static final int end(ByteBuffer buf, int pos, int limit) {
+		if(limit - pos < 8) {
+			throw new IllegalStateException("Truncated box header at " + pos);
+		}
+		
+		long size = uint(buf.getInt(pos));
+		
+		if(size == 1L) {
+			size = limit - pos >= 16 ? buf.getLong(pos + 8) : -1L;
+		} else if(size == 0L) {
+			size = limit - pos;
+		}
+		
+		if(size < headerSize(buf, pos) || size > limit - pos) {
+			throw new IllegalStateException("Invalid size of box at " + pos);
+		}
+		
+		return pos + (int) size;
+	}
+	
+	private static final int first(ByteBuffer buf, int start, int end, int type) {
+		for(int pos = start; pos < end; pos = end(buf, pos, end)) {
+			if(buf.getInt(pos + 4) == type) {
+				return pos;
+			}
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * Scans the movie fragment at the start of the buffer and stores its summary
+	 * to the given array, indexed by {@link #BASE_TIME}, {@link #DURATION},
+	 * {@link #TIMESCALE}, {@link #SAMPLES} and {@link #FLAGS}. The buffer may contain
+	 * just the {@code moof} box.
+	 * @return {@code true}, if the buffer starts with a {@code moof} box, otherwise
+	 * {@code false}.
+	 */
+	static final boolean scan(ByteBuffer buf, InitSegment init, long[] summary) {
+		Arrays.fill(summary, 0L);
+		summary[BASE_TIME] = -1L;
+		int limit = buf.limit();
+		
+		if(limit < 8 || buf.getInt(4) != Box.MOOF) {
+			return false;
+		}
+		
+		int moofEnd = end(buf, 0, limit);
+		boolean isTimed = false;
+		
+		for(int tpos = headerSize(buf, 0), tend; tpos < moofEnd; tpos = tend) {
+			tend = end(buf, tpos, moofEnd);
+			
+			if(buf.getInt(tpos + 4) != Box.TRAF) {
+				continue;
+			}
+			
+			int trafContent = tpos + headerSize(buf, tpos);
+			int tfhd = first(buf, trafContent, tend, Box.TFHD);
+			
+			if(tfhd < 0) {
+				continue;
+			}
+			
+			int pos = tfhd + headerSize(buf, tfhd);
+			int flags = buf.getInt(pos) & 0xffffff;
+			Track track = init.track(buf.getInt(pos + 4));
+			
+			if(track == null) {
+				continue;
+			}
+			
+			int sampleDescriptionIndex = track.defaultSampleDescriptionIndex;
+			long defaultDuration = track.defaultSampleDuration;
+			pos += 8;
+			
+			if((flags & FragmentDecryptor.TFHD_BASE_DATA_OFFSET) != 0) {
+				pos += 8;
+			}
+			
+			if((flags & FragmentDecryptor.TFHD_SAMPLE_DESCRIPTION_INDEX) != 0) {
+				sampleDescriptionIndex = buf.getInt(pos);
+				pos += 4;
+			}
+			
+			if((flags & FragmentDecryptor.TFHD_DEFAULT_SAMPLE_DURATION) != 0) {
+				defaultDuration = uint(buf.getInt(pos));
+			}
+			
+			TrackEncryption encryption = track.encryption(sampleDescriptionIndex);
+			boolean hasSampleGroups = false;
+			long baseTime = -1L;
+			long duration = 0L;
+			
+			for(int bpos = trafContent, bend; bpos < tend; bpos = bend) {
+				bend = end(buf, bpos, tend);
+				int type = buf.getInt(bpos + 4);
+				int content = bpos + headerSize(buf, bpos);
+				
+				if(type == Box.TFDT) {
+					int version = buf.get(content) & 0xff;
+					baseTime = version == 1 ? buf.getLong(content + 4) : uint(buf.getInt(content + 4));
+				} else if(type == Box.SBGP) {
+					hasSampleGroups = true;
+				} else if(type == Box.TRUN) {
+					int trunFlags = buf.getInt(content) & 0xffffff;
+					int count = buf.getInt(content + 4);
+					int rpos = content + 8;
+					summary[SAMPLES] += count;
+					
+					if((trunFlags & FragmentDecryptor.TRUN_DATA_OFFSET) != 0) {
+						rpos += 4;
+					}
+					
+					if((trunFlags & FragmentDecryptor.TRUN_FIRST_SAMPLE_FLAGS) != 0) {
+						rpos += 4;
+					}
+					
+					if((trunFlags & FragmentDecryptor.TRUN_SAMPLE_DURATION) == 0) {
+						duration += count * defaultDuration;
+						continue;
+					}
+					
+					// The duration is the first field of every sample entry
+					int entrySize = 4 * Integer.bitCount(trunFlags & FragmentDecryptor.TRUN_SAMPLE_FIELDS);
+					
+					for(int i = 0; i < count; ++i, rpos += entrySize) {
+						duration += uint(buf.getInt(rpos));
+					}
+				}
+			}
+			
+			// The sample groups may protect samples even in the clear lead
+			if(encryption != null && (encryption.isProtected || hasSampleGroups)) {
+				summary[FLAGS] |= FLAG_PROTECTED;
+			}
+			
+			if(!isTimed && track.timescale != 0L) {
+				summary[BASE_TIME] = baseTime;
+				summary[DURATION] = duration;
+				summary[TIMESCALE] = track.timescale;
+				isTimed = true;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Reads the references of the first segment index ({@code sidx} box) among
+	 * the top-level boxes in the buffer, e.g. of the init segment.
+	 * @return The start and the duration, in seconds, of every referenced subsegment,
+	 * or {@code null}, if there is no usable segment index.
+	 */
+	static final double[][] segmentIndex(ByteBuffer buf) {
+		for(int pos = 0, end = buf.limit(), next; pos < end; pos = next) {
+			next = end(buf, pos, end);
+			
+			if(buf.getInt(pos + 4) != Box.SIDX) {
+				continue;
+			}
+			
+			int cpos = pos + headerSize(buf, pos);
+			int version = buf.get(cpos) & 0xff;
+			long timescale = uint(buf.getInt(cpos + 8));
+			long time = version == 0 ? uint(buf.getInt(cpos + 12)) : buf.getLong(cpos + 12);
+			// Skip also the first offset and the reserved field
+			cpos += version == 0 ? 22 : 30;
+			int count = buf.getShort(cpos) & 0xffff;
+			cpos += 2;
+			
+			if(timescale == 0L) {
+				return null;
+			}
+			
+			double[][] references = new double[count][];
+			
+			for(int i = 0; i < count; ++i, cpos += 12) {
+				if(buf.getInt(cpos) < 0) {
+					return null; // Hierarchical index, references another index
+				}
+				
+				long duration = uint(buf.getInt(cpos + 4));
+				references[i] = new double[] { time / (double) timescale, duration / (double) timescale };
+				time += duration;
+			}
+			
+			return references;
+		}
+		
+		return null;
+	}
+}
\ No newline at end of file
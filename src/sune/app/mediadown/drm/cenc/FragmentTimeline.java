@@ -0,0 +1,109 @@
+package sune.app.mediadown.drm.cenc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Presentation times of all the fragments of a fragmented MP4 file, so that a time
+ * range can be mapped to the fragments covering it. The start of a fragment is taken
+ * from its {@code tfdt} box, or from the segment index ({@code sidx} box) in the init
+ * segment, and its duration from the sample durations of its {@code trun} boxes.
+ * If the duration is not known, the fragment is assumed to last until the next one.
+ * The times are determined when the file is indexed, see {@link FragmentIndexFile}.
+ * @author Sune
+ */
+public final class FragmentTimeline {
+	
+	private final List<Fragment> fragments;
+	private final double[] starts;
+	private final double[] ends;
+	
+	FragmentTimeline(List<Fragment> fragments, double[] starts, double[] ends) {
+		this.fragments = fragments;
+		this.starts = starts;
+		this.ends = ends;
+	}
+	
+	/**
+	 * Resolves the start and the end, in seconds, of all the fragments from their
+	 * summaries, see {@link FragmentScanner#scan}, and the references of the segment
+	 * index, if any, which are used for the fragments without the respective times.
+	 * @return {@code true}, if the start of all the fragments is known, otherwise
+	 * {@code false}.
+	 */
+	static final boolean resolve(long[][] summaries, double[][] references, double[] starts, double[] ends) {
+		double previousEnd = Double.NaN;
+		
+		for(int i = 0, l = summaries.length; i < l; ++i) {
+			long[] summary = summaries[i];
+			double[] reference = references != null && i < references.length ? references[i] : null;
+			double timescale = summary[FragmentScanner.TIMESCALE];
+			double start = previousEnd;
+			double duration = Double.NaN;
+			
+			if(timescale > 0.0 && summary[FragmentScanner.BASE_TIME] >= 0L) {
+				start = summary[FragmentScanner.BASE_TIME] / timescale;
+			} else if(reference != null) {
+				start = reference[0];
+			}
+			
+			if(timescale > 0.0 && summary[FragmentScanner.DURATION] > 0L) {
+				duration = summary[FragmentScanner.DURATION] / timescale;
+			} else if(reference != null) {
+				duration = reference[1];
+			}
+			
+			if(Double.isNaN(start)) {
+				return false;
+			}
+			
+			if(i > 0 && Double.isNaN(ends[i - 1])) {
+				ends[i - 1] = start;
+			}
+			
+			starts[i] = start;
+			ends[i] = start + duration;
+			previousEnd = ends[i];
+		}
+		
+		if(ends.length > 0 && Double.isNaN(ends[ends.length - 1])) {
+			// The last fragment may last any time
+			ends[ends.length - 1] = Double.POSITIVE_INFINITY;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Gets all the fragments that overlap the given time range, in seconds, in the order
+	 * of the file. Since fragments usually start with a sync sample, the returned
+	 * fragments can usually be decoded on their own.
+	 * <p>
+	 * The range is relative to the start of the first fragment, since the decode times
+	 * of the fragments often do not start at zero, e.g. in content derived from a live
+	 * stream, and may differ between the tracks of the same title.</p>
+	 */
+	public List<Fragment> covering(double start, double end) {
+		List<Fragment> covering = new ArrayList<>();
+		double origin = starts.length > 0 ? starts[0] : 0.0;
+		
+		for(int i = 0, l = fragments.size(); i < l; ++i) {
+			if(starts[i] - origin < end && ends[i] - origin > start) {
+				covering.add(fragments.get(i));
+			}
+		}
+		
+		return Collections.unmodifiableList(covering);
+	}
+	
+	/** Gets the start, in seconds, of the fragment of the given index. */
+	public double start(int index) {
+		return starts[index];
+	}
+	
+	/** Gets the end, in seconds, of the fragment of the given index. */
+	public double end(int index) {
+		return ends[index];
+	}
+}
\ No newline at end of file
@@ -0,0 +1,35 @@
+package sune.app.mediadown.drm.cenc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Positional reading and writing of whole buffers.
+ * @author Sune
+ */
+final class IO {
+	
+	// Forbid anyone to create an instance of this class
+	private IO() {
+	}
+	
+	static final void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+		while(buf.hasRemaining()) {
+			int read = channel.read(buf, position + buf.position());
+			
+			if(read < 0) {
+				throw new EOFException("Unexpected end of file at position " + (position + buf.position()));
+			}
+		}
+		
+		buf.flip();
+	}
+	
+	static final void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+		for(long pos = position; buf.hasRemaining();) {
+			pos += channel.write(buf, pos);
+		}
+	}
+}
\ No newline at end of file
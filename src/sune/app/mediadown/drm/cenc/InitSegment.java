@@ -0,0 +1,301 @@
+package sune.app.mediadown.drm.cenc;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Encryption information of all tracks of a fragmented MP4 file, as described by
+ * its {@code moov} box. Since the decryption does not change the size of any box,
+ * the init segment is made clear by only renaming the protected sample entries
+ * back to their original format and turning the {@code sinf} boxes into
+ * {@code free} boxes.
+ * @author Sune
+ */
+final class InitSegment {
+	
+	private final Map<Integer, Track> tracks;
+	private final List<Box> renames;
+	private final List<Integer> renameTypes;
+	private final boolean isSupported;
+	
+	private InitSegment(Map<Integer, Track> tracks, List<Box> renames, List<Integer> renameTypes,
+			boolean isSupported) {
+		this.tracks = tracks;
+		this.renames = renames;
+		this.renameTypes = renameTypes;
+		this.isSupported = isSupported;
+	}
+	
+	private static final int sampleEntryChildrenOffset(ByteBuffer buf, Box entry) {
+		int pos = entry.content();
+		
+		// Skip the reserved bytes and the data reference index
+		pos += 8;
+		
+		if(entry.type == Box.ENCV) {
+			return pos + 70;
+		}
+		
+		// Audio sample entries have different sizes depending on the version
+		int version = buf.getShort(pos) & 0xffff;
+		return pos + 20 + (version == 1 ? 16 : version == 2 ? 36 : 0);
+	}
+	
+	private static final int trackId(ByteBuffer buf, Box tkhd) {
+		int pos = tkhd.content();
+		int version = buf.get(pos) & 0xff;
+		return buf.getInt(pos + 4 + (version == 1 ? 16 : 8));
+	}
+	
+	private static final long timescale(ByteBuffer buf, Box mdhd) {
+		if(mdhd == null) {
+			return 0L;
+		}
+		
+		int pos = mdhd.content();
+		int version = buf.get(pos) & 0xff;
+		return buf.getInt(pos + 4 + (version == 1 ? 16 : 8)) & 0xffffffffL;
+	}
+	
+	private static final List<TrackEncryption> groupEntries(ByteBuffer buf, Box stbl, List<TrackEncryption> entries) {
+		EncryptionScheme scheme = entries.stream()
+			.filter((e) -> e != null)
+			.map((e) -> e.scheme)
+			.findFirst().orElse(null);
+		
+		if(scheme == null) {
+			return List.of();
+		}
+		
+		List<TrackEncryption> groups = new ArrayList<>();
+		
+		for(int pos = stbl.content(); pos < stbl.end();) {
+			Box box = Box.read(buf, pos, stbl.end());
+			pos = box.end();
+			
+			if(box.type != Box.SGPD) {
+				continue;
+			}
+			
+			SampleGroups.readDescriptions(buf, box, scheme, groups);
+		}
+		
+		return groups;
+	}
+	
+	static final InitSegment parse(ByteBuffer buf, int start, int end) {
+		Box moov = Box.first(buf, start, end, Box.MOOV);
+		
+		if(moov == null) {
+			throw new IllegalStateException("Movie box not found");
+		}
+		
+		Map<Integer, Track> tracks = new HashMap<>();
+		List<Box> renames = new ArrayList<>();
+		List<Integer> renameTypes = new ArrayList<>();
+		Map<Integer, int[]> defaults = new HashMap<>();
+		boolean isSupported = true;
+		
+		Box mvex = Box.first(buf, moov.content(), moov.end(), Box.MVEX);
+		
+		if(mvex != null) {
+			for(int pos = mvex.content(); pos < mvex.end();) {
+				Box trex = Box.read(buf, pos, mvex.end());
+				pos = trex.end();
+				
+				if(trex.type != Box.TREX) {
+					continue;
+				}
+				
+				int content = trex.content();
+				defaults.put(buf.getInt(content + 4), new int[] {
+					buf.getInt(content + 8),  // default_sample_description_index
+					buf.getInt(content + 16), // default_sample_size
+					buf.getInt(content + 12), // default_sample_duration
+				});
+			}
+		}
+		
+		for(int pos = moov.content(); pos < moov.end();) {
+			Box trak = Box.read(buf, pos, moov.end());
+			pos = trak.end();
+			
+			if(trak.type != Box.TRAK) {
+				continue;
+			}
+			
+			Box tkhd = Box.first(buf, trak.content(), trak.end(), Box.TKHD);
+			Box mdia = Box.first(buf, trak.content(), trak.end(), Box.MDIA);
+			Box mdhd = mdia != null ? Box.first(buf, mdia.content(), mdia.end(), Box.MDHD) : null;
+			Box minf = mdia != null ? Box.first(buf, mdia.content(), mdia.end(), Box.MINF) : null;
+			Box stbl = minf != null ? Box.first(buf, minf.content(), minf.end(), Box.STBL) : null;
+			Box stsd = stbl != null ? Box.first(buf, stbl.content(), stbl.end(), Box.STSD) : null;
+			
+			if(tkhd == null || stsd == null) {
+				continue;
+			}
+			
+			int trackId = trackId(buf, tkhd);
+			List<TrackEncryption> entries = new ArrayList<>();
+			
+			// Skip the full box header and the entry count
+			for(int epos = stsd.content() + 8; epos < stsd.end();) {
+				Box entry = Box.read(buf, epos, stsd.end());
+				epos = entry.end();
+				
+				if(entry.type != Box.ENCV && entry.type != Box.ENCA) {
+					entries.add(null); // Clear sample entry
+					continue;
+				}
+				
+				TrackEncryption encryption = null;
+				int originalFormat = 0;
+				
+				for(int spos = sampleEntryChildrenOffset(buf, entry); spos < entry.end();) {
+					Box sinf = Box.read(buf, spos, entry.end());
+					spos = sinf.end();
+					
+					if(sinf.type != Box.SINF) {
+						continue;
+					}
+					
+					Box frma = Box.first(buf, sinf.content(), sinf.end(), Box.FRMA);
+					Box schm = Box.first(buf, sinf.content(), sinf.end(), Box.SCHM);
+					Box schi = Box.first(buf, sinf.content(), sinf.end(), Box.SCHI);
+					Box tenc = schi != null ? Box.first(buf, schi.content(), schi.end(), Box.TENC) : null;
+					
+					renames.add(sinf);
+					renameTypes.add(Box.FREE);
+					
+					if(encryption != null || frma == null || schm == null || tenc == null) {
+						continue;
+					}
+					
+					// Skip the full box header
+					EncryptionScheme scheme = EncryptionScheme.of(buf.getInt(schm.content() + 4));
+					
+					if(scheme == null) {
+						continue;
+					}
+					
+					encryption = TrackEncryption.ofTenc(scheme, buf, tenc);
+					originalFormat = buf.getInt(frma.content());
+				}
+				
+				if(encryption == null) {
+					// Protected by an unknown or unsupported scheme
+					isSupported = false;
+					entries.add(null);
+					continue;
+				}
+				
+				renames.add(entry);
+				renameTypes.add(originalFormat);
+				entries.add(encryption);
+			}
+			
+			int[] trex = defaults.getOrDefault(trackId, new int[] { 1, 0, 0 });
+			List<TrackEncryption> groups = groupEntries(buf, stbl, entries);
+			tracks.put(trackId, new Track(
+				trackId, entries, groups, trex[0], trex[1], trex[2] & 0xffffffffL, timescale(buf, mdhd)
+			));
+		}
+		
+		return new InitSegment(tracks, renames, renameTypes, isSupported);
+	}
+	
+	void makeClear(ByteBuffer buf) {
+		for(int i = 0, l = renames.size(); i < l; ++i) {
+			renames.get(i).rename(buf, renameTypes.get(i));
+		}
+	}
+	
+	Track track(int trackId) {
+		return tracks.get(trackId);
+	}
+	
+	boolean isSupported() {
+		return isSupported;
+	}
+	
+	boolean isProtected() {
+		return !renames.isEmpty();
+	}
+	
+	/**
+	 * Gets all the encryption parameters of all the tracks, i.e. from both
+	 * the sample entries and the sample groups.
+	 */
+	List<TrackEncryption> encryptions() {
+		List<TrackEncryption> encryptions = new ArrayList<>();
+		
+		for(Track track : tracks.values()) {
+			for(TrackEncryption encryption : track.entries) {
+				if(encryption != null) {
+					encryptions.add(encryption);
+				}
+			}
+			
+			encryptions.addAll(track.groups);
+		}
+		
+		return encryptions;
+	}
+	
+	Set<EncryptionScheme> schemes() {
+		Set<EncryptionScheme> schemes = new LinkedHashSet<>();
+		
+		for(TrackEncryption encryption : encryptions()) {
+			schemes.add(encryption.scheme);
+		}
+		
+		return schemes;
+	}
+	
+	Set<String> keyIds() {
+		Set<String> keyIds = new LinkedHashSet<>();
+		
+		for(TrackEncryption encryption : encryptions()) {
+			if(encryption.isProtected) {
+				keyIds.add(DecryptionKeys.bytesToHex(encryption.kid));
+			}
+		}
+		
+		return keyIds;
+	}
+	
+	static final class Track {
+		
+		final int id;
+		final List<TrackEncryption> entries;
+		final List<TrackEncryption> groups;
+		final int defaultSampleDescriptionIndex;
+		final int defaultSampleSize;
+		final long defaultSampleDuration;
+		/** Number of time units per second of the track, or zero, if unknown. */
+		final long timescale;
+		
+		Track(int id, List<TrackEncryption> entries, List<TrackEncryption> groups,
+				int defaultSampleDescriptionIndex, int defaultSampleSize, long defaultSampleDuration,
+				long timescale) {
+			this.id = id;
+			this.entries = Collections.unmodifiableList(entries);
+			this.groups = Collections.unmodifiableList(groups);
+			this.defaultSampleDescriptionIndex = defaultSampleDescriptionIndex;
+			this.defaultSampleSize = defaultSampleSize;
+			this.defaultSampleDuration = defaultSampleDuration;
+			this.timescale = timescale;
+		}
+		
+		TrackEncryption encryption(int sampleDescriptionIndex) {
+			int index = sampleDescriptionIndex - 1;
+			return index >= 0 && index < entries.size() ? entries.get(index) : null;
+		}
+	}
+}
\ No newline at end of file
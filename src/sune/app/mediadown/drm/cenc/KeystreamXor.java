@@ -0,0 +1,99 @@
+package sune.app.mediadown.drm.cenc;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Optional;
+
+/**
+ * XOR of data with a key stream. The Vector API is used only if the application
+ * is run with {@code --add-modules jdk.incubator.vector}, since an incubator module
+ * is never resolved by default, otherwise eight bytes are processed at once.
+ * <p>
+ * {@link VectorXor} is compiled separately, so that the module does not depend
+ * on the incubator module, and therefore it is bound only through a method handle.
+ * @author Sune
+ */
+final class KeystreamXor {
+	
+	private static final String VECTOR_MODULE = "jdk.incubator.vector";
+	private static final String VECTOR_CLASS = "sune.app.mediadown.drm.cenc.VectorXor";
+	private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(
+		long[].class, ByteOrder.nativeOrder()
+	);
+	private static final MethodHandle vectorXor = initVectorXor();
+	
+	// Forbid anyone to create an instance of this class
+	private KeystreamXor() {
+	}
+	
+	private static final MethodHandle initVectorXor() {
+		Optional<Module> module = ModuleLayer.boot().findModule(VECTOR_MODULE);
+		
+		if(module.isEmpty()) {
+			return null;
+		}
+		
+		try {
+			// The module is not a dependency, therefore it is not read yet
+			KeystreamXor.class.getModule().addReads(module.get());
+			
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			Class<?> clazz = Class.forName(VECTOR_CLASS);
+			MethodHandle isSupported = lookup.findStatic(
+				clazz, "isSupported", MethodType.methodType(boolean.class)
+			);
+			
+			if(!(boolean) isSupported.invokeExact()) {
+				return null;
+			}
+			
+			return lookup.findStatic(clazz, "xor", MethodType.methodType(
+				void.class, byte[].class, int.class, byte[].class, int.class, int.class
+			));
+		} catch(Throwable ex) {
+			// Not critical, the scalar way is used instead
+			return null;
+		}
+	}
+	
+	/**
+	 * XORs the data with the key stream, eight bytes at once.
+	 */
+	static final void xorScalar(byte[] data, int offset, byte[] keystream, int keystreamOffset, int length) {
+		int i = 0;
+		
+		for(int l = length & -8; i < l; i += 8) {
+			long value = (long) LONGS.get(data, offset + i) ^ (long) LONGS.get(keystream, keystreamOffset + i);
+			LONGS.set(data, offset + i, value);
+		}
+		
+		for(; i < length; ++i) {
+			data[offset + i] ^= keystream[keystreamOffset + i];
+		}
+	}
+	
+	/**
+	 * XORs the data with the key stream in place, using the fastest available way.
+	 */
+	static final void xor(byte[] data, int offset, byte[] keystream, int keystreamOffset, int length) {
+		if(vectorXor != null) {
+			try {
+				vectorXor.invokeExact(data, offset, keystream, keystreamOffset, length);
+			} catch(RuntimeException | Error ex) {
+				throw ex; // Propagate
+			} catch(Throwable ex) {
+				// The method does not throw any checked exception
+				throw new IllegalStateException(ex);
+			}
+		} else {
+			xorScalar(data, offset, keystream, keystreamOffset, length);
+		}
+	}
+	
+	static final boolean isVectorized() {
+		return vectorXor != null;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,199 @@
+package sune.app.mediadown.drm.cenc;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Decrypts samples in place. Since the cipher instances are stateful, an instance
+ * of this class must not be shared between threads.
+ * @author Sune
+ */
+final class SampleDecryptor {
+	
+	private static final int BLOCK_SIZE = 16;
+	/** Average size of protected ranges of a sample below which the ranges are gathered. */
+	private static final int MAX_GATHERED_RANGE_SIZE = 1024;
+	
+	private final CTRKeystream ctr;
+	private final Cipher cbc;
+	private final byte[] iv = new byte[BLOCK_SIZE];
+	private ByteBuffer run;
+	
+	SampleDecryptor() throws GeneralSecurityException {
+		ctr = new CTRKeystream();
+		cbc = Cipher.getInstance("AES/CBC/NoPadding");
+	}
+	
+	private final void update(TrackEncryption encryption, byte[] data, int offset, int length)
+			throws GeneralSecurityException {
+		if(length <= 0) {
+			return;
+		}
+		
+		if(encryption.scheme.isCBC()) {
+			cbc.update(data, offset, length, data, offset);
+		} else {
+			ctr.update(data, offset, length);
+		}
+	}
+	
+	private final void init(TrackEncryption encryption, SecretKeySpec key) throws GeneralSecurityException {
+		if(encryption.scheme.isCBC()) {
+			cbc.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+		} else {
+			ctr.init(key, iv);
+		}
+	}
+	
+	private final void decryptRange(TrackEncryption encryption, byte[] data, int offset, int length)
+			throws GeneralSecurityException {
+		if(!encryption.hasPattern()) {
+			// CTR mode can decrypt partial blocks, CBC mode leaves the trailing partial
+			// block unencrypted.
+			update(encryption, data, offset, encryption.scheme.isCBC() ? length & -BLOCK_SIZE : length);
+			return;
+		}
+		
+		int crypt = encryption.cryptByteBlock * BLOCK_SIZE;
+		int skip = encryption.skipByteBlock * BLOCK_SIZE;
+		
+		// Only whole blocks are encrypted in the pattern, the rest is always clear
+		while(length >= BLOCK_SIZE) {
+			int count = Math.min(crypt, length & -BLOCK_SIZE);
+			update(encryption, data, offset, count);
+			offset += count;
+			length -= count;
+			
+			count = Math.min(skip, length);
+			offset += count;
+			length -= count;
+		}
+	}
+	
+	private static final boolean canGather(TrackEncryption encryption) {
+		// In the CTR mode without a pattern and without resetting the IV, the protected
+		// ranges of a sample are encrypted as a single key stream.
+		return !encryption.scheme.isCBC()
+					&& !encryption.hasPattern()
+					&& !encryption.scheme.resetsIVPerSubsample();
+	}
+	
+	/**
+	 * Decrypts all the protected ranges of a sample using a single call of the cipher,
+	 * by gathering them into one contiguous run and scattering the result back. This is
+	 * faster than decrypting the ranges separately when there are many small ones.
+	 */
+	private final void decryptGathered(TrackEncryption encryption, byte[] data, int offset, long protectedSize,
+			ByteBuffer subsamples, int subsamplesOffset, int subsampleCount) throws GeneralSecurityException {
+		if(run == null || run.capacity() < protectedSize) {
+			BufferPool.instance().release(run);
+			run = BufferPool.instance().acquire((int) protectedSize);
+		}
+		
+		byte[] run = this.run.array();
+		
+		for(int i = 0, pos = offset, runPos = 0; i < subsampleCount; ++i) {
+			int clear = subsamples.getShort(subsamplesOffset + 6 * i) & 0xffff;
+			int protect = subsamples.getInt(subsamplesOffset + 6 * i + 2);
+			System.arraycopy(data, pos + clear, run, runPos, protect);
+			pos += clear + protect;
+			runPos += protect;
+		}
+		
+		update(encryption, run, 0, (int) protectedSize);
+		
+		for(int i = 0, pos = offset, runPos = 0; i < subsampleCount; ++i) {
+			int clear = subsamples.getShort(subsamplesOffset + 6 * i) & 0xffff;
+			int protect = subsamples.getInt(subsamplesOffset + 6 * i + 2);
+			System.arraycopy(run, runPos, data, pos + clear, protect);
+			pos += clear + protect;
+			runPos += protect;
+		}
+	}
+	
+	/**
+	 * Returns the buffers of this decryptor to the pool. This decryptor must not
+	 * be used afterwards.
+	 */
+	void release() {
+		BufferPool.instance().release(run);
+		run = null;
+		ctr.release();
+	}
+	
+	void iv(ByteBuffer buf, int offset, int size) {
+		Arrays.fill(iv, (byte) 0);
+		
+		for(int i = 0; i < size; ++i) {
+			iv[i] = buf.get(offset + i);
+		}
+	}
+	
+	void iv(byte[] value) {
+		Arrays.fill(iv, (byte) 0);
+		System.arraycopy(value, 0, iv, 0, value.length);
+	}
+	
+	/**
+	 * Decrypts a single sample in place. If the subsample count is zero, the whole
+	 * sample is considered to be protected, otherwise the subsample entries (pairs
+	 * of clear and protected byte counts) are read from the given buffer.
+	 */
+	void decrypt(byte[] data, int offset, int size, TrackEncryption encryption, SecretKeySpec key,
+			ByteBuffer subsamples, int subsamplesOffset, int subsampleCount) throws GeneralSecurityException {
+		init(encryption, key);
+		
+		if(subsampleCount == 0) {
+			decryptRange(encryption, data, offset, size);
+			return;
+		}
+		
+		int end = offset + size;
+		
+		if(subsampleCount > 1 && canGather(encryption)) {
+			long protectedSize = 0L;
+			
+			for(int i = 0, pos = offset; i < subsampleCount; ++i) {
+				int clear = subsamples.getShort(subsamplesOffset + 6 * i) & 0xffff;
+				long protect = subsamples.getInt(subsamplesOffset + 6 * i + 2) & 0xffffffffL;
+				pos += clear;
+				
+				if(pos + protect > end) {
+					throw new IllegalStateException("Subsample exceeds the sample bounds");
+				}
+				
+				pos += (int) protect;
+				protectedSize += protect;
+			}
+			
+			if(protectedSize < (long) MAX_GATHERED_RANGE_SIZE * subsampleCount) {
+				decryptGathered(
+					encryption, data, offset, protectedSize, subsamples, subsamplesOffset, subsampleCount
+				);
+				return;
+			}
+		}
+		
+		for(int i = 0; i < subsampleCount; ++i, subsamplesOffset += 6) {
+			int clear = subsamples.getShort(subsamplesOffset) & 0xffff;
+			long protect = subsamples.getInt(subsamplesOffset + 2) & 0xffffffffL;
+			offset += clear;
+			
+			if(offset + protect > end) {
+				throw new IllegalStateException("Subsample exceeds the sample bounds");
+			}
+			
+			if(i > 0 && encryption.scheme.resetsIVPerSubsample()) {
+				init(encryption, key);
+			}
+			
+			decryptRange(encryption, data, offset, (int) protect);
+			offset += (int) protect;
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,129 @@
+package sune.app.mediadown.drm.cenc;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Reading of the {@code seig} sample groups that may override the default
+ * encryption parameters of a track for specific samples.
+ * @author Sune
+ */
+final class SampleGroups {
+	
+	/** Group description indices above this value refer to the fragment-local descriptions. */
+	private static final int FRAGMENT_LOCAL_BASE = 0x10000;
+	
+	// Forbid anyone to create an instance of this class
+	private SampleGroups() {
+	}
+	
+	static final void readDescriptions(ByteBuffer buf, Box sgpd, EncryptionScheme scheme,
+			List<TrackEncryption> entries) {
+		int pos = sgpd.content();
+		int version = buf.get(pos) & 0xff;
+		
+		if(buf.getInt(pos + 4) != Box.SEIG) {
+			return; // Not a sample encryption group
+		}
+		
+		pos += 8;
+		int defaultLength = 0;
+		
+		if(version == 1) {
+			defaultLength = buf.getInt(pos);
+			pos += 4;
+		} else if(version >= 2) {
+			pos += 4; // Skip the default sample description index
+		}
+		
+		int count = buf.getInt(pos);
+		pos += 4;
+		
+		for(int i = 0; i < count; ++i) {
+			int length = defaultLength;
+			
+			if(version == 1 && length == 0) {
+				length = buf.getInt(pos);
+				pos += 4;
+			}
+			
+			TrackEncryption entry = TrackEncryption.ofSeig(scheme, buf, pos);
+			entries.add(entry);
+			
+			if(length == 0) {
+				length = 20 + (entry.constantIV.length > 0 ? 1 + entry.constantIV.length : 0);
+			}
+			
+			pos += length;
+		}
+	}
+	
+	static final TrackEncryption resolve(int index, List<TrackEncryption> fragment, List<TrackEncryption> track) {
+		if(index == 0) {
+			return null; // Not a member of any group
+		}
+		
+		List<TrackEncryption> entries = track;
+		
+		if(index > FRAGMENT_LOCAL_BASE) {
+			index -= FRAGMENT_LOCAL_BASE;
+			entries = fragment;
+		}
+		
+		if(index > entries.size()) {
+			throw new IllegalStateException("Invalid sample group description index: " + index);
+		}
+		
+		return entries.get(index - 1);
+	}
+	
+	/**
+	 * Sequential reader of group description indices of samples from
+	 * a {@code sbgp} box.
+	 */
+	static final class Cursor {
+		
+		private final ByteBuffer buf;
+		private int pos;
+		private int remainingEntries;
+		private int remainingSamples;
+		private int index;
+		
+		private Cursor(ByteBuffer buf, int pos, int count) {
+			this.buf = buf;
+			this.pos = pos;
+			this.remainingEntries = count;
+		}
+		
+		static final Cursor of(ByteBuffer buf, Box sbgp) {
+			if(sbgp == null) {
+				return new Cursor(buf, 0, 0);
+			}
+			
+			int pos = sbgp.content();
+			int version = buf.get(pos) & 0xff;
+			pos += version == 1 ? 12 : 8;
+			return new Cursor(buf, pos + 4, buf.getInt(pos));
+		}
+		
+		static final boolean isEncryptionGroup(ByteBuffer buf, Box sbgp) {
+			return buf.getInt(sbgp.content() + 4) == Box.SEIG;
+		}
+		
+		int next() {
+			while(remainingSamples == 0) {
+				if(remainingEntries == 0) {
+					return 0; // Samples not mapped explicitly are not in any group
+				}
+				
+				remainingSamples = buf.getInt(pos);
+				index = buf.getInt(pos + 4);
+				pos += 8;
+				--remainingEntries;
+			}
+			
+			--remainingSamples;
+			return index;
+		}
+	}
+}
\ No newline at end of file
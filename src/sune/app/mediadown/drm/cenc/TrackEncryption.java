@@ -0,0 +1,70 @@
+package sune.app.mediadown.drm.cenc;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Default encryption parameters of a track, either from its {@code tenc} box or
+ * from a {@code seig} sample group description entry.
+ * @author Sune
+ */
+final class TrackEncryption {
+	
+	private static final byte[] EMPTY = new byte[0];
+	
+	final EncryptionScheme scheme;
+	final boolean isProtected;
+	final int perSampleIVSize;
+	final byte[] kid;
+	final byte[] constantIV;
+	final int cryptByteBlock;
+	final int skipByteBlock;
+	
+	private TrackEncryption(EncryptionScheme scheme, boolean isProtected, int perSampleIVSize, byte[] kid,
+			byte[] constantIV, int cryptByteBlock, int skipByteBlock) {
+		this.scheme = scheme;
+		this.isProtected = isProtected;
+		this.perSampleIVSize = perSampleIVSize;
+		this.kid = kid;
+		this.constantIV = constantIV;
+		this.cryptByteBlock = cryptByteBlock;
+		this.skipByteBlock = skipByteBlock;
+	}
+	
+	/**
+	 * Reads the shared layout of the {@code tenc} box and the {@code seig} entry,
+	 * starting at the byte containing the crypt and skip byte block values.
+	 */
+	private static final TrackEncryption read(EncryptionScheme scheme, ByteBuffer buf, int pos, boolean hasPattern) {
+		int pattern = hasPattern ? buf.get(pos) & 0xff : 0;
+		boolean isProtected = buf.get(pos + 1) != 0;
+		int perSampleIVSize = buf.get(pos + 2) & 0xff;
+		byte[] kid = new byte[16];
+		Box.get(buf, pos + 3, kid);
+		byte[] constantIV = EMPTY;
+		
+		if(isProtected && perSampleIVSize == 0) {
+			constantIV = new byte[buf.get(pos + 19) & 0xff];
+			Box.get(buf, pos + 20, constantIV);
+		}
+		
+		return new TrackEncryption(
+			scheme, isProtected, perSampleIVSize, kid, constantIV, pattern >>> 4, pattern & 0x0f
+		);
+	}
+	
+	static final TrackEncryption ofTenc(EncryptionScheme scheme, ByteBuffer buf, Box tenc) {
+		int pos = tenc.content();
+		int version = buf.get(pos) & 0xff;
+		// Skip the full box header and the first reserved byte
+		return read(scheme, buf, pos + 5, version > 0);
+	}
+	
+	static final TrackEncryption ofSeig(EncryptionScheme scheme, ByteBuffer buf, int pos) {
+		// Skip the first reserved byte
+		return read(scheme, buf, pos + 1, true);
+	}
+	
+	boolean hasPattern() {
+		return scheme.usesPattern() && cryptByteBlock > 0;
+	}
+}
\ No newline at end of file
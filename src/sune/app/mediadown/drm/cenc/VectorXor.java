@@ -0,0 +1,37 @@
+package sune.app.mediadown.drm.cenc;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * XOR of data with a key stream using the Vector API. This class is compiled
+ * separately from the rest of the module and must be loaded only if the
+ * {@code jdk.incubator.vector} module is present, see {@link KeystreamXor}.
+ * @author Sune
+ */
+final class VectorXor {
+	
+	private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+	
+	// Forbid anyone to create an instance of this class
+	private VectorXor() {
+	}
+	
+	static final boolean isSupported() {
+		// A vector of a single 64-bit lane would not be faster than the scalar way
+		return SPECIES.vectorByteSize() > Long.BYTES;
+	}
+	
+	static final void xor(byte[] data, int offset, byte[] keystream, int keystreamOffset, int length) {
+		int i = 0;
+		
+		for(int l = SPECIES.loopBound(length); i < l; i += SPECIES.length()) {
+			ByteVector a = ByteVector.fromArray(SPECIES, data, offset + i);
+			ByteVector b = ByteVector.fromArray(SPECIES, keystream, keystreamOffset + i);
+			a.lanewise(VectorOperators.XOR, b).intoArray(data, offset + i);
+		}
+		
+		KeystreamXor.xorScalar(data, offset + i, keystream, keystreamOffset + i, length - i);
+	}
+}
\ No newline at end of file
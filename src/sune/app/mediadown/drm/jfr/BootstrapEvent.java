@@ -0,0 +1,35 @@
+package sune.app.mediadown.drm.jfr;
+
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Stage of the bootstrap of the plugin, e.g. the check of its resources.
+ * @author Sune
+ */
+@Name("sune.app.mediadown.drm.Bootstrap")
+@Label("Bootstrap")
+@Description("Stage of the bootstrap of the plugin, e.g. the check of its resources.")
+public final class BootstrapEvent extends DRMEvent {
+	
+	@Label("Stage")
+	String stage;
+	
+	@Label("Size")
+	@DataAmount
+	long bytes;
+	
+	BootstrapEvent() {
+		begin();
+	}
+	
+	public void end(String media, String engine, String trackType, String stage, long bytes) {
+		if(end(media, engine, trackType)) {
+			this.stage = stage;
+			this.bytes = bytes;
+			commit();
+		}
+	}
+}
\ No newline at end of file
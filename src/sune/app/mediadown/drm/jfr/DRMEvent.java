@@ -0,0 +1,44 @@
+package sune.app.mediadown.drm.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+
+/**
+ * Base of the JFR events of the DRM pipeline. Instances must be obtained only
+ * through {@link DRMEvents}, since the {@code jdk.jfr} module may not be present.
+ * The events are begun when created.
+ * @author Sune
+ */
+@Category({ "Media Downloader", "DRM" })
+@StackTrace(false)
+public abstract class DRMEvent extends Event {
+	
+	@Label("Media")
+	String media;
+	
+	@Label("Engine")
+	String engine;
+	
+	@Label("Track Type")
+	String trackType;
+	
+	DRMEvent() {
+	}
+	
+	/**
+	 * Sets the common fields and commits the event, if it should be committed.
+	 * The event must not be used afterwards.
+	 */
+	final boolean end(String media, String engine, String trackType) {
+		if(!shouldCommit()) {
+			return false;
+		}
+		
+		this.media = media;
+		this.engine = engine;
+		this.trackType = trackType;
+		return true;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,78 @@
+package sune.app.mediadown.drm.jfr;
+
+import java.util.Optional;
+
+/**
+ * Factory of the JFR events of the DRM pipeline. The {@code jdk.jfr} module is only
+ * an optional dependency, therefore, if it is not present, all the methods return
+ * {@code null} and no event class is ever loaded, the callers must therefore not
+ * use the events as {@link DRMEvent}. Otherwise the returned events are already
+ * begun. The events are cheap when JFR is not recording, since they are then not
+ * committed and their fields are not even set.
+ * @author Sune
+ */
+public final class DRMEvents {
+	
+	private static final String JFR_MODULE = "jdk.jfr";
+	private static final boolean isAvailable = initAvailable();
+	
+	// Forbid anyone to create an instance of this class
+	private DRMEvents() {
+	}
+	
+	private static final boolean initAvailable() {
+		Optional<Module> module = ModuleLayer.boot().findModule(JFR_MODULE);
+		
+		if(module.isEmpty()) {
+			return false;
+		}
+		
+		try {
+			// The module is only an optional dependency, therefore it may not be read yet
+			DRMEvents.class.getModule().addReads(module.get());
+			return true;
+		} catch(LinkageError ex) {
+			return false;
+		}
+	}
+	
+	public static final boolean isAvailable() {
+		return isAvailable;
+	}
+	
+	public static final PSSHExtractionEvent psshExtraction() {
+		return isAvailable ? new PSSHExtractionEvent() : null;
+	}
+	
+	public static final WVRequestEvent wvRequest() {
+		return isAvailable ? new WVRequestEvent() : null;
+	}
+	
+	public static final LicenseRequestEvent licenseRequest() {
+		return isAvailable ? new LicenseRequestEvent() : null;
+	}
+	
+	public static final KeyAcquisitionEvent keyAcquisition() {
+		return isAvailable ? new KeyAcquisitionEvent() : null;
+	}
+	
+	public static final KeyTrialEvent keyTrial() {
+		return isAvailable ? new KeyTrialEvent() : null;
+	}
+	
+	public static final SegmentDownloadEvent segmentDownload() {
+		return isAvailable ? new SegmentDownloadEvent() : null;
+	}
+	
+	public static final TrackDecryptionEvent trackDecryption() {
+		return isAvailable ? new TrackDecryptionEvent() : null;
+	}
+	
+	public static final SafeMoveEvent safeMove() {
+		return isAvailable ? new SafeMoveEvent() : null;
+	}
+	
+	public static final BootstrapEvent bootstrap() {
+		return isAvailable ? new BootstrapEvent() : null;
+	}
+}
\ No newline at end of file
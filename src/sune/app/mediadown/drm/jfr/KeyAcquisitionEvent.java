@@ -0,0 +1,33 @@
+package sune.app.mediadown.drm.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Single attempt to obtain the decryption keys of a track from its license.
+ * @author Sune
+ */
+@Name("sune.app.mediadown.drm.KeyAcquisition")
+@Label("Key Acquisition")
+@Description("Single attempt to obtain the decryption keys of a track from its license.")
+public final class KeyAcquisitionEvent extends DRMEvent {
+	
+	@Label("Attempt")
+	int attempt;
+	
+	@Label("Keys")
+	int keys;
+	
+	KeyAcquisitionEvent() {
+		begin();
+	}
+	
+	public void end(String media, String engine, String trackType, int attempt, int keys) {
+		if(end(media, engine, trackType)) {
+			this.attempt = attempt;
+			this.keys = keys;
+			commit();
+		}
+	}
+}
\ No newline at end of file
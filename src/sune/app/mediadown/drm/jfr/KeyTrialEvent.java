@@ -0,0 +1,37 @@
+package sune.app.mediadown.drm.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Validation of a single candidate key by a trial decryption using FFmpeg.
+ * @author Sune
+ */
+@Name("sune.app.mediadown.drm.KeyTrial")
+@Label("Key Trial")
+@Description("Validation of a single candidate key by a trial decryption using FFmpeg.")
+public final class KeyTrialEvent extends DRMEvent {
+	
+	@Label("Candidate")
+	int candidate;
+	
+	@Label("Candidates")
+	int candidates;
+	
+	@Label("Succeeded")
+	boolean succeeded;
+	
+	KeyTrialEvent() {
+		begin();
+	}
+	
+	public void end(String media, String engine, String trackType, int candidate, int candidates, boolean succeeded) {
+		if(end(media, engine, trackType)) {
+			this.candidate = candidate;
+			this.candidates = candidates;
+			this.succeeded = succeeded;
+			commit();
+		}
+	}
+}
\ No newline at end of file
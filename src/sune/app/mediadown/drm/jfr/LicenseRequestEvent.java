@@ -0,0 +1,35 @@
+package sune.app.mediadown.drm.jfr;
+
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Request to the license server of a DRM engine.
+ * @author Sune
+ */
+@Name("sune.app.mediadown.drm.LicenseRequest")
+@Label("License Request")
+@Description("Request to the license server of a DRM engine.")
+public final class LicenseRequestEvent extends DRMEvent {
+	
+	@Label("Attempt")
+	int attempt;
+	
+	@Label("Response Size")
+	@DataAmount
+	long bytes;
+	
+	LicenseRequestEvent() {
+		begin();
+	}
+	
+	public void end(String media, String engine, String trackType, int attempt, long bytes) {
+		if(end(media, engine, trackType)) {
+			this.attempt = attempt;
+			this.bytes = bytes;
+			commit();
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,29 @@
+package sune.app.mediadown.drm.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Extraction of the Widevine PSSH from the metadata of a track.
+ * @author Sune
+ */
+@Name("sune.app.mediadown.drm.PSSHExtraction")
+@Label("PSSH Extraction")
+@Description("Extraction of the Widevine PSSH from the metadata of a track.")
+public final class PSSHExtractionEvent extends DRMEvent {
+	
+	@Label("Found")
+	boolean found;
+	
+	PSSHExtractionEvent() {
+		begin();
+	}
+	
+	public void end(String media, String engine, String trackType, boolean found) {
+		if(end(media, engine, trackType)) {
+			this.found = found;
+			commit();
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,31 @@
+package sune.app.mediadown.drm.jfr;
+
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Move of a file including the wait for the release of its handles.
+ * @author Sune
+ */
+@Name("sune.app.mediadown.drm.SafeMove")
+@Label("Safe Move")
+@Description("Move of a file including the wait for the release of its handles.")
+public final class SafeMoveEvent extends DRMEvent {
+	
+	@Label("Size")
+	@DataAmount
+	long bytes;
+	
+	SafeMoveEvent() {
+		begin();
+	}
+	
+	public void end(String media, String engine, String trackType, long bytes) {
+		if(end(media, engine, trackType)) {
+			this.bytes = bytes;
+			commit();
+		}
+	}
+}
\ No newline at end of file
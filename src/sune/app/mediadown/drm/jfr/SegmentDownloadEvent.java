@@ -0,0 +1,35 @@
+package sune.app.mediadown.drm.jfr;
+
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Download of the segments used for the validation of candidate keys.
+ * @author Sune
+ */
+@Name("sune.app.mediadown.drm.SegmentDownload")
+@Label("Test Segment Download")
+@Description("Download of the segments used for the validation of candidate keys.")
+public final class SegmentDownloadEvent extends DRMEvent {
+	
+	@Label("Segments")
+	int segments;
+	
+	@Label("Size")
+	@DataAmount
+	long bytes;
+	
+	SegmentDownloadEvent() {
+		begin();
+	}
+	
+	public void end(String media, String engine, String trackType, int segments, long bytes) {
+		if(end(media, engine, trackType)) {
+			this.segments = segments;
+			this.bytes = bytes;
+			commit();
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,35 @@
+package sune.app.mediadown.drm.jfr;
+
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Decryption of a single track, or of all the tracks at once, if fused.
+ * @author Sune
+ */
+@Name("sune.app.mediadown.drm.TrackDecryption")
+@Label("Track Decryption")
+@Description("Decryption of a single track, or of all the tracks at once, if fused.")
+public final class TrackDecryptionEvent extends DRMEvent {
+	
+	@Label("Size")
+	@DataAmount
+	long bytes;
+	
+	@Label("Completed")
+	boolean completed;
+	
+	TrackDecryptionEvent() {
+		begin();
+	}
+	
+	public void end(String media, String engine, String trackType, long bytes, boolean completed) {
+		if(end(media, engine, trackType)) {
+			this.bytes = bytes;
+			this.completed = completed;
+			commit();
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,40 @@
+package sune.app.mediadown.drm.jfr;
+
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Request to the WV API, i.e. generation of a license challenge or extraction of keys from a license.
+ * @author Sune
+ */
+@Name("sune.app.mediadown.drm.WVRequest")
+@Label("WV API Request")
+@Description("Request to the WV API, i.e. generation of a license challenge or extraction of keys from a license.")
+public final class WVRequestEvent extends DRMEvent {
+	
+	@Label("Endpoint")
+	String endpoint;
+	
+	@Label("Request Size")
+	@DataAmount
+	long requestBytes;
+	
+	@Label("Succeeded")
+	boolean succeeded;
+	
+	WVRequestEvent() {
+		begin();
+	}
+	
+	public void end(String media, String engine, String trackType, String endpoint, long requestBytes,
+			boolean succeeded) {
+		if(end(media, engine, trackType)) {
+			this.endpoint = endpoint;
+			this.requestBytes = requestBytes;
+			this.succeeded = succeeded;
+			commit();
+		}
+	}
+}
\ No newline at end of file
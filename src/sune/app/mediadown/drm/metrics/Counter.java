@@ -0,0 +1,39 @@
+package sune.app.mediadown.drm.metrics;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Monotonic counter. Updates are striped, therefore they do not contend even when
+ * done from many threads at once.
+ * @author Sune
+ */
+public final class Counter implements Metric {
+	
+	private final LongAdder value = new LongAdder();
+	
+	Counter() {
+	}
+	
+	public void increment() {
+		value.increment();
+	}
+	
+	/** Adds the given amount, negative amounts are ignored, since a counter never decreases. */
+	public void add(long amount) {
+		if(amount > 0L) {
+			value.add(amount);
+		}
+	}
+	
+	public long value() {
+		return value.sum();
+	}
+	
+	@Override
+	public void write(Appendable out, String name, String labels) throws IOException {
+		out.append(name);
+		MetricsRegistry.appendLabels(out, labels, null);
+		out.append(' ').append(Long.toString(value.sum())).append('\n');
+	}
+}
\ No newline at end of file
@@ -0,0 +1,131 @@
+package sune.app.mediadown.drm.metrics;
+
+/**
+ * The metrics of the DRM pipeline, see {@link MetricsRegistry}. Durations are given
+ * in nanoseconds and are exported in seconds.
+ * @author Sune
+ */
+public final class DRMMetrics {
+	
+	private static final double MICROS_TO_SECONDS = 1e-6;
+	private static final double KBPS_TO_MBPS = 1e-3;
+	
+	private static final MetricsRegistry registry = MetricsRegistry.instance();
+	private static final Counter safeMoveBytes = registry.counter(
+		"drm_safe_move_bytes_total", "Bytes moved by the safe moves of the decrypted files."
+	);
+	private static final Counter resourceDownloadBytes = registry.counter(
+		"drm_resource_download_bytes_total", "Bytes of the downloaded resources of the plugin."
+	);
+	private static final Counter processOutputDropped = registry.counter(
+		"drm_process_output_dropped_lines_total", "Lines of the output of processes dropped from the log."
+	);
+	private static final Histogram validationSpawns = registry.histogram(
+		"drm_key_validation_spawns", "Processes spawned to validate the decryption keys of a title.", 1.0
+	);
+	
+	// Forbid anyone to create an instance of this class
+	private DRMMetrics() {
+	}
+	
+	private static final long micros(long nanos) {
+		return nanos / 1000L;
+	}
+	
+	/** Records a request to the license server of the given DRM engine. */
+	public static final void licenseRequest(String engine, long nanos, boolean succeeded) {
+		registry.histogram(
+			"drm_license_request_seconds", "Latency of the license requests.", MICROS_TO_SECONDS,
+			"engine", engine
+		).record(micros(nanos));
+		
+		if(!succeeded) {
+			registry.counter(
+				"drm_license_request_errors_total", "Failed license requests.", "engine", engine
+			).increment();
+		}
+	}
+	
+	/** Records a retry of the key acquisition, i.e. a license without any keys. */
+	public static final void keyRetry(String engine) {
+		registry.counter(
+			"drm_key_acquisition_retries_total", "Retries of the key acquisitions.", "engine", engine
+		).increment();
+	}
+	
+	/** Records a key acquisition that did not obtain any keys in any attempt. */
+	public static final void keyAcquisitionFailed(String engine) {
+		registry.counter(
+			"drm_key_acquisition_failures_total", "Key acquisitions without any keys after all the retries.",
+			"engine", engine
+		).increment();
+	}
+	
+	/**
+	 * Records a lookup in a key cache of a title, i.e. either the cache of the license
+	 * keys by PSSH ({@code license}), or the cache of the found keys by KID ({@code kid}).
+	 */
+	public static final void keyCache(String cache, boolean hit) {
+		if(hit) {
+			registry.counter("drm_key_cache_hits_total", "Hits of the key caches.", "cache", cache).increment();
+		} else {
+			registry.counter("drm_key_cache_misses_total", "Misses of the key caches.", "cache", cache).increment();
+		}
+	}
+	
+	/** Records the number of the validation processes spawned for a title. */
+	public static final void validationSpawns(int count) {
+		validationSpawns.record(count);
+	}
+	
+	/** Records a decryption of a track by the given decryption engine. */
+	public static final void decryption(String engine, long bytes, long nanos) {
+		registry.counter(
+			"drm_decryption_bytes_total", "Bytes of the decrypted tracks.", "engine", engine
+		).add(bytes);
+		
+		if(bytes > 0L && nanos > 0L) {
+			registry.histogram(
+				"drm_decryption_throughput_megabytes_per_second", "Throughput of the decryption of a track.",
+				KBPS_TO_MBPS, "engine", engine
+			).record((long) (bytes * 1e6 / nanos));
+		}
+	}
+	
+	/** Records the bytes moved by a safe move. */
+	public static final void safeMove(long bytes) {
+		safeMoveBytes.add(bytes);
+	}
+	
+	/** Records a request to the WV API. */
+	public static final void wvRequest(String endpoint, long nanos, boolean succeeded) {
+		registry.histogram(
+			"drm_wv_request_seconds", "Latency of the WV API requests.", MICROS_TO_SECONDS,
+			"endpoint", endpoint
+		).record(micros(nanos));
+		
+		if(!succeeded) {
+			registry.counter(
+				"drm_wv_request_errors_total", "Failed WV API requests.", "endpoint", endpoint
+			).increment();
+		}
+	}
+	
+	/** Records a stage of the bootstrap of the plugin. */
+	public static final void bootstrap(String stage, long nanos) {
+		registry.histogram(
+			"drm_bootstrap_stage_seconds", "Duration of the stages of the bootstrap.", MICROS_TO_SECONDS,
+			"stage", stage
+		).record(micros(nanos));
+	}
+	
+	/** Records the lines of the output of a process that were not logged. */
+	public static final void processOutputDropped(long lines) {
+		processOutputDropped.add(lines);
+	}
+	
+	/** Records the bytes of a downloaded resource. */
+	public static final void resourceDownload(long bytes) {
+		resourceDownloadBytes.add(bytes);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,145 @@
+package sune.app.mediadown.drm.metrics;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of non-negative values with log-linear buckets, in the same way as HDR
+ * histograms have, i.e. every power of two is split into a fixed number of linear
+ * sub-buckets, so that the relative error of a value is bounded (12.5 %) over the
+ * whole range of {@code long}. Recording is lock-free and has constant cost.
+ * <p>
+ * The values are recorded in an integral unit (e.g. microseconds) and are converted
+ * to the exported unit (e.g. seconds) using the scale of the histogram. To keep
+ * the export small, only the bounds of the powers of two are exported as buckets.</p>
+ * @author Sune
+ */
+public final class Histogram implements Metric {
+	
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+	
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder sum = new LongAdder();
+	private final double scale;
+	
+	Histogram(double scale) {
+		this.scale = scale;
+	}
+	
+	static final int index(long value) {
+		if(value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		
+		int magnitude = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+	
+	/** Gets the greatest value that falls into the bucket of the given index. */
+	static final long highestValue(int index) {
+		if(index < SUB_BUCKETS) {
+			return index;
+		}
+		
+		int shift = index / SUB_BUCKETS - 1;
+		long subBucket = SUB_BUCKETS + index % SUB_BUCKETS;
+		return ((subBucket + 1L) << shift) - 1L;
+	}
+	
+	private final long[] snapshot() {
+		long[] values = new long[BUCKETS];
+		
+		for(int i = 0; i < BUCKETS; ++i) {
+			values[i] = counts.get(i);
+		}
+		
+		return values;
+	}
+	
+	/** Records the given value, negative values are recorded as zero. */
+	public void record(long value) {
+		if(value < 0L) {
+			value = 0L;
+		}
+		
+		counts.incrementAndGet(index(value));
+		sum.add(value);
+	}
+	
+	/** Gets the number of the recorded values. */
+	public long count() {
+		long count = 0L;
+		
+		for(long value : snapshot()) {
+			count += value;
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Gets the value at the given quantile, in the exported unit, or {@code NaN},
+	 * if there are no values.
+	 */
+	public double quantile(double quantile) {
+		long[] values = snapshot();
+		long total = 0L;
+		
+		for(long value : values) {
+			total += value;
+		}
+		
+		if(total == 0L) {
+			return Double.NaN;
+		}
+		
+		long rank = Math.max(1L, (long) Math.ceil(quantile * total));
+		
+		long count = 0L;
+		
+		for(int i = 0; i < BUCKETS; ++i) {
+			if((count += values[i]) >= rank) {
+				return highestValue(i) * scale;
+			}
+		}
+		
+		return highestValue(BUCKETS - 1) * scale;
+	}
+	
+	@Override
+	public void write(Appendable out, String name, String labels) throws IOException {
+		long[] values = snapshot();
+		int last = BUCKETS - 1;
+		
+		for(; last > 0 && values[last] == 0L; --last);
+		
+		String bucketName = name + "_bucket";
+		long cumulative = 0L;
+		
+		// Every group of sub-buckets holds the values below the next power of two
+		for(int group = 0, lastGroup = last / SUB_BUCKETS; group <= lastGroup; ++group) {
+			for(int i = group * SUB_BUCKETS, l = i + SUB_BUCKETS; i < l; ++i) {
+				cumulative += values[i];
+			}
+			
+			double bound = Math.scalb(1.0, group + SUB_BUCKET_BITS) * scale;
+			out.append(bucketName);
+			MetricsRegistry.appendLabels(out, labels, MetricsRegistry.number(bound));
+			out.append(' ').append(Long.toString(cumulative)).append('\n');
+		}
+		
+		out.append(bucketName);
+		MetricsRegistry.appendLabels(out, labels, "+Inf");
+		out.append(' ').append(Long.toString(cumulative)).append('\n');
+		out.append(name).append("_sum");
+		MetricsRegistry.appendLabels(out, labels, null);
+		out.append(' ').append(MetricsRegistry.number(sum.sum() * scale)).append('\n');
+		out.append(name).append("_count");
+		MetricsRegistry.appendLabels(out, labels, null);
+		out.append(' ').append(Long.toString(cumulative)).append('\n');
+	}
+}
\ No newline at end of file
@@ -0,0 +1,17 @@
+package sune.app.mediadown.drm.metrics;
+
+import java.io.IOException;
+
+/**
+ * A single labelled time series of a metric family, see {@link MetricsRegistry}.
+ * @author Sune
+ */
+interface Metric {
+	
+	/**
+	 * Writes the samples of this metric in the Prometheus text format.
+	 * @param name The name of the family.
+	 * @param labels The formatted labels, without braces, possibly empty.
+	 */
+	void write(Appendable out, String name, String labels) throws IOException;
+}
\ No newline at end of file
@@ -0,0 +1,68 @@
+package sune.app.mediadown.drm.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * HTTP endpoint ({@code /metrics}) that serves the metrics in the Prometheus text format.
+ * It listens only on the loopback address. This class must only be loaded when the
+ * {@code jdk.httpserver} module is present, see {@link MetricsExporter}.
+ * @author Sune
+ */
+final class MetricsEndpoint implements AutoCloseable {
+	
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+	
+	private final MetricsRegistry registry;
+	private final HttpServer server;
+	private final ExecutorService executor;
+	
+	MetricsEndpoint(MetricsRegistry registry, int port) throws IOException {
+		this.registry = registry;
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		this.executor = Executors.newSingleThreadExecutor((r) -> {
+			Thread thread = new Thread(r, "DRM-MetricsEndpoint");
+			thread.setDaemon(true);
+			return thread;
+		});
+		
+		server.createContext("/metrics", this::handle);
+		server.setExecutor(executor);
+		server.start();
+	}
+	
+	private final void handle(HttpExchange exchange) throws IOException {
+		try(exchange) {
+			if(!exchange.getRequestMethod().equals("GET")) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			
+			byte[] body = registry.text().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+			exchange.sendResponseHeaders(200, body.length == 0 ? -1 : body.length);
+			
+			try(OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		}
+	}
+	
+	int port() {
+		return server.getAddress().getPort();
+	}
+	
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,169 @@
+package sune.app.mediadown.drm.metrics;
+
+import static sune.app.mediadown.drm.util.Common.logDebug;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodic export of the metrics to a file, and/or through a HTTP endpoint on the loopback
+ * address, both in the Prometheus text format. The file is replaced atomically, so that
+ * it can be read at any time, e.g. by the textfile collector of the node exporter.
+ * The endpoint requires the {@code jdk.httpserver} module, if it is not present, it is
+ * not started.
+ * @author Sune
+ */
+public final class MetricsExporter implements AutoCloseable {
+	
+	private static final String HTTP_MODULE = "jdk.httpserver";
+	
+	private final MetricsRegistry registry;
+	private final Path file;
+	private final ScheduledExecutorService executor;
+	private final AutoCloseable endpoint;
+	
+	private MetricsExporter(MetricsRegistry registry, Path file, long intervalMs, int port) throws IOException {
+		this.registry = registry;
+		this.file = file;
+		this.executor = file != null ? startExport(intervalMs) : null;
+		
+		try {
+			this.endpoint = port > 0 ? startEndpoint(registry, port) : null;
+		} catch(IOException ex) {
+			// Do not leave the export running, since the exporter is never returned
+			if(executor != null) {
+				executor.shutdownNow();
+			}
+			
+			throw ex; // Propagate
+		}
+	}
+	
+	private static final boolean isEndpointAvailable() {
+		Optional<Module> module = ModuleLayer.boot().findModule(HTTP_MODULE);
+		
+		if(module.isEmpty()) {
+			return false;
+		}
+		
+		try {
+			// The module is only an optional dependency, therefore it may not be read yet
+			MetricsExporter.class.getModule().addReads(module.get());
+			return true;
+		} catch(LinkageError ex) {
+			return false;
+		}
+	}
+	
+	private static final AutoCloseable startEndpoint(MetricsRegistry registry, int port) throws IOException {
+		if(!isEndpointAvailable()) {
+			logDebug("Metrics endpoint not started, module %s not present", HTTP_MODULE);
+			return null;
+		}
+		
+		MetricsEndpoint endpoint = new MetricsEndpoint(registry, port);
+		logDebug("Metrics endpoint listens on port %d", endpoint.port());
+		return endpoint;
+	}
+	
+	private final ScheduledExecutorService startExport(long intervalMs) {
+		ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor((r) -> {
+			Thread thread = new Thread(r, "DRM-MetricsExporter");
+			thread.setDaemon(true);
+			return thread;
+		});
+		
+		executor.scheduleWithFixedDelay(this::exportSafe, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+		return executor;
+	}
+	
+	private final void exportSafe() {
+		try {
+			export();
+		} catch(IOException ex) {
+			// Do not stop the periodic export, the next one may succeed
+			logDebug("Metrics export failed: %s", ex.getMessage());
+		}
+	}
+	
+	/**
+	 * Writes the metrics to the file, if any, right away.
+	 */
+	public final void export() throws IOException {
+		if(file == null) {
+			return;
+		}
+		
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		
+		try(Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+			registry.write(writer);
+		}
+		
+		try {
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch(AtomicMoveNotSupportedException ex) {
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+	
+	/**
+	 * Stops the export, the metrics are written to the file for the last time.
+	 */
+	@Override
+	public void close() throws Exception {
+		if(executor != null) {
+			executor.shutdownNow();
+			executor.awaitTermination(1L, TimeUnit.SECONDS);
+			exportSafe();
+		}
+		
+		if(endpoint != null) {
+			endpoint.close();
+		}
+	}
+	
+	public static final class Builder {
+		
+		private Path file;
+		private long intervalMs = 10000L;
+		private int port;
+		
+		public Builder() {
+		}
+		
+		/** Sets the file the metrics are exported to, if {@code null}, they are not exported to a file. */
+		public Builder file(Path file) {
+			this.file = file;
+			return this;
+		}
+		
+		public Builder intervalMs(long intervalMs) {
+			this.intervalMs = intervalMs;
+			return this;
+		}
+		
+		/** Sets the port of the HTTP endpoint, if not positive, the endpoint is not started. */
+		public Builder port(int port) {
+			this.port = port;
+			return this;
+		}
+		
+		public MetricsExporter build() throws IOException {
+			if(file != null && intervalMs <= 0L) {
+				throw new IllegalArgumentException("Invalid export interval");
+			}
+			
+			return new MetricsExporter(MetricsRegistry.instance(), file, intervalMs, port);
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,195 @@
+package sune.app.mediadown.drm.metrics;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.DoubleFunction;
+
+/**
+ * Lock-free registry of the metrics of the plugin. Metrics are grouped into families
+ * by their name and distinguished by their labels, given as name and value pairs.
+ * Once created, a metric is only looked up, therefore the metrics with constant labels
+ * should be kept by the callers. All the metrics can be written in the Prometheus
+ * text format, see {@link #write(Appendable)}.
+ * @author Sune
+ */
+public final class MetricsRegistry {
+	
+	private static final MetricsRegistry INSTANCE = new MetricsRegistry();
+	
+	private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+	
+	private MetricsRegistry() {
+	}
+	
+	public static final MetricsRegistry instance() {
+		return INSTANCE;
+	}
+	
+	private static final void appendEscaped(StringBuilder builder, String value) {
+		for(int i = 0, l = value.length(); i < l; ++i) {
+			char c = value.charAt(i);
+			
+			switch(c) {
+				case '\\': builder.append("\\\\"); break;
+				case '"': builder.append("\\\""); break;
+				case '\n': builder.append("\\n"); break;
+				default: builder.append(c); break;
+			}
+		}
+	}
+	
+	private static final String labels(String[] labels) {
+		if(labels.length % 2 != 0) {
+			throw new IllegalArgumentException("Labels must be name and value pairs");
+		}
+		
+		if(labels.length == 0) {
+			return "";
+		}
+		
+		StringBuilder builder = new StringBuilder();
+		
+		for(int i = 0; i < labels.length; i += 2) {
+			if(i > 0) builder.append(',');
+			builder.append(labels[i]).append("=\"");
+			appendEscaped(builder, String.valueOf(labels[i + 1]));
+			builder.append('"');
+		}
+		
+		return builder.toString();
+	}
+	
+	static final void appendLabels(Appendable out, String labels, String bucket) throws IOException {
+		if(labels.isEmpty() && bucket == null) {
+			return;
+		}
+		
+		out.append('{').append(labels);
+		
+		if(bucket != null) {
+			out.append(labels.isEmpty() ? "" : ",").append("le=\"").append(bucket).append('"');
+		}
+		
+		out.append('}');
+	}
+	
+	static final String number(double value) {
+		if(value == Math.rint(value) && Math.abs(value) < 1e15) {
+			return Long.toString((long) value);
+		}
+		
+		return Double.toString(value);
+	}
+	
+	private final Family family(String name, String help, Type type, DoubleFunction<Metric> factory,
+			double scale) {
+		Family family = families.get(name);
+		
+		if(family == null) {
+			family = families.computeIfAbsent(name, (n) -> new Family(n, help, type, factory, scale));
+		}
+		
+		if(family.type != type) {
+			throw new IllegalArgumentException("Metric " + name + " is not a " + type.name);
+		}
+		
+		return family;
+	}
+	
+	/**
+	 * Gets the counter of the given name and labels, creating it, if it does not exist yet.
+	 */
+	public final Counter counter(String name, String help, String... labels) {
+		return (Counter) family(name, help, Type.COUNTER, (s) -> new Counter(), 1.0).metric(labels);
+	}
+	
+	/**
+	 * Gets the histogram of the given name and labels, creating it, if it does not exist yet.
+	 * @param scale The factor that converts the recorded values to the exported unit, it is
+	 * the same for all the histograms of a family and is set by the first one.
+	 */
+	public final Histogram histogram(String name, String help, double scale, String... labels) {
+		return (Histogram) family(name, help, Type.HISTOGRAM, Histogram::new, scale).metric(labels);
+	}
+	
+	/**
+	 * Writes all the metrics in the Prometheus text format.
+	 */
+	public final void write(Appendable out) throws IOException {
+		for(Family family : families.values()) {
+			family.write(out);
+		}
+	}
+	
+	/**
+	 * Gets all the metrics in the Prometheus text format.
+	 */
+	public final String text() {
+		StringBuilder builder = new StringBuilder();
+		
+		try {
+			write(builder);
+		} catch(IOException ex) {
+			// StringBuilder never throws
+			throw new UncheckedIOException(ex);
+		}
+		
+		return builder.toString();
+	}
+	
+	private static enum Type {
+		
+		COUNTER("counter"), HISTOGRAM("histogram");
+		
+		private final String name;
+		
+		private Type(String name) {
+			this.name = name;
+		}
+	}
+	
+	private static final class Family {
+		
+		private final String name;
+		private final String help;
+		private final Type type;
+		private final DoubleFunction<Metric> factory;
+		private final double scale;
+		private final Map<String, Metric> metrics = new ConcurrentSkipListMap<>();
+		
+		public Family(String name, String help, Type type, DoubleFunction<Metric> factory, double scale) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+			this.factory = factory;
+			this.scale = scale;
+		}
+		
+		public Metric metric(String[] labels) {
+			String key = labels(labels);
+			Metric metric = metrics.get(key);
+			
+			if(metric == null) {
+				metric = metrics.computeIfAbsent(key, (k) -> factory.apply(scale));
+			}
+			
+			return metric;
+		}
+		
+		public void write(Appendable out) throws IOException {
+			if(metrics.isEmpty()) {
+				return;
+			}
+			
+			out.append("# HELP ").append(name).append(' ').append(help.replace("\\", "\\\\").replace("\n", "\\n"))
+				.append('\n');
+			out.append("# TYPE ").append(name).append(' ').append(type.name).append('\n');
+			
+			for(Map.Entry<String, Metric> entry : metrics.entrySet()) {
+				entry.getValue().write(out, name, entry.getKey());
+			}
+		}
+	}
+}
\ No newline at end of file
@@ -8,7 +8,10 @@ public enum DecryptionProcessState {
 	EXTRACT_PSSH(DRMProgressStates.EXTRACT_PSSH),
 	OBTAIN_KEYS(DRMProgressStates.OBTAIN_KEYS),
 	DECRYPT_VIDEO(DRMProgressStates.DECRYPT_VIDEO),
-	DECRYPT_AUDIO(DRMProgressStates.DECRYPT_AUDIO);
+	DECRYPT_AUDIO(DRMProgressStates.DECRYPT_AUDIO),
+	DECRYPT_VIDEO_AUDIO(DRMProgressStates.DECRYPT_VIDEO_AUDIO),
+	DECRYPT_CONVERT(DRMProgressStates.DECRYPT_CONVERT),
+	QUEUED(DRMProgressStates.QUEUED);
 	
 	private final String title;
 	
@@ -1,28 +1,334 @@
 package sune.app.mediadown.drm.tracker;
 
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
 import sune.app.mediadown.event.tracker.SimpleTracker;
 import sune.app.mediadown.gui.ProgressWindow.ProgressContext;
 
 public class DecryptionProcessTracker extends SimpleTracker {
 	
-	private DecryptionProcessState state;
+	/** Minimum time between two progress updates, so that the listeners are not flooded. */
+	private static final long UPDATE_INTERVAL_NS = 250L * 1000000L;
+	
+	/** Number of running operations per state, e.g. number of video tracks being decrypted. */
+	private final Map<DecryptionProcessState, Integer> active = new EnumMap<>(DecryptionProcessState.class);
+	private volatile DecryptionProcessState state;
+	
+	private final List<TrackProgress> tracks = new CopyOnWriteArrayList<>();
+	private final AtomicLong lastUpdateTime = new AtomicLong();
+	private final AtomicLong queueWaitTime = new AtomicLong();
 	
 	public DecryptionProcessTracker() {
 		state = DecryptionProcessState.NONE;
 	}
 	
+	private static final DecryptionProcessState combine(Map<DecryptionProcessState, Integer> states) {
+		if(states.isEmpty()) {
+			return DecryptionProcessState.NONE;
+		}
+		
+		if(states.containsKey(DecryptionProcessState.DECRYPT_VIDEO)
+				&& states.containsKey(DecryptionProcessState.DECRYPT_AUDIO)) {
+			return DecryptionProcessState.DECRYPT_VIDEO_AUDIO;
+		}
+		
+		return states.keySet().iterator().next();
+	}
+	
 	public void state(DecryptionProcessState state) {
-		this.state = state;
+		synchronized(active) {
+			active.clear();
+			this.state = state;
+		}
+		
 		update();
 	}
 	
+	/**
+	 * Marks the given state as active alongside the other active states. Used
+	 * when multiple operations, e.g. decryption of multiple tracks, run at once.
+	 */
+	public void begin(DecryptionProcessState state) {
+		synchronized(active) {
+			active.merge(state, 1, Integer::sum);
+			this.state = combine(active);
+		}
+		
+		update();
+	}
+	
+	public void end(DecryptionProcessState state) {
+		synchronized(active) {
+			Integer count = active.get(state);
+			
+			if(count == null) {
+				return; // Not active
+			}
+			
+			if(count > 1) {
+				active.put(state, count - 1);
+				return; // Still active
+			}
+			
+			active.remove(state);
+			
+			if(active.isEmpty()) {
+				return; // Keep the last state
+			}
+			
+			this.state = combine(active);
+		}
+		
+		update();
+	}
+	
+	private static final String formatTime(long seconds) {
+		long hours = seconds / 3600L, minutes = seconds / 60L % 60L;
+		return hours > 0L
+			? String.format(Locale.ROOT, "%d:%02d:%02d", hours, minutes, seconds % 60L)
+			: String.format(Locale.ROOT, "%d:%02d", minutes, seconds % 60L);
+	}
+	
+	private final void maybeUpdate() {
+		long now = System.nanoTime();
+		long last = lastUpdateTime.get();
+		
+		if(now - last < UPDATE_INTERVAL_NS || !lastUpdateTime.compareAndSet(last, now)) {
+			return; // Updated recently or by another thread
+		}
+		
+		update();
+	}
+	
+	/**
+	 * Registers a new track whose progress is tracked by this tracker.
+	 * @param total Total number of bytes to process, if not known, {@code 0}.
+	 */
+	public TrackProgress track(String name, long total) {
+		TrackProgress track = new TrackProgress(name, total);
+		tracks.add(track);
+		return track;
+	}
+	
+	/**
+	 * Adds the given time, in nanoseconds, to the total time spent waiting in the queue
+	 * of the DRM scheduler.
+	 */
+	public void queueWaited(long nanos) {
+		queueWaitTime.addAndGet(nanos);
+		update();
+	}
+	
+	/**
+	 * Gets the total time spent waiting in the queue of the DRM scheduler, in nanoseconds.
+	 */
+	public long queueWaitTime() {
+		return queueWaitTime.get();
+	}
+	
+	public List<TrackProgress> tracks() {
+		return List.copyOf(tracks);
+	}
+	
+	public long bytesProcessed() {
+		return tracks.stream().mapToLong(TrackProgress::processed).sum();
+	}
+	
+	/**
+	 * Gets the number of bytes processed by all the tracks in this run, i.e. without
+	 * the bytes restored from a previous run, see {@link TrackProgress#resume(long)}.
+	 */
+	public long bytesProcessedInRun() {
+		return tracks.stream().mapToLong(TrackProgress::processedInRun).sum();
+	}
+	
+	public long bytesTotal() {
+		return tracks.stream().mapToLong(TrackProgress::total).sum();
+	}
+	
+	/**
+	 * Gets the current speed of all the tracks together, in bytes per second.
+	 */
+	public double speed() {
+		return tracks.stream().filter((t) -> !t.isDone()).mapToDouble(TrackProgress::speed).sum();
+	}
+	
+	/**
+	 * Gets the estimated number of seconds left, or {@code -1}, if unknown.
+	 */
+	public long secondsLeft() {
+		double speed = speed();
+		long remaining = bytesTotal() - bytesProcessed();
+		return speed > 0.0 ? (long) Math.ceil(remaining / speed) : remaining <= 0L ? 0L : -1L;
+	}
+	
 	@Override
 	public double progress() {
-		return ProgressContext.PROGRESS_INDETERMINATE;
+		long total = bytesTotal();
+		
+		if(total <= 0L) {
+			return ProgressContext.PROGRESS_INDETERMINATE;
+		}
+		
+		return Math.min(1.0, (double) bytesProcessed() / total);
 	}
 	
+	/**
+	 * Gets the title of the current state followed by the current speed and the ETA,
+	 * if known, e.g. {@code Decrypting video (25.3 MB/s, ETA 1:05)}.
+	 */
 	@Override
 	public String state() {
-		return state.title();
+		String title = state.title();
+		double speed = speed();
+		
+		if(title == null || speed <= 0.0) {
+			return title;
+		}
+		
+		long secondsLeft = secondsLeft();
+		
+		if(secondsLeft < 0L) {
+			return String.format(Locale.ROOT, "%s (%.1f MB/s)", title, speed / 1e6);
+		}
+		
+		return String.format(Locale.ROOT, "%s (%.1f MB/s, ETA %s)", title, speed / 1e6, formatTime(secondsLeft));
+	}
+	
+	/**
+	 * Progress of a single track, i.e. number of processed bytes, speed and ETA.
+	 */
+	public final class TrackProgress {
+		
+		/** Weight of the newest speed sample in the moving average. */
+		private static final double SPEED_SMOOTHING = 0.3;
+		
+		private final String name;
+		private final long total;
+		private final AtomicLong processed = new AtomicLong();
+		private final AtomicLong resumed = new AtomicLong();
+		private final long startTime;
+		private long sampleTime;
+		private long sampleBytes;
+		private volatile double speed;
+		private volatile long endTime;
+		
+		private TrackProgress(String name, long total) {
+			this.name = name;
+			this.total = total;
+			this.startTime = System.nanoTime();
+			this.sampleTime = startTime;
+		}
+		
+		private final synchronized void sample() {
+			long now = System.nanoTime();
+			long elapsed = now - sampleTime;
+			
+			if(elapsed < UPDATE_INTERVAL_NS) {
+				return; // Too short interval for a meaningful sample
+			}
+			
+			long bytes = processed.get();
+			double current = (bytes - sampleBytes) * 1e9 / elapsed;
+			speed = speed == 0.0 ? current : SPEED_SMOOTHING * current + (1.0 - SPEED_SMOOTHING) * speed;
+			sampleTime = now;
+			sampleBytes = bytes;
+		}
+		
+		/**
+		 * Adds the given number of bytes to the processed bytes.
+		 */
+		public void add(long bytes) {
+			processed.addAndGet(bytes);
+			sample();
+			maybeUpdate();
+		}
+		
+		/**
+		 * Adds the given number of bytes, that were processed in a previous run, to
+		 * the processed bytes, e.g. when a decryption is resumed. The bytes count to
+		 * the progress, but not to the speed.
+		 */
+		public void resume(long bytes) {
+			synchronized(this) {
+				processed.addAndGet(bytes);
+				resumed.addAndGet(bytes);
+				// Move the sample as well, so that the bytes do not appear as a burst
+				sampleBytes += bytes;
+			}
+			
+			maybeUpdate();
+		}
+		
+		/**
+		 * Sets the number of processed bytes, e.g. when polled from the size of a file.
+		 */
+		public void set(long bytes) {
+			processed.set(bytes);
+			sample();
+			maybeUpdate();
+		}
+		
+		public void done() {
+			endTime = System.nanoTime();
+			update();
+		}
+		
+		public String name() {
+			return name;
+		}
+		
+		public long processed() {
+			return processed.get();
+		}
+		
+		/**
+		 * Gets the number of bytes processed in this run, i.e. without the resumed bytes.
+		 */
+		public long processedInRun() {
+			return processed.get() - resumed.get();
+		}
+		
+		public long total() {
+			return total;
+		}
+		
+		/**
+		 * Gets the current speed, in bytes per second.
+		 */
+		public double speed() {
+			return speed;
+		}
+		
+		/**
+		 * Gets the average speed since the start, in bytes per second.
+		 */
+		public double averageSpeed() {
+			long end = isDone() ? endTime : System.nanoTime();
+			long elapsed = end - startTime;
+			return elapsed > 0L ? processedInRun() * 1e9 / elapsed : 0.0;
+		}
+		
+		/**
+		 * Gets the estimated number of seconds left, or {@code -1}, if unknown.
+		 */
+		public long secondsLeft() {
+			long remaining = total - processed.get();
+			
+			if(isDone() || remaining <= 0L) {
+				return 0L;
+			}
+			
+			return speed > 0.0 ? (long) Math.ceil(remaining / speed) : -1L;
+		}
+		
+		public boolean isDone() {
+			return endTime != 0L;
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,146 @@
+package sune.app.mediadown.drm.util;
+
+import static sune.app.mediadown.drm.util.Common.logDebug;
+
+import java.lang.management.ManagementFactory;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Adaptive limit of the number of units of work running at once, e.g. decrypted
+ * tracks or fragment workers. The throughput is sampled periodically and the limit
+ * is increased by one as long as it also increases the throughput. Once it does not,
+ * the last increase is reverted and the limit is kept for a while, before trying
+ * again. When the throughput drops significantly on its own, e.g. due to contention
+ * on the disk, the limit is halved. The limit is never increased while the CPU
+ * is already saturated.
+ * @author Sune
+ */
+public final class AdaptiveConcurrency {
+	
+	/** Minimum relative increase of the throughput for an increase of the limit to be kept. */
+	private static final double MIN_GAIN = 0.05;
+	/** Relative decrease of the throughput that is considered contention. */
+	private static final double MAX_LOSS = 0.25;
+	/** Number of samples to keep the limit for after an unsuccessful increase. */
+	private static final int HOLD_SAMPLES = 10;
+	/** System load, per processor, at which the CPU is considered saturated. */
+	private static final double MAX_LOAD = 1.0;
+	/** Maximum time of a single wait, so that cancellation is noticed in time. */
+	private static final long CHECK_INTERVAL_MS = 100L;
+	
+	private final String name;
+	private final int min;
+	private final int max;
+	private volatile int limit;
+	private int running;
+	
+	private long lastBytes;
+	private long lastTime;
+	private double lastThroughput;
+	private int lastChange;
+	private int hold;
+	
+	public AdaptiveConcurrency(String name, int min, int max, int initial) {
+		if(min < 1 || max < min) {
+			throw new IllegalArgumentException("Invalid bounds");
+		}
+		
+		this.name = name;
+		this.min = min;
+		this.max = max;
+		this.limit = Math.max(min, Math.min(max, initial));
+	}
+	
+	private static final double systemLoad() {
+		double load = ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+		// The load average is not available on some platforms, e.g. Windows
+		return load < 0.0 ? 0.0 : load / Runtime.getRuntime().availableProcessors();
+	}
+	
+	private final int change(int newLimit, double throughput, double load) {
+		newLimit = Math.max(min, Math.min(max, newLimit));
+		int change = Integer.compare(newLimit, limit);
+		
+		if(change != 0) {
+			logDebug(
+				"Concurrency of %s: %d -> %d (%.2f MB/s, load: %.2f)",
+				name, limit, newLimit, throughput / 1e6, load
+			);
+			limit = newLimit;
+			notifyAll();
+		}
+		
+		return change;
+	}
+	
+	/**
+	 * Samples the throughput given the total number of bytes processed so far
+	 * and adjusts the limit, if needed. Should be called in regular intervals.
+	 */
+	public synchronized void sample(long bytes) {
+		long now = System.nanoTime();
+		
+		if(lastTime == 0L) {
+			lastBytes = bytes;
+			lastTime = now;
+			return; // Nothing to compare to yet
+		}
+		
+		double throughput = (bytes - lastBytes) * 1e9 / (now - lastTime);
+		lastBytes = bytes;
+		lastTime = now;
+		
+		if(throughput <= 0.0) {
+			return; // Paused or waiting, nothing to learn from
+		}
+		
+		double load = systemLoad();
+		int change = 0;
+		
+		if(lastThroughput > 0.0 && lastChange > 0 && throughput < lastThroughput * (1.0 + MIN_GAIN)) {
+			// The added work did not help, return to the previous limit and stay there
+			change = change(limit - 1, throughput, load);
+			hold = HOLD_SAMPLES;
+		} else if(lastThroughput > 0.0 && lastChange == 0 && throughput < lastThroughput * (1.0 - MAX_LOSS)) {
+			change = change(limit / 2, throughput, load);
+		} else if(hold > 0) {
+			--hold;
+		} else if(load < MAX_LOAD) {
+			change = change(limit + 1, throughput, load);
+		}
+		
+		lastChange = change;
+		lastThroughput = throughput;
+	}
+	
+	/**
+	 * Waits until the number of running units is below the limit and marks a new
+	 * unit as running.
+	 * @return {@code true}, if acquired, or {@code false}, if cancelled.
+	 */
+	public synchronized boolean acquire(BooleanSupplier isCancelled) throws InterruptedException {
+		while(running >= limit) {
+			if(isCancelled.getAsBoolean()) {
+				return false;
+			}
+			
+			wait(CHECK_INTERVAL_MS);
+		}
+		
+		++running;
+		return true;
+	}
+	
+	public synchronized void release() {
+		--running;
+		notifyAll();
+	}
+	
+	public int limit() {
+		return limit;
+	}
+	
+	public int max() {
+		return max;
+	}
+}
\ No newline at end of file
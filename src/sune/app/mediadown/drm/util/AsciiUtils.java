@@ -3,6 +3,8 @@ package sune.app.mediadown.drm.util;
 import java.io.IOException;
 import java.nio.charset.CharsetEncoder;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.text.Normalizer;
 import java.util.ArrayList;
@@ -32,10 +34,13 @@ public final class AsciiUtils {
 	}
 	
 	private static final boolean isOnlyAscii(String string) {
-		return asciiEncoder.canEncode(string);
+		// The encoder is stateful, therefore it must not be used concurrently
+		synchronized(asciiEncoder) {
+			return asciiEncoder.canEncode(string);
+		}
 	}
 	
-	private static final boolean isOnlyAscii(Path path) {
+	public static final boolean isOnlyAscii(Path path) {
 		for(int i = 0, l = path.getNameCount(); i < l; ++i) {
 			if(!isOnlyAscii(path.getName(i).toString())) {
 				return false;
@@ -104,6 +109,74 @@ public final class AsciiUtils {
 		return tempPath;
 	}
 	
+	private static final Path nearestAsciiAncestor(Path absDir) {
+		Path dir = absDir;
+		
+		while(dir != null && !isOnlyAscii(dir)) {
+			dir = dir.getParent();
+		}
+		
+		return dir;
+	}
+	
+	private static final FileStore fileStore(Path path) {
+		// The path may not exist yet, use its nearest existing ancestor
+		for(Path current = path; current != null; current = current.getParent()) {
+			if(!NIO.exists(current)) {
+				continue;
+			}
+			
+			try {
+				return Files.getFileStore(current);
+			} catch(IOException ex) {
+				return null;
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Creates a new ASCII-only directory with the given name that is, if possible,
+	 * on the same file system as the desired directory. Files can then be moved
+	 * between these directories by just renaming them, instead of copying them.
+	 * The directory is deleted by {@link #maybeDeleteTempDirectories()}.
+	 */
+	public static final Path stagingDir(Path desiredAbsDir, String asciiDirName) throws IOException {
+		if(!isOnlyAscii(asciiDirName)) {
+			throw new IllegalArgumentException("Non-ASCII directory name");
+		}
+		
+		FileStore store = fileStore(desiredAbsDir);
+		List<Path> candidates = new ArrayList<>(4);
+		candidates.add(desiredAbsDir);
+		candidates.add(nearestAsciiAncestor(desiredAbsDir));
+		candidates.add(tempDir);
+		candidates.add(asciiOnlyTempDir(desiredAbsDir));
+		
+		for(Path candidate : candidates) {
+			if(candidate == null
+					|| !isOnlyAscii(candidate)
+					|| (store != null && !store.equals(fileStore(candidate)))) {
+				continue;
+			}
+			
+			Path dir = candidate.resolve(asciiDirName);
+			
+			try {
+				createTempDirectories(dir);
+				return dir;
+			} catch(IOException ex) {
+				// Probably insufficient permissions, try the next one
+			}
+		}
+		
+		// No ASCII-only directory on the same file system, the files will be copied
+		Path dir = tempDir.resolve(asciiDirName);
+		createTempDirectories(dir);
+		return dir;
+	}
+	
 	public static final void maybeDeleteTempDirectories() {
 		List<Path> dirs = new ArrayList<>();
 		
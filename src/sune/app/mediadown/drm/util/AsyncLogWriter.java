@@ -0,0 +1,245 @@
+package sune.app.mediadown.drm.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.IllegalFormatException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import sune.app.mediadown.util.Utils.Ignore;
+
+/**
+ * Writes log entries to a file as JSON lines in a background thread. The entries are
+ * passed through a bounded queue and are only formatted by the background thread,
+ * which writes them in batches. If the queue is full, the entries are dropped rather
+ * than blocking the callers, and the number of the dropped entries is logged later.
+ * The file is rotated when it exceeds the maximum size, i.e. it is renamed with
+ * the suffix {@code .1}, the older files are shifted and the oldest one is deleted.
+ * @author Sune
+ */
+final class AsyncLogWriter {
+	
+	private static final int CAPACITY = 16384;
+	private static final int MAX_BATCH = 512;
+	private static final long CLOSE_TIMEOUT_MS = 2000L;
+	
+	private final String logger;
+	private final Path path;
+	private final long maxBytes;
+	private final int maxBackups;
+	private final BlockingQueue<Entry> entries = new ArrayBlockingQueue<>(CAPACITY);
+	private final LongAdder dropped = new LongAdder();
+	private final Thread thread;
+	private Writer writer;
+	private long size;
+	private volatile boolean closed;
+	
+	AsyncLogWriter(String logger, Path path, long maxBytes, int maxBackups) {
+		this.logger = logger;
+		this.path = path;
+		this.maxBytes = maxBytes;
+		this.maxBackups = maxBackups;
+		this.thread = new Thread(this::run, "DRM-LogWriter");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+	
+	private static final void appendEscaped(StringBuilder builder, String value) {
+		for(int i = 0, l = value.length(); i < l; ++i) {
+			char c = value.charAt(i);
+			
+			switch(c) {
+				case '"': builder.append("\\\""); break;
+				case '\\': builder.append("\\\\"); break;
+				case '\n': builder.append("\\n"); break;
+				case '\r': builder.append("\\r"); break;
+				case '\t': builder.append("\\t"); break;
+				default:
+					if(c < 0x20) {
+						builder.append(String.format("\\u%04x", (int) c));
+					} else {
+						builder.append(c);
+					}
+					break;
+			}
+		}
+	}
+	
+	private static final void appendField(StringBuilder builder, String name, String value) {
+		builder.append(",\"").append(name).append("\":\"");
+		appendEscaped(builder, value);
+		builder.append('"');
+	}
+	
+	private static final String message(Entry entry) {
+		if(entry.args == null || entry.args.length == 0) {
+			return entry.format;
+		}
+		
+		try {
+			return String.format(entry.format, entry.args);
+		} catch(IllegalFormatException ex) {
+			// Do not lose the entry because of an invalid format
+			return entry.format;
+		}
+	}
+	
+	private final String json(Entry entry) {
+		StringBuilder builder = new StringBuilder(128);
+		builder.append("{\"time\":\"").append(Instant.ofEpochMilli(entry.time)).append('"');
+		appendField(builder, "level", entry.level);
+		appendField(builder, "logger", logger);
+		appendField(builder, "thread", entry.thread);
+		
+		if(entry.source != null) {
+			appendField(builder, "source", entry.source);
+		}
+		
+		appendField(builder, "message", message(entry));
+		return builder.append("}\n").toString();
+	}
+	
+	private final void open() throws IOException {
+		Files.createDirectories(path.toAbsolutePath().getParent());
+		writer = Files.newBufferedWriter(
+			path, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND
+		);
+		size = Files.size(path);
+	}
+	
+	private final void rotate() throws IOException {
+		writer.close();
+		writer = null;
+		Files.deleteIfExists(path.resolveSibling(path.getFileName() + "." + maxBackups));
+		
+		for(int i = maxBackups - 1; i >= 1; --i) {
+			Path backup = path.resolveSibling(path.getFileName() + "." + i);
+			
+			if(Files.exists(backup)) {
+				Path next = path.resolveSibling(path.getFileName() + "." + (i + 1));
+				Files.move(backup, next, StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		
+		if(maxBackups > 0) {
+			Path first = path.resolveSibling(path.getFileName() + ".1");
+			Files.move(path, first, StandardCopyOption.REPLACE_EXISTING);
+		} else {
+			Files.deleteIfExists(path);
+		}
+		
+		open();
+	}
+	
+	private final void write(List<Entry> batch) throws IOException {
+		if(writer == null) {
+			open();
+		}
+		
+		long count = dropped.sumThenReset();
+		
+		if(count > 0L) {
+			batch.add(0, new Entry("WARN", null, "%d log entries dropped", new Object[] { count }));
+		}
+		
+		for(Entry entry : batch) {
+			String line = json(entry);
+			
+			if(size > 0L && size + line.length() > maxBytes) {
+				rotate();
+			}
+			
+			writer.write(line);
+			size += line.length(); // Only an estimate for non-ASCII content
+		}
+		
+		writer.flush();
+	}
+	
+	private final void run() {
+		List<Entry> batch = new ArrayList<>(MAX_BATCH + 1);
+		
+		try {
+			while(!closed || !entries.isEmpty()) {
+				Entry entry = entries.poll(100L, TimeUnit.MILLISECONDS);
+				
+				if(entry == null) {
+					continue;
+				}
+				
+				batch.add(entry);
+				entries.drainTo(batch, MAX_BATCH - 1);
+				
+				try {
+					write(batch);
+				} catch(IOException ex) {
+					// Nothing else to log into, drop the batch and try again with the next one.
+					// Close the broken writer first, so that its file handle is not leaked.
+					if(writer != null) {
+						Ignore.callVoid(writer::close);
+						writer = null;
+					}
+				}
+				
+				batch.clear();
+			}
+		} catch(InterruptedException ex) {
+			// Stop writing
+		} finally {
+			if(writer != null) {
+				Ignore.callVoid(writer::close);
+			}
+		}
+	}
+	
+	/**
+	 * Queues the entry, the arguments are formatted later by the background thread,
+	 * therefore they should not be mutated afterwards.
+	 * @return {@code true}, if queued, otherwise {@code false}, if the queue is full.
+	 */
+	boolean offer(String level, String source, String format, Object[] args) {
+		if(closed || !entries.offer(new Entry(level, source, format, args))) {
+			dropped.increment();
+			return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Writes the remaining entries and closes the file.
+	 */
+	void close() throws InterruptedException {
+		closed = true;
+		thread.join(CLOSE_TIMEOUT_MS);
+	}
+	
+	private static final class Entry {
+		
+		final long time;
+		final String level;
+		final String thread;
+		final String source;
+		final String format;
+		final Object[] args;
+		
+		Entry(String level, String source, String format, Object[] args) {
+			this.time = System.currentTimeMillis();
+			this.level = level;
+			this.thread = Thread.currentThread().getName();
+			this.source = source;
+			this.format = format;
+			this.args = args;
+		}
+	}
+}
\ No newline at end of file
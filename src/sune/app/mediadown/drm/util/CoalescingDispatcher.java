@@ -0,0 +1,108 @@
+package sune.app.mediadown.drm.util;
+
+import static sune.app.mediadown.drm.util.Common.logDebug;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dispatches actions on a single background thread, so that the callers are never
+ * blocked. Actions submitted with the same key within the window are merged, i.e.
+ * only the latest one of them is run. This is used for progress updates, where
+ * only the latest state is relevant.
+ * @author Sune
+ */
+public final class CoalescingDispatcher {
+	
+	private static final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor((r) -> {
+		Thread thread = new Thread(r, "drm-event-dispatcher");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	private final long windowMs;
+	private final Map<Object, Runnable> pending = new ConcurrentHashMap<>();
+	/** Keys whose last action was submitted, their later actions are stale. */
+	private final Set<Object> ended = ConcurrentHashMap.newKeySet();
+	
+	public CoalescingDispatcher(long windowMs) {
+		if(windowMs < 0L) {
+			throw new IllegalArgumentException("Window must be non-negative");
+		}
+		
+		this.windowMs = windowMs;
+	}
+	
+	private static final void run(Runnable action) {
+		try {
+			action.run();
+		} catch(Exception ex) {
+			// Do not let a listener kill the dispatcher thread
+			logDebug("Event dispatch failed: %s", ex);
+		}
+	}
+	
+	private final void flush(Object key) {
+		Runnable action = pending.remove(key);
+		
+		if(action != null) {
+			run(action);
+		}
+	}
+	
+	private final void flushWindow(Object key) {
+		if(ended.contains(key)) {
+			// Submitted concurrently with the last action, drop it
+			pending.remove(key);
+			return;
+		}
+		
+		flush(key);
+	}
+	
+	/**
+	 * Submits an action that may be merged with other actions of the same key.
+	 * The latest action of the key is run at the end of the window. The action is
+	 * discarded, if the last action of the key was already submitted.
+	 */
+	public void submit(Object key, Runnable action) {
+		if(ended.contains(key)) {
+			return; // Stale action
+		}
+		
+		if(pending.put(key, action) == null) {
+			// First action in the window, schedule the flush
+			executor.schedule(() -> flushWindow(key), windowMs, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * Submits an action that is never merged. Any pending action of the same key
+	 * is run before it, so that the order of the actions is preserved.
+	 */
+	public void submitNow(Object key, Runnable action) {
+		ended.remove(key);
+		executor.execute(() -> {
+			flush(key);
+			run(action);
+		});
+	}
+	
+	/**
+	 * Submits the last action of the given key, e.g. of a finished task. Any pending
+	 * action of the key is run before it, and all the actions submitted using
+	 * {@link #submit(Object, Runnable)} afterwards are discarded, so that no stale
+	 * action is run after the last one. The key is used again by {@link #submitNow}.
+	 */
+	public void submitLast(Object key, Runnable action) {
+		ended.add(key);
+		executor.execute(() -> {
+			flush(key);
+			run(action);
+		});
+	}
+}
\ No newline at end of file
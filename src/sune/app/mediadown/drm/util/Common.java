@@ -1,23 +1,30 @@
 package sune.app.mediadown.drm.util;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 
-import sune.app.mediadown.InternalState;
-import sune.app.mediadown.logging.Log;
+import sune.app.mediadown.drm.metrics.DRMMetrics;
 import sune.app.mediadown.util.NIO;
 
 public final class Common {
 	
-	private static final ProcessListener NOOP_LISTENER = new NoopProcessListener();
+	private static final AtomicInteger listenerId = new AtomicInteger();
+	
+	private static final String LOGGER_NAME = "plugin:drm";
+	private static final String LOG_FILE_NAME = "drm.log";
+	private static final long LOG_MAX_BYTES = 10L * 1024L * 1024L;
+	private static final int LOG_MAX_BACKUPS = 3;
+	private static final String LEVEL_DEBUG = "DEBUG";
+	private static final String LEVEL_TRACE = "TRACE";
 	
 	private static volatile boolean initialized;
-	private static Log log;
+	private static volatile AsyncLogWriter writer;
 	private static Level logLevel;
 	
 	private Common() {
@@ -34,78 +41,227 @@ public final class Common {
 			return; // Ignore subsequent initializations
 		}
 		
-		log = Log.initialize("plugin:drm", "drm.log", Common.logLevel = logLevel);
+		Common.logLevel = logLevel;
+		
+		if(logLevel.intValue() <= Level.FINE.intValue()) {
+			writer = new AsyncLogWriter(
+				LOGGER_NAME, NIO.localPath("resources/log", LOG_FILE_NAME), LOG_MAX_BYTES, LOG_MAX_BACKUPS
+			);
+		}
+		
 		initialized = true;
 	}
 	
-	public static final Log log() {
-		return log;
+	/**
+	 * Writes the remaining log entries and stops logging. A subsequent call of
+	 * {@link #initialize(Level)} starts logging again.
+	 */
+	public static final void dispose() throws InterruptedException {
+		AsyncLogWriter writer = Common.writer;
+		initialized = false;
+		
+		if(writer == null) {
+			return;
+		}
+		
+		Common.writer = null;
+		writer.close();
+	}
+	
+	/**
+	 * Checks whether debug messages are logged. Callers that compute the arguments
+	 * of a message should check it first, or use {@link #logDebug(Supplier)}.
+	 */
+	public static final boolean isDebugEnabled() {
+		return writer != null;
+	}
+	
+	// The overloads below avoid allocating the varargs array and boxing the primitive
+	// arguments when debug messages are not logged. The messages are formatted later
+	// by the writer thread, not by the caller.
+	
+	public static final void logDebug(String message) {
+		AsyncLogWriter writer;
+		if((writer = Common.writer) == null) {
+			return;
+		}
+		
+		writer.offer(LEVEL_DEBUG, null, message, null);
+	}
+	
+	public static final void logDebug(String message, Object arg) {
+		AsyncLogWriter writer;
+		if((writer = Common.writer) == null) {
+			return;
+		}
+		
+		writer.offer(LEVEL_DEBUG, null, message, new Object[] { arg });
+	}
+	
+	public static final void logDebug(String message, long arg) {
+		AsyncLogWriter writer;
+		if((writer = Common.writer) == null) {
+			return;
+		}
+		
+		writer.offer(LEVEL_DEBUG, null, message, new Object[] { arg });
+	}
+	
+	public static final void logDebug(String message, double arg) {
+		AsyncLogWriter writer;
+		if((writer = Common.writer) == null) {
+			return;
+		}
+		
+		writer.offer(LEVEL_DEBUG, null, message, new Object[] { arg });
+	}
+	
+	public static final void logDebug(String message, Object arg0, Object arg1) {
+		AsyncLogWriter writer;
+		if((writer = Common.writer) == null) {
+			return;
+		}
+		
+		writer.offer(LEVEL_DEBUG, null, message, new Object[] { arg0, arg1 });
+	}
+	
+	public static final void logDebug(String message, Object arg0, long arg1) {
+		AsyncLogWriter writer;
+		if((writer = Common.writer) == null) {
+			return;
+		}
+		
+		writer.offer(LEVEL_DEBUG, null, message, new Object[] { arg0, arg1 });
+	}
+	
+	public static final void logDebug(String message, long arg0, long arg1) {
+		AsyncLogWriter writer;
+		if((writer = Common.writer) == null) {
+			return;
+		}
+		
+		writer.offer(LEVEL_DEBUG, null, message, new Object[] { arg0, arg1 });
+	}
+	
+	public static final void logDebug(String message, Object arg0, Object arg1, Object arg2) {
+		AsyncLogWriter writer;
+		if((writer = Common.writer) == null) {
+			return;
+		}
+		
+		writer.offer(LEVEL_DEBUG, null, message, new Object[] { arg0, arg1, arg2 });
 	}
 	
 	public static final void logDebug(String message, Object... args) {
-		Log log;
-		if((log = Common.log) == null) {
+		AsyncLogWriter writer;
+		if((writer = Common.writer) == null) {
 			return;
 		}
 		
-		log.debug(message, args);
+		writer.offer(LEVEL_DEBUG, null, message, args);
 	}
 	
+	/**
+	 * Logs the message returned by the supplier, which is only called if debug messages
+	 * are logged.
+	 */
+	public static final void logDebug(Supplier<String> message) {
+		AsyncLogWriter writer;
+		if((writer = Common.writer) == null) {
+			return;
+		}
+		
+		writer.offer(LEVEL_DEBUG, null, message.get(), null);
+	}
+	
+	/**
+	 * Creates a listener of the output of a process. The last lines of the output are
+	 * always kept, see {@link ProcessListener#tail()}, and, if the log level is at least
+	 * {@code FINEST}, all the lines are also logged asynchronously.
+	 */
 	public static final ProcessListener newProcessListener(String name) throws IOException {
 		checkInitialized();
-		return logLevel.intValue() <= Level.FINEST.intValue()
-					? new LoggingProcessListener(name)
-					: NOOP_LISTENER;
+		boolean isLogged = logLevel.intValue() <= Level.FINEST.intValue();
+		return new StreamingProcessListener(name + '#' + listenerId.incrementAndGet(), isLogged);
 	}
 	
 	public static interface ProcessListener extends Consumer<String>, AutoCloseable {
 		
 		void close() throws IOException;
-	}
-	
-	private static final class NoopProcessListener implements ProcessListener {
 		
-		@Override public void accept(String line) {}
-		@Override public void close() {}
+		/** Gets the last lines of the output, the oldest first. */
+		List<String> tail();
+		
+		/** Gets the number of the lines that were not logged, since the log did not keep up. */
+		long dropped();
 	}
 	
-	private static final class LoggingProcessListener implements ProcessListener {
+	private static final class StreamingProcessListener implements ProcessListener {
 		
-		private static final int STATE_OPEN    = 0b1 << 0;
-		private static final int STATE_CLOSING = 0b1 << 1;
-		private static final int STATE_CLOSED  = 0b1 << 2;
+		private static final int TAIL_LINES = 64;
 		
-		private final Path path;
-		private final BufferedWriter writer;
-		private final InternalState state;
+		private final String name;
+		private final boolean isLogged;
+		private final String[] tail = new String[TAIL_LINES];
+		private final LongAdder dropped = new LongAdder();
+		private int tailIndex;
+		private int tailSize;
+		private volatile boolean closed;
 		
-		private LoggingProcessListener(String name) throws IOException {
-			writer = Files.newBufferedWriter(
-				path = NIO.uniqueFile("md_plugin_drm-" + name + "-", ".log"),
-				StandardOpenOption.CREATE, StandardOpenOption.WRITE
-			);
-			state = new InternalState(STATE_OPEN);
+		private StreamingProcessListener(String name, boolean isLogged) {
+			this.name = name;
+			this.isLogged = isLogged;
 		}
 		
 		@Override
 		public void accept(String line) {
-			try {
-				writer.write(line);
-				writer.write('\n');
-			} catch(IOException ex) {
-				// Ignore
+			if(closed) {
+				return;
+			}
+			
+			synchronized(tail) {
+				tail[tailIndex] = line;
+				tailIndex = (tailIndex + 1) % TAIL_LINES;
+				tailSize = Math.min(tailSize + 1, TAIL_LINES);
+			}
+			
+			AsyncLogWriter writer;
+			if(isLogged && (writer = Common.writer) != null && !writer.offer(LEVEL_TRACE, name, line, null)) {
+				dropped.increment();
 			}
 		}
 		
 		@Override
-		public void close() throws IOException {
-			if(!state.compareAndSetBit(false, STATE_CLOSING)) {
-				return; // Closing or closed
+		public List<String> tail() {
+			synchronized(tail) {
+				List<String> lines = new ArrayList<>(tailSize);
+				
+				for(int i = 0; i < tailSize; ++i) {
+					lines.add(tail[(tailIndex - tailSize + i + TAIL_LINES) % TAIL_LINES]);
+				}
+				
+				return lines;
+			}
+		}
+		
+		@Override
+		public long dropped() {
+			return dropped.sum();
+		}
+		
+		@Override
+		public void close() {
+			if(closed) {
+				return;
 			}
 			
-			writer.close();
-			log.debug(NIO.read(path));
-			state.setAndUnset(STATE_CLOSED, STATE_OPEN);
+			closed = true;
+			long count = dropped.sum();
+			
+			if(count > 0L) {
+				DRMMetrics.processOutputDropped(count);
+				logDebug("Output of %s: %d lines dropped", name, count);
+			}
 		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,470 @@
+package sune.app.mediadown.drm.util;
+
+import static sune.app.mediadown.drm.util.Common.logDebug;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.AclEntry;
+import java.nio.file.attribute.AclEntryPermission;
+import java.nio.file.attribute.AclEntryType;
+import java.nio.file.attribute.AclFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import sune.app.mediadown.media.MediaType;
+import sune.app.mediadown.util.NIO;
+
+/**
+ * Persistent progress of the decryption of a single destination, so that after
+ * a crash the pipeline does not have to obtain the keys and decrypt the already
+ * decrypted tracks again. The checkpoint is stored next to the destination and,
+ * since it contains the decryption keys, it is encrypted using a local secret key.
+ * <p>
+ * The secret key itself is stored unencrypted in the resources of the plugin and is
+ * protected only by the permissions of its file, i.e. it is readable only by its owner
+ * where POSIX permissions or ACLs, e.g. on Windows, are supported. There is no other
+ * protection, e.g. by the Windows Data Protection API, which is not accessible from Java,
+ * therefore anyone who can read the file of the current user can read the checkpoints.</p>
+ * @author Sune
+ */
+public final class DecryptionCheckpoint {
+	
+	private static final int MAGIC = 0x4d44434b; // MDCK
+	private static final int VERSION = 2;
+	private static final int IV_SIZE = 12;
+	private static final int TAG_SIZE = 128;
+	private static final int SECRET_SIZE = 32;
+	
+	private static final int TYPE_VIDEO = 0;
+	private static final int TYPE_AUDIO = 1;
+	
+	private static final SecureRandom random = new SecureRandom();
+	private static SecretKeySpec secret;
+	
+	private final Path path;
+	private final String sourceURI;
+	private final MediaDecryptionKeys keys;
+	private final Map<String, long[]> decryptedTracks;
+	private Stage stage;
+	private List<Input> inputs;
+	
+	private DecryptionCheckpoint(Path path, String sourceURI, MediaDecryptionKeys keys, Stage stage,
+			List<Input> inputs, Map<String, long[]> decryptedTracks) {
+		this.path = path;
+		this.sourceURI = sourceURI;
+		this.keys = keys;
+		this.stage = stage;
+		this.inputs = inputs;
+		this.decryptedTracks = decryptedTracks;
+	}
+	
+	private static final Path pathOf(Path destination) {
+		return destination.resolveSibling(destination.getFileName() + ".drm.checkpoint");
+	}
+	
+	private static final synchronized SecretKeySpec secret() throws IOException {
+		if(secret != null) {
+			return secret;
+		}
+		
+		Path path = NIO.localPath("resources/drm", "checkpoint.key");
+		byte[] bytes;
+		
+		if(NIO.exists(path) && Files.size(path) == SECRET_SIZE) {
+			bytes = Files.readAllBytes(path);
+		} else {
+			bytes = new byte[SECRET_SIZE];
+			random.nextBytes(bytes);
+			NIO.createDir(path.getParent());
+			writeSecret(path, bytes);
+		}
+		
+		return secret = new SecretKeySpec(bytes, "AES");
+	}
+	
+	/**
+	 * Writes the secret key to a new file readable only by the current user, which then
+	 * replaces any existing file, so that the key is never readable by other users.
+	 * If the access cannot be restricted, the file is deleted.
+	 */
+	private static final void writeSecret(Path path, byte[] bytes) throws IOException {
+		Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+		Files.deleteIfExists(temp);
+		
+		try {
+			createOwnerOnly(temp);
+			Files.write(temp, bytes, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			
+			try {
+				Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch(AtomicMoveNotSupportedException ex) {
+				Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch(IOException | RuntimeException ex) {
+			Files.deleteIfExists(temp);
+			throw ex; // Propagate
+		}
+	}
+	
+	private static final void createOwnerOnly(Path path) throws IOException {
+		Set<String> views = FileSystems.getDefault().supportedFileAttributeViews();
+		
+		if(views.contains("posix")) {
+			// Created with the permissions right away, there is no window to read it
+			Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+			return;
+		}
+		
+		// The file is still empty, restrict the access before anything is written to it
+		Files.createFile(path);
+		
+		if(views.contains("acl")) {
+			AclFileAttributeView view = Files.getFileAttributeView(path, AclFileAttributeView.class);
+			UserPrincipal owner = view.getOwner();
+			view.setAcl(List.of(
+				AclEntry.newBuilder()
+					.setType(AclEntryType.ALLOW)
+					.setPrincipal(owner)
+					.setPermissions(EnumSet.allOf(AclEntryPermission.class))
+					.build()
+			));
+		} else {
+			logDebug("Unable to restrict access to %s, it is readable by other users", path);
+		}
+	}
+	
+	private static final byte[] crypt(int mode, byte[] iv, byte[] data) throws IOException {
+		try {
+			Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+			cipher.init(mode, secret(), new GCMParameterSpec(TAG_SIZE, iv));
+			cipher.updateAAD(ByteBuffer.allocate(4).putInt(MAGIC).array());
+			return cipher.doFinal(data);
+		} catch(GeneralSecurityException ex) {
+			throw new IOException("Unable to process the checkpoint", ex);
+		}
+	}
+	
+	private static final int typeId(MediaType type) {
+		if(type.is(MediaType.VIDEO)) return TYPE_VIDEO;
+		if(type.is(MediaType.AUDIO)) return TYPE_AUDIO;
+		throw new IllegalArgumentException("Unsupported media type");
+	}
+	
+	private static final MediaType type(int typeId) throws IOException {
+		switch(typeId) {
+			case TYPE_VIDEO: return MediaType.VIDEO;
+			case TYPE_AUDIO: return MediaType.AUDIO;
+			default: throw new IOException("Invalid media type");
+		}
+	}
+	
+	private static final long[] fileState(Path path) throws IOException {
+		return new long[] { Files.size(path), Files.getLastModifiedTime(path).toMillis() };
+	}
+	
+	private static final String trackName(Path track) {
+		return track.getFileName().toString();
+	}
+	
+	private static final DecryptionCheckpoint read(Path path, byte[] data) throws IOException {
+		try(DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+			if(in.readInt() != VERSION) {
+				throw new IOException("Unsupported version");
+			}
+			
+			String sourceURI = in.readUTF();
+			Stage stage = Stage.values()[in.readUnsignedByte()];
+			MediaDecryptionKeys.Builder keys = new MediaDecryptionKeys.Builder();
+			
+			for(int i = 0, l = in.readInt(); i < l; ++i) {
+				MediaType type = type(in.readUnsignedByte());
+				List<MediaDecryptionKey> trackKeys = new ArrayList<>();
+				
+				for(int k = 0, m = in.readInt(); k < m; ++k) {
+					trackKeys.add(new MediaDecryptionKey(in.readUTF(), in.readUTF()));
+				}
+				
+				keys.add(type, trackKeys);
+			}
+			
+			List<Input> inputs = new ArrayList<>();
+			
+			for(int i = 0, l = in.readInt(); i < l; ++i) {
+				inputs.add(new Input(
+					type(in.readUnsignedByte()), Path.of(in.readUTF()), in.readDouble(),
+					new long[] { in.readLong(), in.readLong() }
+				));
+			}
+			
+			Map<String, long[]> decryptedTracks = new HashMap<>();
+			
+			for(int i = 0, l = in.readInt(); i < l; ++i) {
+				decryptedTracks.put(in.readUTF(), new long[] { in.readLong(), in.readLong() });
+			}
+			
+			return new DecryptionCheckpoint(path, sourceURI, keys.build(), stage, inputs, decryptedTracks);
+		} catch(IndexOutOfBoundsException ex) {
+			throw new IOException("Invalid stage", ex);
+		}
+	}
+	
+	private final byte[] write() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		
+		try(DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeInt(VERSION);
+			out.writeUTF(sourceURI);
+			out.writeByte(stage.ordinal());
+			out.writeInt(keys.size());
+			
+			for(int i = 0, l = keys.size(); i < l; ++i) {
+				List<MediaDecryptionKey> trackKeys = keys.keys(i);
+				out.writeByte(typeId(keys.type(i)));
+				out.writeInt(trackKeys.size());
+				
+				for(MediaDecryptionKey key : trackKeys) {
+					out.writeUTF(key.kid());
+					out.writeUTF(key.key());
+				}
+			}
+			
+			out.writeInt(inputs.size());
+			
+			for(Input input : inputs) {
+				out.writeByte(typeId(input.type));
+				out.writeUTF(input.path.toString());
+				out.writeDouble(input.duration);
+				out.writeLong(input.state[0]);
+				out.writeLong(input.state[1]);
+			}
+			
+			out.writeInt(decryptedTracks.size());
+			
+			for(Map.Entry<String, long[]> entry : decryptedTracks.entrySet()) {
+				out.writeUTF(entry.getKey());
+				out.writeLong(entry.getValue()[0]);
+				out.writeLong(entry.getValue()[1]);
+			}
+		}
+		
+		return bytes.toByteArray();
+	}
+	
+	private final void save() throws IOException {
+		byte[] iv = new byte[IV_SIZE];
+		random.nextBytes(iv);
+		byte[] data = crypt(Cipher.ENCRYPT_MODE, iv, write());
+		
+		ByteBuffer buf = ByteBuffer.allocate(4 + IV_SIZE + data.length);
+		buf.putInt(MAGIC).put(iv).put(data);
+		
+		// Write to a temporary file first, so that a crash never leaves a broken checkpoint
+		Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+		Files.write(temp, buf.array());
+		
+		try {
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch(AtomicMoveNotSupportedException ex) {
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+	
+	/**
+	 * Creates a new checkpoint of the given destination with the obtained keys.
+	 */
+	public static final DecryptionCheckpoint create(Path destination, String sourceURI, MediaDecryptionKeys keys)
+			throws IOException {
+		DecryptionCheckpoint checkpoint = new DecryptionCheckpoint(
+			pathOf(destination), Objects.requireNonNull(sourceURI), Objects.requireNonNull(keys),
+			Stage.KEYS_OBTAINED, List.of(), new HashMap<>()
+		);
+		checkpoint.save();
+		return checkpoint;
+	}
+	
+	/**
+	 * Loads the checkpoint of the given destination. If there is no checkpoint,
+	 * it cannot be read or it belongs to a different media, {@code null} is returned.
+	 */
+	public static final DecryptionCheckpoint load(Path destination, String sourceURI) {
+		Path path = pathOf(destination);
+		
+		if(!NIO.exists(path)) {
+			return null;
+		}
+		
+		try {
+			ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(path));
+			
+			if(buf.remaining() < 4 + IV_SIZE || buf.getInt() != MAGIC) {
+				throw new IOException("Invalid checkpoint");
+			}
+			
+			byte[] iv = new byte[IV_SIZE];
+			buf.get(iv);
+			byte[] data = new byte[buf.remaining()];
+			buf.get(data);
+			
+			DecryptionCheckpoint checkpoint = read(path, crypt(Cipher.DECRYPT_MODE, iv, data));
+			
+			if(!checkpoint.sourceURI.equals(Objects.toString(sourceURI))) {
+				logDebug("Checkpoint %s is of a different media, ignoring", path);
+				return null;
+			}
+			
+			logDebug("Loaded checkpoint %s (stage: %s)", path, checkpoint.stage);
+			return checkpoint;
+		} catch(IOException ex) {
+			logDebug("Unable to load checkpoint %s: %s", path, ex.getMessage());
+			return null;
+		}
+	}
+	
+	public static final void delete(Path destination) throws IOException {
+		Files.deleteIfExists(pathOf(destination));
+	}
+	
+	/**
+	 * Marks the media as downloaded to the given input files, so that the download
+	 * can be skipped after a restart, see {@link #inputs()}.
+	 * @param inputs The downloaded files, each of a video or an audio track.
+	 */
+	public synchronized void downloaded(List<Input> inputs) throws IOException {
+		if(stage.ordinal() >= Stage.DOWNLOADED.ordinal()) {
+			return; // Nothing to do
+		}
+		
+		this.inputs = List.copyOf(inputs);
+		stage = Stage.DOWNLOADED;
+		save();
+	}
+	
+	/**
+	 * Gets the downloaded input files, if the media were downloaded and none of the files
+	 * has changed since then, except by the decryption.
+	 * @return The inputs, or {@code null}, if the media have to be downloaded again.
+	 */
+	public synchronized List<Input> inputs() {
+		if(stage != Stage.DOWNLOADED || inputs.isEmpty()) {
+			return null;
+		}
+		
+		for(Input input : inputs) {
+			if(isTrackDecrypted(input.path)) {
+				continue;
+			}
+			
+			try {
+				long[] current = fileState(input.path);
+				
+				if(current[0] != input.state[0] || current[1] != input.state[1]) {
+					return null;
+				}
+			} catch(IOException ex) {
+				return null; // Missing or inaccessible file
+			}
+		}
+		
+		return inputs;
+	}
+	
+	/**
+	 * Marks the given track file as decrypted. The state of the file is recorded
+	 * as well, so that a file that was changed afterwards, e.g. downloaded again,
+	 * is not considered decrypted.
+	 */
+	public synchronized void trackDecrypted(Path track) throws IOException {
+		decryptedTracks.put(trackName(track), fileState(track));
+		save();
+	}
+	
+	public synchronized boolean isTrackDecrypted(Path track) {
+		long[] state = decryptedTracks.get(trackName(track));
+		
+		if(state == null || !NIO.exists(track)) {
+			return false;
+		}
+		
+		try {
+			long[] current = fileState(track);
+			return current[0] == state[0] && current[1] == state[1];
+		} catch(IOException ex) {
+			return false;
+		}
+	}
+	
+	public synchronized Stage stage() {
+		return stage;
+	}
+	
+	public MediaDecryptionKeys keys() {
+		return keys;
+	}
+	
+	public static enum Stage {
+		
+		KEYS_OBTAINED, DOWNLOADED;
+	}
+	
+	/**
+	 * A downloaded file of a single video or audio track.
+	 */
+	public static final class Input {
+		
+		private final MediaType type;
+		private final Path path;
+		private final double duration;
+		private final long[] state;
+		
+		private Input(MediaType type, Path path, double duration, long[] state) {
+			this.type = type;
+			this.path = path;
+			this.duration = duration;
+			this.state = state;
+		}
+		
+		/**
+		 * Creates an input of the given downloaded file and records its current state.
+		 */
+		public static final Input of(MediaType type, Path path, double duration) throws IOException {
+			typeId(type); // Check that the type is supported
+			Path absPath = path.toAbsolutePath();
+			return new Input(type, absPath, duration, fileState(absPath));
+		}
+		
+		public MediaType type() {
+			return type;
+		}
+		
+		public Path path() {
+			return path;
+		}
+		
+		public double duration() {
+			return duration;
+		}
+	}
+}
\ No newline at end of file
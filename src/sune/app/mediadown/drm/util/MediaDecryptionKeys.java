@@ -0,0 +1,144 @@
+package sune.app.mediadown.drm.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import sune.app.mediadown.media.Media;
+import sune.app.mediadown.media.MediaType;
+
+/**
+ * Decryption keys of all protected tracks of a media. Each track has its own list
+ * of keys, where the first one is the key of the track's default KID and the rest
+ * are the other keys from the license, used for content with multiple KIDs.
+ * @author Sune
+ */
+public final class MediaDecryptionKeys {
+	
+	private final List<Media> media;
+	private final List<MediaType> types;
+	private final List<List<MediaDecryptionKey>> keys;
+	
+	private MediaDecryptionKeys(List<Media> media, List<MediaType> types, List<List<MediaDecryptionKey>> keys) {
+		this.media = Collections.unmodifiableList(media);
+		this.types = Collections.unmodifiableList(types);
+		this.keys = Collections.unmodifiableList(keys);
+	}
+	
+	private final int indexOf(Media media, int indexOfType) {
+		int index = this.media.indexOf(media);
+		
+		if(index >= 0) {
+			return index;
+		}
+		
+		for(int i = 0, l = types.size(), t = 0; i < l; ++i) {
+			if(!types.get(i).is(media.type())) {
+				continue;
+			}
+			
+			if(t++ == indexOfType) {
+				return i;
+			}
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * Gets the key of the given media. If the exact media is not present, the key
+	 * of the media of the same type at the given position among the media of that
+	 * type is returned instead. This is the case when the media were recreated,
+	 * e.g. by the download process, but their order was preserved.
+	 */
+	public MediaDecryptionKey get(Media media, int indexOfType) {
+		List<MediaDecryptionKey> keys = all(media, indexOfType);
+		return keys.isEmpty() ? null : keys.get(0);
+	}
+	
+	/**
+	 * Gets all the keys of the given media, the key of its default KID first.
+	 * The media is looked up in the same way as in {@link #get(Media, int)}.
+	 */
+	public List<MediaDecryptionKey> all(Media media, int indexOfType) {
+		int index = indexOf(media, indexOfType);
+		return index >= 0 ? keys.get(index) : List.of();
+	}
+	
+	/**
+	 * Gets all the distinct keys of all the tracks.
+	 */
+	public List<MediaDecryptionKey> distinct() {
+		Map<String, MediaDecryptionKey> distinct = new LinkedHashMap<>();
+		
+		for(List<MediaDecryptionKey> trackKeys : keys) {
+			for(MediaDecryptionKey key : trackKeys) {
+				distinct.putIfAbsent(key.kid() + ':' + key.key(), key);
+			}
+		}
+		
+		return List.copyOf(distinct.values());
+	}
+	
+	/**
+	 * Gets the media type of the track at the given index.
+	 */
+	public MediaType type(int index) {
+		return types.get(index);
+	}
+	
+	/**
+	 * Gets all the keys of the track at the given index, the key of its default KID first.
+	 */
+	public List<MediaDecryptionKey> keys(int index) {
+		return keys.get(index);
+	}
+	
+	public int size() {
+		return keys.size();
+	}
+	
+	public boolean isEmpty() {
+		return keys.isEmpty();
+	}
+	
+	public static final class Builder {
+		
+		private final List<Media> media = new ArrayList<>();
+		private final List<MediaType> types = new ArrayList<>();
+		private final List<List<MediaDecryptionKey>> keys = new ArrayList<>();
+		
+		public Builder() {
+		}
+		
+		private final Builder add(Media media, MediaType type, List<MediaDecryptionKey> keys) {
+			if(keys.isEmpty()) {
+				throw new IllegalArgumentException("At least one key must be present");
+			}
+			
+			this.media.add(media);
+			this.types.add(Objects.requireNonNull(type));
+			this.keys.add(List.copyOf(keys));
+			return this;
+		}
+		
+		public Builder add(Media media, List<MediaDecryptionKey> keys) {
+			return add(Objects.requireNonNull(media), media.type(), keys);
+		}
+		
+		/**
+		 * Adds keys of a track that is identified only by its type and its position
+		 * among the tracks of that type, e.g. when restored from a checkpoint.
+		 */
+		public Builder add(MediaType type, List<MediaDecryptionKey> keys) {
+			return add(null, type, keys);
+		}
+		
+		public MediaDecryptionKeys build() {
+			return new MediaDecryptionKeys(new ArrayList<>(media), new ArrayList<>(types), new ArrayList<>(keys));
+		}
+	}
+}
\ No newline at end of file
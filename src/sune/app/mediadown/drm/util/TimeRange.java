@@ -0,0 +1,53 @@
+package sune.app.mediadown.drm.util;
+
+import java.util.Locale;
+
+/**
+ * Range of the presentation time, in seconds, e.g. of a clip extracted from a title.
+ * The end may be infinite, i.e. up to the end of the title.
+ * @author Sune
+ */
+public final class TimeRange {
+	
+	private final double start;
+	private final double end;
+	
+	private TimeRange(double start, double end) {
+		this.start = start;
+		this.end = end;
+	}
+	
+	public static final TimeRange of(double start, double end) {
+		if(!(start >= 0.0) || !(end > start)) {
+			throw new IllegalArgumentException("Invalid time range: " + start + " - " + end);
+		}
+		
+		return new TimeRange(start, end);
+	}
+	
+	/**
+	 * Parses a time in seconds, e.g. {@code 90.5}, or in the {@code [[hh:]mm:]ss[.fff]} form.
+	 */
+	public static final double parseTime(String value) {
+		double seconds = 0.0;
+		
+		for(String part : value.trim().split(":", -1)) {
+			seconds = seconds * 60.0 + Double.parseDouble(part);
+		}
+		
+		return seconds;
+	}
+	
+	public double start() {
+		return start;
+	}
+	
+	public double end() {
+		return end;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format(Locale.ROOT, "%.3f s - %.3f s", start, end);
+	}
+}
\ No newline at end of file
@@ -6,6 +6,9 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 
+import sune.app.mediadown.drm.jfr.DRMEvents;
+import sune.app.mediadown.drm.jfr.WVRequestEvent;
+import sune.app.mediadown.drm.metrics.DRMMetrics;
 import sune.app.mediadown.net.Net;
 import sune.app.mediadown.net.Web;
 import sune.app.mediadown.net.Web.Request;
@@ -29,43 +32,74 @@ public final class WV {
 	public static final class API {
 		
 		private static final URI URI_API = Net.uri("https://wv.api.md.sune.app/v1/");
+		/** System property that overrides the default base URI, e.g. to use a local server. */
+		private static final String PROPERTY_URI_API = "sune.app.mediadown.drm.wv.uri";
+		
+		private static volatile URI baseURI = defaultBaseURI();
 		
 		private API() {
 		}
 		
+		private static final URI defaultBaseURI() {
+			String value = System.getProperty(PROPERTY_URI_API);
+			return value != null && !value.isBlank() ? Net.uri(value) : URI_API;
+		}
+		
+		/**
+		 * Sets the base URI of the API, relative to which the endpoints are resolved,
+		 * therefore it should end with a slash. If {@code null}, the default one is used.
+		 */
+		public static final void baseURI(URI uri) {
+			baseURI = uri != null ? uri : defaultBaseURI();
+		}
+		
+		public static final URI baseURI() {
+			return baseURI;
+		}
+		
 		private static final JSONCollection request(String path, JSONCollection body) throws Exception {
+			WVRequestEvent event = DRMEvents.wvRequest();
+			String content = body.toString(true);
+			boolean succeeded = false;
+			long start = System.nanoTime();
+			
 			try(Response.OfStream response = Web.requestStream(
-					Request.of(URI_API.resolve(path))
-						.POST(body.toString(true), "application/json")
+					Request.of(baseURI.resolve(path))
+						.POST(content, "application/json")
 			)) {
-				return JSON.read(response.stream());
+				JSONCollection json = JSON.read(response.stream());
+				succeeded = true;
+				return json;
+			} finally {
+				DRMMetrics.wvRequest(path, System.nanoTime() - start, succeeded);
+				
+				if(event != null) {
+					event.end(null, null, null, path, content.length(), succeeded);
+				}
 			}
 		}
 		
-		public static final LicenseRequest generateLicenseRequest(String pssh) throws Exception {
-			JSONCollection response = request(
-				"generate",
-				JSONCollection.ofObject(
-					"pssh", JSONObject.ofString(pssh)
-				)
+		static final JSONCollection generateBody(String pssh) {
+			return JSONCollection.ofObject(
+				"pssh", JSONObject.ofString(pssh)
 			);
-			
+		}
+		
+		static final LicenseRequest parseLicenseRequest(JSONCollection response) {
 			String id = response.getString("id");
 			byte[] request = Utils.base64DecodeRaw(response.getString("request"));
 			
 			return new LicenseRequest(id, request);
 		}
 		
-		public static final List<LicenseKey> extractLicenseKeys(String licenseId, byte[] licenseResponse)
-				throws Exception {
-			JSONCollection response = request(
-				"extract",
-				JSONCollection.ofObject(
-					"id", JSONObject.ofString(licenseId),
-					"response", JSONObject.ofString(Utils.base64EncodeRawAsString(licenseResponse))
-				)
+		static final JSONCollection extractBody(String licenseId, byte[] licenseResponse) {
+			return JSONCollection.ofObject(
+				"id", JSONObject.ofString(licenseId),
+				"response", JSONObject.ofString(Utils.base64EncodeRawAsString(licenseResponse))
 			);
-			
+		}
+		
+		static final List<LicenseKey> parseLicenseKeys(JSONCollection response) {
 			JSONCollection rawKeys = response.getCollection("keys");
 			int length;
 			
@@ -86,6 +120,15 @@ public final class WV {
 			return Collections.unmodifiableList(keys);
 		}
 		
+		public static final LicenseRequest generateLicenseRequest(String pssh) throws Exception {
+			return parseLicenseRequest(request("generate", generateBody(pssh)));
+		}
+		
+		public static final List<LicenseKey> extractLicenseKeys(String licenseId, byte[] licenseResponse)
+				throws Exception {
+			return parseLicenseKeys(request("extract", extractBody(licenseId, licenseResponse)));
+		}
+		
 		public static final class LicenseRequest {
 			
 			private final String id;